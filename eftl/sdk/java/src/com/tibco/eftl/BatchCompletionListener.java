@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+/**
+ * Batch completion event handler.
+ * <p>
+ * Implement this interface to process completion events for a batch
+ * of messages.
+ * <p>
+ * Supply an instance when you call
+ * {@link Connection#publish(Message[], BatchCompletionListener)}.
+ */
+public interface BatchCompletionListener
+{
+    /**
+     * Every message of a batch has been published successfully.
+     * <p>
+     * This method is not called for a batch in which any message
+     * resulted in an error.
+     *
+     * @param messages These messages have been published.
+     */
+    public void onCompletion(Message[] messages);
+
+    /**
+     * Publishing a range of messages of a batch resulted in an error.
+     * <p>
+     * The messages in the range were not forwarded by the eFTL server.
+     * Messages outside the range may still complete, or may be reported
+     * in further calls to this method.
+     * <p>
+     * Possible error codes include:
+     * <ul>
+     * <li>{@link CompletionListener#PUBLISH_FAILED}
+     * <li>{@link CompletionListener#PUBLISH_DISALLOWED}
+     * </ul>
+     *
+     * @param messages The messages of the batch.
+     * @param index The index of the first message that was <i> not </i>
+     *              published.
+     * @param count The number of messages, from the index on, that were
+     *              <i> not </i> published.
+     * @param code This code categorizes the error.
+     *             Application programs may use this value
+     *             in response logic.
+     * @param reason This string provides more detail about the error.
+     *               Application programs may use this value
+     *               for error reporting and logging.
+     */
+    public void onError(Message[] messages, int index, int count, int code, String reason);
+}
@@ -10,6 +10,8 @@
 package com.tibco.eftl;
 
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * A connection object represents a program's connection to an eFTL
@@ -110,16 +112,18 @@ public interface Connection
     /**
      * Publish a request message.
      * <p>
-     * This call returns immediately. When the reply is received
-     * the eFTL library calls your {@link RequestListener#onReply} 
-     * callback.
+     * This call does not wait for the reply, but may wait for room in
+     * the in-flight window; see {@link EFTL#PROPERTY_MAX_IN_FLIGHT}.
+     * When the reply is received the eFTL library calls your
+     * {@link RequestListener#onReply} callback.
      * 
      * @param request The request message to publish.
      * @param timeout Seconds to wait for a reply.
      * @param listener This listener defines callback methods for
      *                 successful completion and for errors.
      *
-     * @throws IllegalStateException The connection is not open.
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
      * @throws IllegalArgumentException The message would exceed the
      *         eFTL server's maximum message size.
      *
@@ -127,19 +131,86 @@ public interface Connection
      */
     public void sendRequest(Message request, double timeout, RequestListener listener);
     
+    /**
+     * Publish a request message.
+     * <p>
+     * This call does not wait for the reply. The returned future
+     * completes with the reply message, or exceptionally with an
+     * {@link EFTLException} carrying a {@link RequestListener} error code.
+     * <p>
+     * Like {@link #sendRequest}, this call blocks while the in-flight
+     * window is full under the {@link EFTL#IN_FLIGHT_POLICY_BLOCK} policy,
+     * and throws an {@link IllegalStateException} when it cannot wait,
+     * rather than failing the future.
+     * <p>
+     * The future is completed on the thread that processes the reply.
+     * Dependent actions should not block that thread; use
+     * {@link #sendRequestAsync(Message, double, Executor)} or the
+     * asynchronous methods of the future to run them elsewhere.
+     * 
+     * @param request The request message to publish.
+     * @param timeout Seconds to wait for a reply.
+     * 
+     * @return A future completed with the reply message.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     * @throws IllegalArgumentException The message would exceed the
+     *         eFTL server's maximum message size.
+     *
+     * @see Message#FIELD_NAME_DESTINATION
+     */
+    public default CompletableFuture<Message> sendRequestAsync(Message request, double timeout) {
+        return sendRequestAsync(request, timeout, null);
+    }
+    
+    /**
+     * Publish a request message.
+     * <p>
+     * This call does not wait for the reply. The returned future
+     * completes with the reply message, or exceptionally with an
+     * {@link EFTLException} carrying a {@link RequestListener} error code.
+     * <p>
+     * Like {@link #sendRequest}, this call blocks while the in-flight
+     * window is full under the {@link EFTL#IN_FLIGHT_POLICY_BLOCK} policy,
+     * and throws an {@link IllegalStateException} when it cannot wait,
+     * rather than failing the future.
+     * 
+     * @param request The request message to publish.
+     * @param timeout Seconds to wait for a reply.
+     * @param executor The future is completed by a task run
+     *                 on this executor.
+     * 
+     * @return A future completed with the reply message.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     * @throws IllegalArgumentException The message would exceed the
+     *         eFTL server's maximum message size.
+     *
+     * @see Message#FIELD_NAME_DESTINATION
+     */
+    public default CompletableFuture<Message> sendRequestAsync(Message request, double timeout, Executor executor) {
+        FutureListener listener = new FutureListener(executor);
+        sendRequest(request, timeout, listener);
+        return listener.getFuture();
+    }
+    
     /**
      * Send a reply message in response to a request message.
      * <p>
-     * This call returns immediately. When the send completes successfully
-     * the eFTL library calls your {@link CompletionListener#onCompletion} 
-     * callback.
+     * This call does not wait for the send to complete, but may wait for
+     * room in the in-flight window; see {@link EFTL#PROPERTY_MAX_IN_FLIGHT}.
+     * When the send completes successfully the eFTL library calls your
+     * {@link CompletionListener#onCompletion} callback.
      * 
      * @param reply The reply messasge to send.
      * @param request The request messasge.
      * @param listener This listener defines callback methods for
      *                 successful completion and for errors.
      *
-     * @throws IllegalStateException The connection is not open.
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
      * @throws IllegalArgumentException The message would exceed the
      *         eFTL server's maximum message size.
      */
@@ -150,7 +221,8 @@ public interface Connection
      *
      * @param message Publish this message.
      *
-     * @throws IllegalStateException The connection is not open.
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
      * @throws IllegalArgumentException The message would exceed the
      *         eFTL server's maximum message size.
      *
@@ -161,22 +233,115 @@ public interface Connection
     /**
      * Publish a one-to-many message to all subscribing clients.
      * <p>
-     * This call returns immediately; publishing continues
-     * asynchronously.  When the publish completes successfully, 
-     * the eFTL library calls your {@link CompletionListener#onCompletion} 
-     * callback.
+     * Publishing continues asynchronously, but this call may first wait
+     * for room in the in-flight window; see
+     * {@link EFTL#PROPERTY_MAX_IN_FLIGHT}. When the publish completes
+     * successfully, the eFTL library calls your
+     * {@link CompletionListener#onCompletion} callback.
      * 
      * @param message Publish this message.
      * @param listener This listener defines callback methods for
      *                 successful completion and for errors.
      *
-     * @throws IllegalStateException The connection is not open.
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
      * @throws IllegalArgumentException The message would exceed the
      *         eFTL server's maximum message size.
      *
      * @see Message#FIELD_NAME_DESTINATION
      */
     public void publish(Message message, CompletionListener listener);
+
+    /**
+     * Publish a one-to-many message to all subscribing clients.
+     * <p>
+     * Publishing continues asynchronously. The returned future completes
+     * with the message when the publish completes successfully, or
+     * exceptionally with an {@link EFTLException} carrying a
+     * {@link CompletionListener} error code.
+     * <p>
+     * Like {@link #publish(Message, CompletionListener)}, this call
+     * blocks while the in-flight window is full under the
+     * {@link EFTL#IN_FLIGHT_POLICY_BLOCK} policy, and throws an
+     * {@link IllegalStateException} when it cannot wait, rather than
+     * failing the future.
+     * <p>
+     * The future is completed on the thread that processes the
+     * acknowledgment. Dependent actions should not block that thread;
+     * use {@link #publishAsync(Message, Executor)} or the asynchronous
+     * methods of the future to run them elsewhere.
+     * 
+     * @param message Publish this message.
+     * 
+     * @return A future completed with the published message.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     * @throws IllegalArgumentException The message would exceed the
+     *         eFTL server's maximum message size.
+     *
+     * @see Message#FIELD_NAME_DESTINATION
+     */
+    public default CompletableFuture<Message> publishAsync(Message message) {
+        return publishAsync(message, null);
+    }
+
+    /**
+     * Publish a one-to-many message to all subscribing clients.
+     * <p>
+     * Publishing continues asynchronously. The returned future completes
+     * with the message when the publish completes successfully, or
+     * exceptionally with an {@link EFTLException} carrying a
+     * {@link CompletionListener} error code.
+     * <p>
+     * Like {@link #publish(Message, CompletionListener)}, this call
+     * blocks while the in-flight window is full under the
+     * {@link EFTL#IN_FLIGHT_POLICY_BLOCK} policy, and throws an
+     * {@link IllegalStateException} when it cannot wait, rather than
+     * failing the future.
+     * 
+     * @param message Publish this message.
+     * @param executor The future is completed by a task run
+     *                 on this executor.
+     * 
+     * @return A future completed with the published message.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     * @throws IllegalArgumentException The message would exceed the
+     *         eFTL server's maximum message size.
+     *
+     * @see Message#FIELD_NAME_DESTINATION
+     */
+    public default CompletableFuture<Message> publishAsync(Message message, Executor executor) {
+        FutureListener listener = new FutureListener(executor);
+        publish(message, listener);
+        return listener.getFuture();
+    }
+
+    /**
+     * Publish a batch of one-to-many messages to all subscribing clients.
+     * <p>
+     * Publishing continues asynchronously, but this call may first wait
+     * for room in the in-flight window; see
+     * {@link EFTL#PROPERTY_MAX_IN_FLIGHT}. The messages are published in
+     * order, with consecutive sequence numbers, and are queued for the
+     * writer as a single unit. When every message has been published
+     * successfully, the eFTL library calls your
+     * {@link BatchCompletionListener#onCompletion} callback once.
+     *
+     * @param messages Publish these messages.
+     * @param listener This listener defines callback methods for
+     *                 successful completion and for errors.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     * @throws IllegalArgumentException The batch is empty, or a message
+     *         would exceed the eFTL server's maximum message size.
+     *
+     * @see Message#FIELD_NAME_DESTINATION
+     */
+    public void publish(Message[] messages, BatchCompletionListener listener);
     
     /**
      * Subscribe to messages.
@@ -275,6 +440,50 @@ public interface Connection
      */
     public String subscribe(String matcher, String durable, Properties props, SubscriptionListener listener);
     
+    /**
+     * Create a publisher of the messages of a subscription.
+     * <p>
+     * Each {@link Flow.Subscriber} of the publisher gets its own
+     * subscription, created with an acknowledgment mode of
+     * {@link EFTL#ACKNOWLEDGE_MODE_CLIENT}. Messages are delivered to
+     * the subscriber only as it requests them, and each message is
+     * acknowledged once {@link Flow.Subscriber#onNext} returns.
+     * <p>
+     * Messages received but not yet requested are held unacknowledged,
+     * and the server stops delivering messages once the connection's
+     * maximum pending acknowledgments is reached. Demand is not passed
+     * to the server, so that maximum is what bounds the messages held
+     * for a subscriber that is behind. The connection must therefore be
+     * created with a positive {@link EFTL#PROPERTY_MAX_PENDING_ACKS}.
+     * <p>
+     * Subscription errors are passed to {@link Flow.Subscriber#onError}.
+     * Cancelling closes a durable subscription, leaving it to accumulate
+     * messages, and unsubscribes a non-durable subscription.
+     * <p>
+     * The subscriber methods are called from the thread that requests
+     * messages or from the thread receiving them.
+     * 
+     * @param matcher The subscription uses this matcher to
+     *                    narrow the message stream.
+     * @param durable The subscription uses this durable name, or null
+     *                for a non-durable subscription.
+     * @param props These properties can be used to affect the subscription:
+     *            <ul>
+     *             <li> {@link EFTL#PROPERTY_DURABLE_TYPE}
+     *             <li> {@link EFTL#PROPERTY_DURABLE_KEY}
+     *            </ul>
+     *
+     * @return A publisher of the subscription messages.
+     *
+     * @throws IllegalStateException The connection was not created with
+     *                               a positive
+     *                               {@link EFTL#PROPERTY_MAX_PENDING_ACKS}.
+     *
+     * @see Flow
+     * @see #subscribe(String, String, Properties, SubscriptionListener)
+     */
+    public Flow.Publisher<Message> createPublisher(String matcher, String durable, Properties props);
+    
     /**
      * Close a subscription.
      * <p>
@@ -360,4 +569,17 @@ public interface Connection
      * @see #acknowledge
      */
     public void acknowledgeAll(Message message);
+
+    /**
+     * Get the statistics of the in-flight window.
+     * <p>
+     * The statistics show how many published messages, requests, replies
+     * and key-value map operations await acknowledgment, and how often
+     * operations waited or failed because the window was full.
+     *
+     * @return The statistics of this connection.
+     *
+     * @see EFTL#PROPERTY_MAX_IN_FLIGHT
+     */
+    public InFlightMetrics getInFlightMetrics();
 }
@@ -126,11 +126,386 @@ public class EFTL
      * are acknowledged.
      * <p>
      * If you omit this property, the server's configured value will be used.
+     * A positive value is required to use {@link Connection#createPublisher}.
      *
      * @see #connect
      */
     public static final String PROPERTY_MAX_PENDING_ACKS = "max_pending_acks";
 
+    /**
+     * Connection transport; property name.
+     * <p>
+     * Programs use this property to select how the connection performs
+     * its network I/O. The following transports are supported:
+     *            <ul>
+     *             <li> {@link #TRANSPORT_BLOCKING}
+     *             <li> {@link #TRANSPORT_NIO}
+     *            </ul>
+     * <p>
+     * If you omit this property, the {@link #TRANSPORT_BLOCKING} transport
+     * is used.
+     *
+     * @see #connect
+     * @see #TRANSPORT_BLOCKING
+     * @see #TRANSPORT_NIO
+     */
+    public static final String PROPERTY_TRANSPORT = "transport";
+
+    /**
+     * Blocking transport.
+     * <p>
+     * Connections using this transport perform their I/O on a blocking
+     * socket with a dedicated reader thread per connection.
+     *
+     * @see #PROPERTY_TRANSPORT
+     */
+    public static final String TRANSPORT_BLOCKING = "blocking";
+
+    /**
+     * Non-blocking transport.
+     * <p>
+     * Connections using this transport perform their I/O on a non-blocking
+     * socket channel serviced by a shared selector thread, allowing many
+     * connections to be serviced without a reader thread per connection.
+     * Connection and subscription callbacks are invoked on the selector
+     * thread and should not block.
+     *
+     * @see #PROPERTY_TRANSPORT
+     */
+    public static final String TRANSPORT_NIO = "nio";
+
+    /**
+     * Use virtual threads; property name.
+     * <p>
+     * Programs use this property to request that the threads created
+     * by a connection using the {@link #TRANSPORT_BLOCKING} transport,
+     * including its reader and writer threads, be
+     * virtual threads. Virtual threads are used only when supported by
+     * the Java runtime (Java 21 or later); otherwise platform threads
+     * are used.
+     * <p>
+     * If you omit this property, the default value of {@code false} is used.
+     *
+     * @see #connect
+     */
+    public static final String PROPERTY_VIRTUAL_THREADS = "virtual_threads";
+
+    /**
+     * Frame masking; property name.
+     * <p>
+     * Programs use this property to select how the connection generates
+     * the masks that the WebSocket protocol applies to every frame sent
+     * to the server. The following values are supported:
+     *            <ul>
+     *             <li> {@link #FRAME_MASKING_SECURE}
+     *             <li> {@link #FRAME_MASKING_FAST}
+     *            </ul>
+     * <p>
+     * If you omit this property, masks are generated with 
+     * {@link #FRAME_MASKING_SECURE}.
+     *
+     * @see #connect
+     */
+    public static final String PROPERTY_FRAME_MASKING = "frame_masking";
+
+    /**
+     * Generate frame masks with a cryptographically strong random number
+     * generator.
+     *
+     * @see #PROPERTY_FRAME_MASKING
+     */
+    public static final String FRAME_MASKING_SECURE = "secure";
+
+    /**
+     * Generate frame masks with a fast, non-cryptographic random number
+     * generator.
+     * <p>
+     * Masks protect intermediaries from payloads crafted by untrusted 
+     * code running in the client, such as scripts in a web browser.
+     * Programs that do not send untrusted payloads may use this value 
+     * to reduce the cost of sending frames.
+     *
+     * @see #PROPERTY_FRAME_MASKING
+     */
+    public static final String FRAME_MASKING_FAST = "fast";
+
+    /**
+     * Maximum number of messages sent per network write; property name.
+     * <p>
+     * Messages queued for sending while the connection is busy are
+     * coalesced and sent to the server with a single network write.
+     * Programs use this property to limit the number of messages
+     * combined into one write.
+     * <p>
+     * If you omit this property, the default value of 256 is used.
+     *
+     * @see #connect
+     */
+    public static final String PROPERTY_WRITE_MAX_FRAMES = "write_max_frames";
+
+    /**
+     * Maximum number of bytes sent per network write; property name.
+     * <p>
+     * Programs use this property to limit the approximate size of the
+     * coalesced messages sent to the server with a single network write.
+     * A single message larger than this limit is always sent on its own.
+     * <p>
+     * If you omit this property, the default value of 262144 bytes is used.
+     *
+     * @see #connect
+     * @see #PROPERTY_WRITE_MAX_FRAMES
+     */
+    public static final String PROPERTY_WRITE_MAX_BYTES = "write_max_bytes";
+
+    /**
+     * Compress messages; property name.
+     * <p>
+     * Programs use this property to request that messages exchanged with
+     * the server be compressed with the WebSocket permessage-deflate 
+     * extension. Messages are compressed only if the server accepts
+     * the extension.
+     * <p>
+     * If you omit this property, the default value of {@code false} is used.
+     *
+     * @see #connect
+     */
+    public static final String PROPERTY_COMPRESSION = "compression";
+
+    /**
+     * Minimum size of a compressed message; property name.
+     * <p>
+     * When compression is enabled, messages smaller than this number of
+     * bytes are sent uncompressed.
+     * <p>
+     * If you omit this property, the default value of 256 bytes is used.
+     *
+     * @see #connect
+     * @see #PROPERTY_COMPRESSION
+     */
+    public static final String PROPERTY_COMPRESSION_THRESHOLD = "compression_threshold";
+
+    /**
+     * Compress each message sent independently; property name.
+     * <p>
+     * When compression is enabled, programs use this property to
+     * compress each message sent to the server without reference to 
+     * previous messages. This reduces the memory used by the server
+     * at the cost of compression ratio.
+     * <p>
+     * If you omit this property, the default value of {@code false} is used.
+     *
+     * @see #connect
+     * @see #PROPERTY_COMPRESSION
+     */
+    public static final String PROPERTY_COMPRESSION_CLIENT_NO_CONTEXT_TAKEOVER = "compression_client_no_context_takeover";
+
+    /**
+     * Request that the server compress each message independently; property name.
+     * <p>
+     * When compression is enabled, programs use this property to
+     * request that the server compress each message sent to the client
+     * without reference to previous messages. The connection fails if
+     * the server does not agree.
+     * <p>
+     * If you omit this property, the default value of {@code false} is used.
+     *
+     * @see #connect
+     * @see #PROPERTY_COMPRESSION
+     */
+    public static final String PROPERTY_COMPRESSION_SERVER_NO_CONTEXT_TAKEOVER = "compression_server_no_context_takeover";
+
+    /**
+     * Pool network buffers; property name.
+     * <p>
+     * Programs use this property to request that the connection borrow
+     * the buffers that hold inbound messages from a pool shared by all 
+     * connections, rather than allocating them, reducing garbage 
+     * collection in programs that receive many messages. Connections
+     * using the {@link #TRANSPORT_NIO} transport also read from and
+     * write to pooled off-heap buffers.
+     * <p>
+     * If you omit this property, the default value of {@code false} is used.
+     *
+     * @see #connect
+     */
+    public static final String PROPERTY_BUFFER_POOL = "buffer_pool";
+
+    /**
+     * Connect attempt delay; property name.
+     * <p>
+     * Programs use this property to race connection attempts to the
+     * servers in the URL list, and to each of the addresses of a server,
+     * rather than trying them one at a time. Attempts are started this
+     * many seconds apart, or as soon as every earlier attempt has failed.
+     * The first attempt to complete the WebSocket handshake is used and
+     * the others are closed, so that an unreachable server delays the
+     * connection by this value rather than by the connect timeout.
+     * <p>
+     * If you omit this property, or specify 0, servers are tried one
+     * at a time.
+     *
+     * @see #connect
+     */
+    public static final String PROPERTY_CONNECT_ATTEMPT_DELAY = "connect_attempt_delay";
+
+    /**
+     * Send the login with the WebSocket upgrade request; property name.
+     * <p>
+     * Programs use this property to send the login request immediately
+     * after the WebSocket upgrade request rather than waiting for the
+     * server's upgrade response, removing a network round trip from
+     * connection establishment. The server must accept WebSocket frames
+     * sent ahead of its upgrade response.
+     * <p>
+     * If you omit this property, the default value of {@code false} is used.
+     *
+     * @see #connect
+     */
+    public static final String PROPERTY_PIPELINE_LOGIN = "pipeline_login";
+
+    /**
+     * Use the binary message encoding; property name.
+     * <p>
+     * Programs use this property to offer a compact binary encoding of
+     * protocol messages in addition to JSON. Double, date and opaque
+     * message fields are sent with typed tags, and opaque fields as raw
+     * bytes rather than Base64. JSON is used if the server does not
+     * support the binary encoding.
+     * <p>
+     * If you omit this property, the default value of {@code false} is used.
+     *
+     * @see #connect
+     */
+    public static final String PROPERTY_BINARY_ENCODING = "binary_encoding";
+
+    /**
+     * Maximum number of requests in flight; property name.
+     * <p>
+     * Published messages, requests, replies and key-value map operations
+     * are held by the connection until the server acknowledges them.
+     * Programs use this property to bound their number, so that a slow
+     * server cannot cause them to accumulate without limit. When the
+     * bound is reached, further operations wait or fail as selected by
+     * {@link #PROPERTY_IN_FLIGHT_POLICY}.
+     * <p>
+     * If you omit this property, or specify 0, the number of requests
+     * in flight is not bounded.
+     *
+     * @see #connect
+     * @see Connection#getInFlightMetrics
+     */
+    public static final String PROPERTY_MAX_IN_FLIGHT = "max_in_flight";
+
+    /**
+     * Behavior when the maximum number of requests in flight is reached;
+     * property name.
+     * <p>
+     * The following policies are supported:
+     *            <ul>
+     *             <li> {@link #IN_FLIGHT_POLICY_BLOCK}
+     *             <li> {@link #IN_FLIGHT_POLICY_FAIL}
+     *            </ul>
+     * <p>
+     * If you omit this property, the {@link #IN_FLIGHT_POLICY_BLOCK}
+     * policy is used.
+     *
+     * @see #connect
+     * @see #PROPERTY_MAX_IN_FLIGHT
+     */
+    public static final String PROPERTY_IN_FLIGHT_POLICY = "in_flight_policy";
+
+    /**
+     * Block policy.
+     * <p>
+     * An operation waits until earlier requests are acknowledged, or until
+     * the {@link #PROPERTY_IN_FLIGHT_TIMEOUT} elapses, in which case it
+     * throws an {@link IllegalStateException}.
+     * <p>
+     * Acknowledgments are processed on the thread that invokes the
+     * connection and subscription callbacks, so an operation performed
+     * from a callback cannot wait for them. Request timeouts of every
+     * connection are reported on one shared thread, which must not wait
+     * either. Such operations throw an {@link IllegalStateException} at
+     * once when the window is full.
+     *
+     * @see #PROPERTY_IN_FLIGHT_POLICY
+     */
+    public static final String IN_FLIGHT_POLICY_BLOCK = "block";
+
+    /**
+     * Fail policy.
+     * <p>
+     * An operation throws an {@link IllegalStateException} at once.
+     *
+     * @see #PROPERTY_IN_FLIGHT_POLICY
+     */
+    public static final String IN_FLIGHT_POLICY_FAIL = "fail";
+
+    /**
+     * Longest wait for room in the in-flight window; property name.
+     * <p>
+     * With the {@link #IN_FLIGHT_POLICY_BLOCK} policy, programs use this
+     * property to limit the number of seconds an operation waits.
+     * <p>
+     * If you omit this property, or specify 0, operations wait
+     * indefinitely.
+     *
+     * @see #connect
+     * @see #PROPERTY_IN_FLIGHT_POLICY
+     */
+    public static final String PROPERTY_IN_FLIGHT_TIMEOUT = "in_flight_timeout";
+
+    /**
+     * Maximum number of messages covered by one automatic acknowledgment;
+     * property name.
+     * <p>
+     * Messages consumed from subscriptions with the
+     * {@link #ACKNOWLEDGE_MODE_AUTO} acknowledgment mode are acknowledged
+     * together, with one acknowledgment per subscription for each burst
+     * of messages received, and before heartbeats and disconnects.
+     * Programs use this property to send an acknowledgment once this
+     * many messages have been consumed within a burst.
+     * <p>
+     * If you omit this property, the default value of 256 is used.
+     * A value of 1 acknowledges each message.
+     *
+     * @see #connect
+     */
+    public static final String PROPERTY_AUTO_ACK_BATCH_SIZE = "auto_ack_batch_size";
+
+    /**
+     * Maximum number of messages delivered in one call to
+     * {@link SubscriptionListener#onMessages}; property name.
+     * <p>
+     * Messages for the same subscription that are received together,
+     * in one burst from the server, are delivered together in one array.
+     * A burst delivers its messages once it has been read, or as soon as
+     * this many messages are held for a subscription.
+     * <p>
+     * If you omit this property, the default value of 1 is used, and
+     * each message is delivered as soon as it is received.
+     *
+     * @see #connect
+     * @see #PROPERTY_DELIVERY_BATCH_DELAY
+     */
+    public static final String PROPERTY_DELIVERY_BATCH_SIZE = "delivery_batch_size";
+
+    /**
+     * Maximum time a received message is held for batched delivery;
+     * property name.
+     * <p>
+     * When {@link #PROPERTY_DELIVERY_BATCH_SIZE} is greater than 1,
+     * programs use this property to bound the time (in seconds) that
+     * messages from a long burst are held before they are delivered.
+     * <p>
+     * If you omit this property, the default value of 0.01 seconds
+     * is used.
+     *
+     * @see #connect
+     * @see #PROPERTY_DELIVERY_BATCH_SIZE
+     */
+    public static final String PROPERTY_DELIVERY_BATCH_DELAY = "delivery_batch_delay";
+
     /**
      * Create a subscription with a specific acknowledgment mode.
      * <p>
@@ -323,6 +698,25 @@ public class EFTL
      *             <li> {@link #PROPERTY_AUTO_RECONNECT_ATTEMPTS}
      *             <li> {@link #PROPERTY_AUTO_RECONNECT_MAX_DELAY}
      *             <li> {@link #PROPERTY_MAX_PENDING_ACKS}
+     *             <li> {@link #PROPERTY_TRANSPORT}
+     *             <li> {@link #PROPERTY_VIRTUAL_THREADS}
+     *             <li> {@link #PROPERTY_FRAME_MASKING}
+     *             <li> {@link #PROPERTY_WRITE_MAX_FRAMES}
+     *             <li> {@link #PROPERTY_WRITE_MAX_BYTES}
+     *             <li> {@link #PROPERTY_COMPRESSION}
+     *             <li> {@link #PROPERTY_COMPRESSION_THRESHOLD}
+     *             <li> {@link #PROPERTY_COMPRESSION_CLIENT_NO_CONTEXT_TAKEOVER}
+     *             <li> {@link #PROPERTY_COMPRESSION_SERVER_NO_CONTEXT_TAKEOVER}
+     *             <li> {@link #PROPERTY_BUFFER_POOL}
+     *             <li> {@link #PROPERTY_CONNECT_ATTEMPT_DELAY}
+     *             <li> {@link #PROPERTY_PIPELINE_LOGIN}
+     *             <li> {@link #PROPERTY_BINARY_ENCODING}
+     *             <li> {@link #PROPERTY_MAX_IN_FLIGHT}
+     *             <li> {@link #PROPERTY_IN_FLIGHT_POLICY}
+     *             <li> {@link #PROPERTY_IN_FLIGHT_TIMEOUT}
+     *             <li> {@link #PROPERTY_AUTO_ACK_BATCH_SIZE}
+     *             <li> {@link #PROPERTY_DELIVERY_BATCH_SIZE}
+     *             <li> {@link #PROPERTY_DELIVERY_BATCH_DELAY}
      *            </ul>
      * @param listener Connection events invoke methods of this listener.
      * @throws IllegalArgumentException The URL is invalid.
@@ -335,4 +729,35 @@ public class EFTL
         connection.setTrustAll(trustAll);
         connection.connect(props);
     }
+
+    /**
+     * Connect to an eFTL server using a shared event loop group.
+     * <p>
+     * This call behaves like {@link #connect(String, Properties, ConnectionListener)}
+     * except that the connection performs its network I/O, heartbeats, 
+     * and reconnect timers on a thread of the supplied event loop group 
+     * instead of on threads of its own. Many connections can share 
+     * a single event loop group.
+     * <p>
+     * Connections created with an event loop group always use the 
+     * {@link #TRANSPORT_NIO} transport.
+     *
+     * @param url The call connects to the eFTL server at this URL.
+     * @param props These properties affect the connection attempt.
+     * @param listener Connection events invoke methods of this listener.
+     * @param group The connection uses a thread of this event loop group.
+     * @throws IllegalArgumentException The URL is invalid.
+     * @see #connect(String, Properties, ConnectionListener)
+     * @see EventLoopGroup
+     */
+    public static void connect(String url, Properties props, ConnectionListener listener, EventLoopGroup group)
+    {
+        if (group == null)
+            throw new IllegalArgumentException("event loop group is null");
+
+        WebSocketConnection connection = new WebSocketConnection(url, listener, group.next());
+        connection.setTrustStore(trustStore);
+        connection.setTrustAll(trustAll);
+        connection.connect(props);
+    }
 }
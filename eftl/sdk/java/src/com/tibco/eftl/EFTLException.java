@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+/**
+ * An operation resulted in an error.
+ * <p>
+ * The futures returned by the asynchronous methods of
+ * {@link Connection} and {@link KVMap} complete exceptionally
+ * with an instance of this class.
+ */
+@SuppressWarnings("serial")
+public class EFTLException extends Exception
+{
+    private final int code;
+
+    /**
+     * @param code This code categorizes the error.
+     * @param reason This string provides more detail about the error.
+     */
+    public EFTLException(int code, String reason)
+    {
+        super(reason);
+        this.code = code;
+    }
+
+    /**
+     * Gets the error code.
+     * <p>
+     * The codes are those passed to the corresponding listener,
+     * for example {@link CompletionListener#PUBLISH_FAILED},
+     * {@link RequestListener#REQUEST_TIMEOUT} or
+     * {@link KVMapListener#MAP_REQUEST_FAILED}.
+     *
+     * @return This code categorizes the error.
+     */
+    public int getCode()
+    {
+        return code;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.tibco.eftl.websocket.EventLoop;
+
+/**
+ * A fixed set of I/O threads shared by many connections.
+ * <p>
+ * Connections created with an event loop group perform their network
+ * reads and writes, heartbeats, and reconnect timers on one of the
+ * group's threads instead of creating threads of their own.
+ * Each connection is assigned to a single thread for its lifetime.
+ * <p>
+ * Connection, subscription, and completion callbacks of these connections
+ * are invoked on the group's threads and should not block.
+ *
+ * @see EFTL#connect(String, java.util.Properties, ConnectionListener, EventLoopGroup)
+ */
+public class EventLoopGroup
+{
+    private final EventLoop[] loops;
+    private final AtomicInteger index = new AtomicInteger();
+
+    /**
+     * Create an event loop group with one thread per available processor.
+     */
+    public EventLoopGroup()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an event loop group with the specified number of threads.
+     *
+     * @param numThreads The number of I/O threads.
+     * @throws IllegalArgumentException The number of threads is less than 1.
+     */
+    public EventLoopGroup(int numThreads)
+    {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("number of threads must be greater than 0");
+
+        loops = new EventLoop[numThreads];
+
+        for (int i = 0; i < numThreads; i++)
+            loops[i] = new EventLoop("EFTL EventLoop " + i);
+    }
+
+    /**
+     * Get the number of threads in this event loop group.
+     *
+     * @return The number of I/O threads.
+     */
+    public int getNumThreads()
+    {
+        return loops.length;
+    }
+
+    /**
+     * Stop the threads of this event loop group.
+     * <p>
+     * Connections using this group are closed without notification.
+     * Programs should disconnect all connections before calling this
+     * method.
+     */
+    public void shutdown()
+    {
+        for (EventLoop loop : loops)
+            loop.shutdown();
+    }
+
+    EventLoop next()
+    {
+        return loops[(index.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+}
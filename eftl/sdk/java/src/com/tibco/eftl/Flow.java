@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+/**
+ * Interfaces for demand-driven message streams.
+ * <p>
+ * These interfaces have the same methods and semantics as those of
+ * {@code java.util.concurrent.Flow}, which is not available on Java 8,
+ * so that programs can adapt between them with a one-line delegation.
+ *
+ * @see Connection#createPublisher
+ */
+public final class Flow
+{
+    private Flow()
+    {
+    }
+
+    /**
+     * A producer of items that a {@link Subscriber} receives as it
+     * requests them.
+     *
+     * @param <T> The type of the items.
+     */
+    public static interface Publisher<T>
+    {
+        /**
+         * Adds the subscriber.
+         * <p>
+         * The publisher calls {@link Subscriber#onSubscribe} with a
+         * new {@link Subscription}, or {@link Subscriber#onError} if
+         * the subscriber cannot be added.
+         *
+         * @param subscriber Deliver items to this subscriber.
+         */
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items.
+     * <p>
+     * The methods of a subscriber are called one at a time, in order.
+     *
+     * @param <T> The type of the items.
+     */
+    public static interface Subscriber<T>
+    {
+        /**
+         * The subscription has been created. No items are delivered
+         * until they are requested with {@link Subscription#request}.
+         *
+         * @param subscription The new subscription.
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * The next item, delivered against outstanding demand.
+         *
+         * @param item The next item.
+         */
+        public void onNext(T item);
+
+        /**
+         * The subscription has failed; no further items are delivered.
+         *
+         * @param throwable The cause of the failure.
+         */
+        public void onError(Throwable throwable);
+
+        /**
+         * The subscription has ended; no further items are delivered.
+         */
+        public void onComplete();
+    }
+
+    /**
+     * Links a {@link Publisher} and a {@link Subscriber}.
+     */
+    public static interface Subscription
+    {
+        /**
+         * Adds to the number of items the subscriber is ready to
+         * receive.
+         * <p>
+         * A demand of {@link Long#MAX_VALUE} or more is unbounded.
+         * A non-positive demand fails the subscription with an
+         * {@link IllegalArgumentException}.
+         *
+         * @param n The number of additional items.
+         */
+        public void request(long n);
+
+        /**
+         * Stops the delivery of items. Items may still be delivered
+         * for a short time after this call.
+         */
+        public void cancel();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Completes a future from the listener callbacks of an operation,
+ * on the given executor or else on the thread invoking the callback.
+ * <p>
+ * The asynchronous methods of {@link Connection} and {@link KVMap}
+ * pass one to the corresponding listener-based method.
+ */
+class FutureListener implements CompletionListener, RequestListener, KVMapListener
+{
+    private final CompletableFuture<Message> future = new CompletableFuture<Message>();
+    private final Executor executor;
+
+    FutureListener(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    CompletableFuture<Message> getFuture()
+    {
+        return future;
+    }
+
+    @Override
+    public void onCompletion(Message message)
+    {
+        complete(message, null);
+    }
+
+    @Override
+    public void onReply(Message reply)
+    {
+        complete(reply, null);
+    }
+
+    @Override
+    public void onSuccess(String key, Message value)
+    {
+        complete(value, null);
+    }
+
+    @Override
+    public void onError(Message message, int code, String reason)
+    {
+        complete(null, new EFTLException(code, reason));
+    }
+
+    @Override
+    public void onError(String key, Message value, int code, String reason)
+    {
+        complete(null, new EFTLException(code, reason));
+    }
+
+    private void complete(final Message value, final Throwable error)
+    {
+        if (executor == null)
+        {
+            completeNow(value, error);
+            return;
+        }
+
+        try
+        {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    completeNow(value, error);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void completeNow(Message value, Throwable error)
+    {
+        if (error != null)
+            future.completeExceptionally(error);
+        else
+            future.complete(value);
+    }
+}
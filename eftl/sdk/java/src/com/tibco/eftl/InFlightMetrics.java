@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of the in-flight window of a connection.
+ * <p>
+ * Published messages, requests, replies and key-value map operations
+ * are in flight from the time they are sent until the server
+ * acknowledges them or they fail. A batch of published messages counts
+ * as one in-flight request per message.
+ *
+ * @see Connection#getInFlightMetrics
+ * @see EFTL#PROPERTY_MAX_IN_FLIGHT
+ */
+public interface InFlightMetrics
+{
+    /**
+     * Gets the number of requests in flight.
+     *
+     * @return The number of requests in flight.
+     */
+    public int getInFlightCount();
+
+    /**
+     * Gets the maximum number of requests in flight.
+     *
+     * @return The maximum, or 0 if the number is not bounded.
+     */
+    public int getMaxInFlight();
+
+    /**
+     * Gets the largest number of requests in flight since the
+     * connection was created or the statistics were reset.
+     *
+     * @return The largest number of requests in flight.
+     */
+    public int getPeakInFlightCount();
+
+    /**
+     * Gets the number of operations that waited for the window.
+     *
+     * @return The number of operations that waited.
+     */
+    public long getBlockedCount();
+
+    /**
+     * Gets the total time operations waited for the window.
+     *
+     * @param unit Return the time in this unit.
+     *
+     * @return The total time operations waited.
+     */
+    public long getTotalBlockedTime(TimeUnit unit);
+
+    /**
+     * Gets the number of operations that failed because the window
+     * was full.
+     *
+     * @return The number of operations that failed.
+     */
+    public long getRejectedCount();
+
+    /**
+     * Resets the peak count, the blocked and rejected counts, and the
+     * total blocked time.
+     */
+    public void reset();
+}
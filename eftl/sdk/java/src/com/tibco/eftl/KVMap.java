@@ -1,5 +1,8 @@
 package com.tibco.eftl;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /**
  * Key-value map objects allow setting, getting, and removing key-value pairs 
  * in an FTL map. 
@@ -14,12 +17,61 @@ public interface KVMap {
      * @param listener This listener defines callback methods for
      *                 successful completion and for errors.
      *
-     * @throws IllegalStateException The connection is not open.
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
      * @throws IllegalArgumentException The message would exceed the
      *         eFTL server's maximum message size.
      */
     public void set(String key, Message value, KVMapListener listener);
 
+    /**
+     * Set a key-value pair in the map, overwriting any existing value.
+     * <p>
+     * The returned future completes with the value, or exceptionally
+     * with an {@link EFTLException} carrying a {@link KVMapListener}
+     * error code, on the thread that processes the response.
+     * <p>
+     * Like {@link #set}, this call blocks while the in-flight window of
+     * the connection is full under the
+     * {@link EFTL#IN_FLIGHT_POLICY_BLOCK} policy, and throws an
+     * {@link IllegalStateException} when it cannot wait, rather than
+     * failing the future.
+     *
+     * @param key Set the value for this key.
+     * @param value Set this value for the key.
+     *
+     * @return A future completed with the value.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     * @throws IllegalArgumentException The message would exceed the
+     *         eFTL server's maximum message size.
+     */
+    public default CompletableFuture<Message> setAsync(String key, Message value) {
+        return setAsync(key, value, null);
+    }
+
+    /**
+     * Set a key-value pair in the map, overwriting any existing value.
+     *
+     * @param key Set the value for this key.
+     * @param value Set this value for the key.
+     * @param executor The future is completed by a task run
+     *                 on this executor.
+     *
+     * @return A future completed with the value.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     * @throws IllegalArgumentException The message would exceed the
+     *         eFTL server's maximum message size.
+     */
+    public default CompletableFuture<Message> setAsync(String key, Message value, Executor executor) {
+        FutureListener listener = new FutureListener(executor);
+        set(key, value, listener);
+        return listener.getFuture();
+    }
+
     /**
      * Get the value of a key from the map, or <code>null</code> if the key is not set.
      *  
@@ -27,9 +79,50 @@ public interface KVMap {
      * @param listener This listener defines callback methods for
      *                 successful completion and for errors.
      * 
-     * @throws IllegalStateException The connection is not open.
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
      */
     public void get(String key, KVMapListener listener);
+
+    /**
+     * Get the value of a key from the map.
+     * <p>
+     * The returned future completes with the value, or <code>null</code>
+     * if the key is not set, or exceptionally with an
+     * {@link EFTLException} carrying a {@link KVMapListener} error code,
+     * on the thread that processes the response.
+     * <p>
+     * Like {@link #get}, this call may block while the in-flight window
+     * of the connection is full; see {@link #setAsync(String, Message)}.
+     *
+     * @param key Get the value for this key.
+     *
+     * @return A future completed with the value.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     */
+    public default CompletableFuture<Message> getAsync(String key) {
+        return getAsync(key, null);
+    }
+
+    /**
+     * Get the value of a key from the map.
+     *
+     * @param key Get the value for this key.
+     * @param executor The future is completed by a task run
+     *                 on this executor.
+     *
+     * @return A future completed with the value.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     */
+    public default CompletableFuture<Message> getAsync(String key, Executor executor) {
+        FutureListener listener = new FutureListener(executor);
+        get(key, listener);
+        return listener.getFuture();
+    }
     
     /**
      * Remove a key-value pair from the map.
@@ -38,7 +131,49 @@ public interface KVMap {
      * @param listener This listener defines callback methods for
      *                 successful completion and for errors.
      *
-     * @throws IllegalStateException The connection is not open.
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
      */
     public void remove(String key, KVMapListener listener);
+
+    /**
+     * Remove a key-value pair from the map.
+     * <p>
+     * The returned future completes once the key is removed, or
+     * exceptionally with an {@link EFTLException} carrying a
+     * {@link KVMapListener} error code, on the thread that processes
+     * the response.
+     * <p>
+     * Like {@link #remove}, this call may block while the in-flight
+     * window of the connection is full; see
+     * {@link #setAsync(String, Message)}.
+     *
+     * @param key Remove the value for this key.
+     *
+     * @return A future completed when the key is removed.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     */
+    public default CompletableFuture<Message> removeAsync(String key) {
+        return removeAsync(key, null);
+    }
+
+    /**
+     * Remove a key-value pair from the map.
+     *
+     * @param key Remove the value for this key.
+     * @param executor The future is completed by a task run
+     *                 on this executor.
+     *
+     * @return A future completed when the key is removed.
+     *
+     * @throws IllegalStateException The connection is not open, or the
+     *         in-flight window is full and this call cannot wait for room.
+     */
+    public default CompletableFuture<Message> removeAsync(String key, Executor executor) {
+        FutureListener listener = new FutureListener(executor);
+        remove(key, listener);
+        return listener.getFuture();
+    }
 }
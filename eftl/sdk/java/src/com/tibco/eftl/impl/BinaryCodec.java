@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.tibco.eftl.json.JsonArray;
+import com.tibco.eftl.json.JsonException;
+import com.tibco.eftl.json.JsonObject;
+
+/**
+ * The binary encoding of eFTL protocol messages, used in binary frames
+ * when the server selects the {@link ProtocolConstants#EFTL_WS_PROTOCOL_BINARY}
+ * subprotocol.
+ * <p>
+ * A message is encoded as a single value. Each value is a tag byte
+ * followed by the tag's content:
+ * <ul>
+ *  <li> null, false and true have no content
+ *  <li> long and date values are zigzag-encoded variable-length integers
+ *  <li> double values are 8 bytes, big-endian
+ *  <li> strings and opaque values are a variable-length byte count
+ *       followed by the UTF-8 or raw bytes
+ *  <li> arrays are a variable-length count followed by the elements
+ *  <li> objects are a variable-length count followed by each field
+ *       name, encoded as a string without a tag, and value
+ * </ul>
+ * The {@code _d_}, {@code _m_} and {@code _o_} objects that represent
+ * double, date and opaque message fields in JSON are encoded with their
+ * own tags, and opaque values are sent as raw bytes rather than Base64.
+ */
+final class BinaryCodec {
+
+    static final byte NULL = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+    static final byte LONG = 3;
+    static final byte DOUBLE = 4;
+    static final byte STRING = 5;
+    static final byte ARRAY = 6;
+    static final byte OBJECT = 7;
+    static final byte DOUBLE_FIELD = 8;
+    static final byte DATE_FIELD = 9;
+    static final byte OPAQUE_FIELD = 10;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_DEPTH = 256;
+
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    private BinaryCodec(byte[] buffer, int position, int limit) {
+        this.buffer = buffer;
+        this.position = position;
+        this.limit = limit;
+    }
+
+    /** Encodes a protocol message. */
+    static byte[] encode(JsonObject message) {
+        BinaryCodec codec = new BinaryCodec(new byte[256], 0, 0);
+        codec.writeValue(message, 0);
+        return Arrays.copyOf(codec.buffer, codec.position);
+    }
+
+    /**
+     * Encodes a protocol message up to the value of a further, last
+     * field. The encoded value is appended to complete the message.
+     */
+    static byte[] encodeHead(JsonObject message, String name) {
+        BinaryCodec codec = new BinaryCodec(new byte[64], 0, 0);
+        codec.writeByte(OBJECT);
+        codec.writeVarLong(message.size() + 1);
+        for (Map.Entry<String, Object> entry : message.entrySet()) {
+            codec.writeString(entry.getKey());
+            codec.writeValue(entry.getValue(), 1);
+        }
+        codec.writeString(name);
+        return Arrays.copyOf(codec.buffer, codec.position);
+    }
+
+    /** Decodes a protocol message. */
+    static JsonObject decode(byte[] data, int offset, int length) {
+        BinaryCodec codec = new BinaryCodec(data, offset, offset + length);
+        Object value = codec.readValue(0);
+        if (codec.position != codec.limit)
+            throw new JsonException("unexpected data after message");
+        if (!(value instanceof JsonObject))
+            throw new JsonException("message is not an object");
+        return (JsonObject) value;
+    }
+
+    // Encoding ///////////////////////////////////////////////////////////////
+
+    private void writeValue(Object value, int depth) {
+        if (depth > MAX_DEPTH)
+            throw new JsonException("message nested too deeply");
+
+        if (value == null) {
+            writeByte(NULL);
+        } else if (value instanceof String) {
+            writeByte(STRING);
+            writeString((String) value);
+        } else if (value instanceof Boolean) {
+            writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        } else if (value instanceof Double || value instanceof Float) {
+            writeByte(DOUBLE);
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            writeByte(LONG);
+            writeVarLong(((Number) value).longValue());
+        } else if (value instanceof JsonArray) {
+            JsonArray array = (JsonArray) value;
+            writeByte(ARRAY);
+            writeVarLong(array.size());
+            for (int i = 0, n = array.size(); i < n; i++)
+                writeValue(array.get(i), depth + 1);
+        } else if (value instanceof JsonObject) {
+            JsonObject object = (JsonObject) value;
+            if (object.size() != 1 || !writeField(object)) {
+                writeByte(OBJECT);
+                writeVarLong(object.size());
+                for (Map.Entry<String, Object> entry : object.entrySet()) {
+                    writeString(entry.getKey());
+                    writeValue(entry.getValue(), depth + 1);
+                }
+            }
+        } else {
+            writeByte(STRING);
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Encodes a single-member object that represents a double, date or
+     * opaque field. Returns false if the object is not one of these.
+     */
+    private boolean writeField(JsonObject object) {
+        Object value;
+        if ((value = object.get(JSONMessage.DOUBLE_FIELD)) != null) {
+            // non-finite values are represented as strings
+            if (value instanceof Number) {
+                writeByte(DOUBLE_FIELD);
+                writeDouble(((Number) value).doubleValue());
+                return true;
+            } else if (value instanceof String) {
+                try {
+                    double d = Double.parseDouble((String) value);
+                    writeByte(DOUBLE_FIELD);
+                    writeDouble(d);
+                    return true;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        } else if ((value = object.get(JSONMessage.MILLISECOND_FIELD)) != null) {
+            if (value instanceof Long || value instanceof Integer) {
+                writeByte(DATE_FIELD);
+                writeVarLong(((Number) value).longValue());
+                return true;
+            }
+        } else if ((value = object.get(JSONMessage.OPAQUE_FIELD)) != null) {
+            if (value instanceof String) {
+                byte[] bytes = Base64.decode(((String) value).getBytes(UTF8));
+                writeByte(OPAQUE_FIELD);
+                writeBytes(bytes, 0, bytes.length);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensure(int length) {
+        if (position + length > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+    }
+
+    private void writeByte(byte b) {
+        ensure(1);
+        buffer[position++] = b;
+    }
+
+    private void writeVarLong(long value) {
+        ensure(10);
+        // zigzag so that small negative values are short
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[position++] = (byte) v;
+    }
+
+    private void writeDouble(double value) {
+        ensure(8);
+        long bits = Double.doubleToRawLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8)
+            buffer[position++] = (byte) (bits >>> shift);
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) {
+        writeVarLong(length);
+        ensure(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    private void writeString(String value) {
+        int length = value.length();
+
+        // write ASCII strings directly, otherwise re-encode
+        ensure(10 + length);
+        int start = position;
+        writeVarLong(length);
+        int data = position;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                position = start;
+                byte[] bytes = value.getBytes(UTF8);
+                writeBytes(bytes, 0, bytes.length);
+                return;
+            }
+            buffer[data + i] = (byte) c;
+        }
+        position = data + length;
+    }
+
+    // Decoding ///////////////////////////////////////////////////////////////
+
+    private Object readValue(int depth) {
+        if (depth > MAX_DEPTH)
+            throw new JsonException("message nested too deeply");
+
+        byte tag = readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case FALSE:
+            return Boolean.FALSE;
+        case TRUE:
+            return Boolean.TRUE;
+        case LONG:
+            return Long.valueOf(readVarLong());
+        case DOUBLE:
+            return Double.valueOf(readDouble());
+        case STRING:
+            return readString();
+        case ARRAY: {
+            int count = readCount();
+            JsonArray array = new JsonArray();
+            array.ensureCapacity(count);
+            for (int i = 0; i < count; i++)
+                array.add(readValue(depth + 1));
+            return array;
+        }
+        case OBJECT: {
+            int count = readCount();
+            JsonObject object = new JsonObject();
+            for (int i = 0; i < count; i++) {
+                String key = readString();
+                object.put(key, readValue(depth + 1));
+            }
+            return object;
+        }
+        case DOUBLE_FIELD: {
+            double value = readDouble();
+            JsonObject object = new JsonObject();
+            if (Double.isNaN(value) || Double.isInfinite(value))
+                object.put(JSONMessage.DOUBLE_FIELD, Double.toString(value));
+            else
+                object.put(JSONMessage.DOUBLE_FIELD, value);
+            return object;
+        }
+        case DATE_FIELD: {
+            JsonObject object = new JsonObject();
+            object.put(JSONMessage.MILLISECOND_FIELD, readVarLong());
+            return object;
+        }
+        case OPAQUE_FIELD: {
+            int length = readCount();
+            JsonObject object = new JsonObject();
+            object.put(JSONMessage.OPAQUE_FIELD, Base64.encode(Arrays.copyOfRange(buffer, position, position + length)));
+            position += length;
+            return object;
+        }
+        default:
+            throw new JsonException("unknown tag " + tag);
+        }
+    }
+
+    private byte readByte() {
+        if (position >= limit)
+            throw new JsonException("unexpected end of message");
+        return buffer[position++];
+    }
+
+    private long readVarLong() {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return (v >>> 1) ^ -(v & 1);
+        }
+        throw new JsonException("invalid variable-length integer");
+    }
+
+    /** Reads a count or length that must fit in the remaining bytes. */
+    private int readCount() {
+        long count = readVarLong();
+        if (count < 0 || count > limit - position)
+            throw new JsonException("invalid length " + count);
+        return (int) count;
+    }
+
+    private double readDouble() {
+        if (limit - position < 8)
+            throw new JsonException("unexpected end of message");
+        long bits = 0;
+        for (int i = 0; i < 8; i++)
+            bits = (bits << 8) | (buffer[position++] & 0xFF);
+        return Double.longBitsToDouble(bits);
+    }
+
+    private String readString() {
+        int length = readCount();
+        String value = new String(buffer, position, length, UTF8);
+        position += length;
+        return value;
+    }
+}
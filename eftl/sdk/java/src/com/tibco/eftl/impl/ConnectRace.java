@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import com.tibco.eftl.websocket.BufferPool;
+import com.tibco.eftl.websocket.EventLoop;
+import com.tibco.eftl.websocket.WebSocket;
+import com.tibco.eftl.websocket.WebSocketListener;
+
+/**
+ * Races WebSocket connections to a list of servers and their addresses.
+ * <p>
+ * Attempts are started a fixed delay apart, or as soon as every started
+ * attempt has failed. The first attempt to complete the opening handshake
+ * wins and the others are closed. Once every attempt has failed the last
+ * failure is reported.
+ * <p>
+ * The server addresses are resolved on a thread of its own, since the
+ * race may be started on the event loop when reconnecting and a slow
+ * lookup would hold up every connection on the loop.
+ */
+class ConnectRace {
+
+    /**
+     * Creates the WebSocket of each attempt, and is told of the winning
+     * attempt, or of the last attempt to fail, before the listener.
+     */
+    interface Callback {
+        WebSocket createWebSocket(URI uri, WebSocketListener listener);
+        void onWinner(Attempt attempt);
+        void onFailure(Attempt attempt);
+    }
+
+    private final WebSocketListener listener;
+    private final Callback callback;
+    private final EventLoop eventLoop;
+    private final List<URI> urls;
+    private final int urlIndex;
+    private final long delay;
+    private final List<Attempt> attempts = new ArrayList<Attempt>();
+
+    private Timer timer;
+    private TimerTask task;
+    private EventLoop.Timeout timeout;
+    private int started;
+    private int failed;
+    private boolean done;
+    private boolean cancelled;
+    private volatile Attempt winner;
+
+    class Attempt implements WebSocketListener {
+        final int urlIndex;
+        final WebSocket webSocket;
+
+        Attempt(int urlIndex, URI uri, InetAddress address) {
+            this.urlIndex = urlIndex;
+            this.webSocket = callback.createWebSocket(uri, this);
+            this.webSocket.setAddress(address);
+        }
+
+        @Override
+        public void onOpen() {
+            if (won(this)) {
+                callback.onWinner(this);
+                listener.onOpen();
+            } else {
+                webSocket.forceClose();
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason) {
+            if (winner == this) {
+                listener.onClose(code, reason);
+            } else if (failed(this)) {
+                callback.onFailure(this);
+                listener.onClose(code, reason);
+            }
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+            if (winner == this) {
+                listener.onError(cause);
+            } else if (failed(this)) {
+                callback.onFailure(this);
+                listener.onError(cause);
+            }
+        }
+
+        @Override
+        public void onMessage(String text) {
+            if (winner == this)
+                listener.onMessage(text);
+        }
+
+        @Override
+        public void onTextMessage(byte[] data, int offset, int length) {
+            if (winner == this)
+                listener.onTextMessage(data, offset, length);
+        }
+
+        @Override
+        public void onMessage(byte[] data, int offset, int length) {
+            if (winner == this)
+                listener.onMessage(data, offset, length);
+        }
+
+        @Override
+        public void onMessage(byte[] data, int offset, int length, BufferPool pool) {
+            if (winner == this)
+                listener.onMessage(data, offset, length, pool);
+            else
+                pool.release(data);
+        }
+
+        @Override
+        public void onPong(byte[] data, int offset, int length) {
+            if (winner == this)
+                listener.onPong(data, offset, length);
+        }
+
+        @Override
+        public void onReadComplete() {
+            if (winner == this)
+                listener.onReadComplete();
+        }
+    }
+
+    /**
+     * @param listener Receives the events of the winning attempt, and
+     *                 the failure of the last attempt.
+     * @param urls The server URLs, tried starting at {@code urlIndex}.
+     * @param delay The delay between attempts in milliseconds.
+     */
+    ConnectRace(WebSocketListener listener, Callback callback, List<URI> urls, int urlIndex, long delay, EventLoop eventLoop) {
+        this.listener = listener;
+        this.callback = callback;
+        this.urls = urls;
+        this.urlIndex = urlIndex;
+        this.delay = delay;
+        this.eventLoop = eventLoop;
+    }
+
+    /** Resolves every server and creates the attempts in the order tried. */
+    private List<Attempt> createAttempts() {
+        // one list of addresses per server, in the order tried
+        List<List<InetAddress>> addresses = new ArrayList<List<InetAddress>>();
+        for (int i = 0; i < urls.size(); i++) {
+            addresses.add(resolve(urls.get((urlIndex + i) % urls.size())));
+        }
+
+        // take an address from each server in turn so that one server
+        // with many unreachable addresses does not hold up the others
+        List<Attempt> result = new ArrayList<Attempt>();
+        int count = countAll(addresses);
+        for (int round = 0; result.size() < count; round++) {
+            for (int i = 0; i < addresses.size(); i++) {
+                List<InetAddress> list = addresses.get(i);
+                if (round < list.size()) {
+                    int index = (urlIndex + i) % urls.size();
+                    result.add(new Attempt(index, urls.get(index), list.get(round)));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the addresses of the server, alternating between address
+     * families. Unknown hosts yield a single unresolved attempt whose
+     * failure is reported as usual.
+     */
+    private static List<InetAddress> resolve(URI uri) {
+        List<InetAddress> result = new ArrayList<InetAddress>();
+        try {
+            LinkedList<InetAddress> primary = new LinkedList<InetAddress>();
+            LinkedList<InetAddress> secondary = new LinkedList<InetAddress>();
+            InetAddress[] all = InetAddress.getAllByName(uri.getHost());
+            boolean ipv6 = (all[0] instanceof Inet6Address);
+            for (InetAddress address : all) {
+                if ((address instanceof Inet6Address) == ipv6)
+                    primary.add(address);
+                else
+                    secondary.add(address);
+            }
+            while (!primary.isEmpty() || !secondary.isEmpty()) {
+                if (!primary.isEmpty())
+                    result.add(primary.poll());
+                if (!secondary.isEmpty())
+                    result.add(secondary.poll());
+            }
+        } catch (UnknownHostException e) {
+            result.add(null);
+        }
+        return result;
+    }
+
+    private static int countAll(List<List<InetAddress>> addresses) {
+        int count = 0;
+        for (List<InetAddress> list : addresses)
+            count += list.size();
+        return count;
+    }
+
+    /** Resolves the servers and starts the first attempt. */
+    void start() {
+        Thread resolver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<Attempt> created = createAttempts();
+                synchronized (ConnectRace.this) {
+                    attempts.addAll(created);
+                    // when cancelled while resolving, one attempt is
+                    // still started so that its failure is reported
+                    if (cancelled)
+                        attempts.subList(1, attempts.size()).clear();
+                }
+                startNext();
+                boolean cancel;
+                synchronized (ConnectRace.this) {
+                    cancel = cancelled;
+                }
+                if (cancel)
+                    cancel();
+            }
+        }, "EFTL Resolver");
+        resolver.setDaemon(true);
+        resolver.start();
+    }
+
+    /**
+     * Closes every started attempt, including the winner, and starts
+     * no further attempts. The failure of the last attempt is reported
+     * as usual.
+     */
+    void cancel() {
+        List<Attempt> closing;
+        synchronized (this) {
+            cancelled = true;
+            cancelTimer();
+            // when no attempt has started yet, the first is kept for
+            // the resolver to start and close
+            if (!done)
+                attempts.subList(Math.min(Math.max(started, 1), attempts.size()), attempts.size()).clear();
+            closing = new ArrayList<Attempt>(attempts.subList(0, started));
+        }
+        for (Attempt attempt : closing)
+            attempt.webSocket.forceClose();
+    }
+
+    private void startNext() {
+        Attempt next;
+        synchronized (this) {
+            cancelTimer();
+            if (done || started == attempts.size())
+                return;
+            next = attempts.get(started++);
+            if (started < attempts.size())
+                scheduleNext();
+        }
+        next.webSocket.open();
+    }
+
+    private void scheduleNext() {
+        if (eventLoop != null) {
+            timeout = eventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    startNext();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } else {
+            if (timer == null)
+                timer = new Timer("EFTL Connect", true);
+            task = new TimerTask() {
+                @Override
+                public void run() {
+                    startNext();
+                }
+            };
+            timer.schedule(task, delay);
+        }
+    }
+
+    private void cancelTimer() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void finish() {
+        done = true;
+        cancelTimer();
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private boolean won(Attempt attempt) {
+        List<Attempt> losers;
+        synchronized (this) {
+            if (done)
+                return false;
+            winner = attempt;
+            finish();
+            losers = new ArrayList<Attempt>(attempts.subList(0, started));
+            losers.remove(attempt);
+        }
+        for (Attempt loser : losers)
+            loser.webSocket.forceClose();
+        return true;
+    }
+
+    /**
+     * Records a failed attempt and returns true if it was the last one.
+     * Starts the next attempt at once when no started attempt remains.
+     */
+    private boolean failed(Attempt attempt) {
+        boolean next = false;
+        synchronized (this) {
+            if (done)
+                return false;
+            if (++failed == attempts.size()) {
+                finish();
+                return true;
+            }
+            next = (failed == started);
+        }
+        if (next)
+            startNext();
+        return false;
+    }
+}
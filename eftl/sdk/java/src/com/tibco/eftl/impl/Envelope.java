@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import com.tibco.eftl.json.JsonObject;
+
+/**
+ * A protocol message whose last field was encoded separately.
+ * <p>
+ * Publishers encode the message body, the expensive part of a request,
+ * before a sequence number is assigned. The envelope fields are then
+ * encoded up to the body, and the writer joins the two when the request
+ * is sent.
+ */
+final class Envelope {
+
+    // the encoded envelope up to the field value, and the value,
+    // both JSON text or both the binary encoding
+    private final Object head;
+    private final Object value;
+
+    private Envelope(Object head, Object value) {
+        this.head = head;
+        this.value = value;
+    }
+
+    /**
+     * @param envelope The message fields other than the encoded one.
+     * @param name The name of the encoded field.
+     * @param value The encoded field value, in the encoding to use for
+     *              the envelope.
+     */
+    static Envelope of(JsonObject envelope, String name, Object value) {
+        if (value instanceof byte[])
+            return new Envelope(BinaryCodec.encodeHead(envelope, name), value);
+
+        String text = envelope.toString();
+        StringBuilder head = new StringBuilder(text.length() + name.length() + 4);
+        head.append(text, 0, text.length() - 1);
+        if (!envelope.isEmpty())
+            head.append(',');
+        head.append('"').append(name).append("\":");
+        return new Envelope(head.toString(), value);
+    }
+
+    int getLength() {
+        if (value instanceof byte[])
+            return ((byte[]) head).length + ((byte[]) value).length;
+        return ((String) head).length() + ((String) value).length() + 1;
+    }
+
+    /** Returns the complete message, JSON text or the binary encoding. */
+    Object join() {
+        if (value instanceof byte[]) {
+            byte[] head = (byte[]) this.head;
+            byte[] value = (byte[]) this.value;
+            byte[] data = new byte[head.length + value.length];
+            System.arraycopy(head, 0, data, 0, head.length);
+            System.arraycopy(value, 0, data, head.length, value.length);
+            return data;
+        }
+
+        String head = (String) this.head;
+        String value = (String) this.value;
+        return new StringBuilder(head.length() + value.length() + 1)
+            .append(head).append(value).append('}').toString();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.tibco.eftl.InFlightMetrics;
+
+/**
+ * Counts the requests in flight and bounds their number.
+ * <p>
+ * Requests are admitted without locking while the window has room.
+ * An operation that does not fit either fails at once or waits, up to
+ * a timeout, for released requests to make room. An operation is always
+ * admitted into an empty window, so that a batch larger than the window
+ * can still be sent.
+ * <p>
+ * An operation on the thread that processes the acknowledgments must
+ * not wait for them, nor one on the request timer thread, so such an
+ * operation fails at once whatever the policy.
+ */
+final class InFlightWindow implements InFlightMetrics {
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private volatile int max;
+    private volatile boolean block;
+    private volatile long timeoutNanos;
+
+    /**
+     * @param max The maximum number of requests in flight, or 0 for no bound.
+     * @param block Wait for room rather than fail at once.
+     * @param timeout The longest wait in milliseconds, or 0 to wait indefinitely.
+     */
+    void configure(int max, boolean block, long timeout) {
+        this.max = Math.max(0, max);
+        this.block = block;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+
+        // a larger window may admit the waiting operations
+        signal();
+    }
+
+    /**
+     * Admits the requests into the window.
+     *
+     * @param permits The number of requests.
+     * @param mayWait False on the thread that processes acknowledgments,
+     *                which would wait for itself, and on threads shared
+     *                with other connections.
+     *
+     * @throws IllegalStateException The window is full.
+     */
+    void acquire(int permits, boolean mayWait) {
+        if (tryAcquire(permits))
+            return;
+
+        if (!block) {
+            rejected.incrementAndGet();
+            throw new IllegalStateException("too many requests in flight");
+        }
+
+        if (!mayWait) {
+            rejected.incrementAndGet();
+            throw new IllegalStateException("too many requests in flight to wait on a callback thread");
+        }
+
+        long start = System.nanoTime();
+        long timeout = timeoutNanos;
+        long remaining = timeout;
+        boolean interrupted = false;
+        boolean acquired = false;
+
+        lock.lock();
+        waiters.incrementAndGet();
+        try {
+            while (!(acquired = tryAcquire(permits))) {
+                if (timeout == 0) {
+                    try {
+                        released.await();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        break;
+                    }
+                } else {
+                    if (remaining <= 0)
+                        break;
+                    try {
+                        remaining = released.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+
+            blocked.incrementAndGet();
+            blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        if (acquired)
+            return;
+
+        rejected.incrementAndGet();
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for requests in flight");
+        }
+
+        throw new IllegalStateException("timed out waiting for requests in flight");
+    }
+
+    private boolean tryAcquire(int permits) {
+        while (true) {
+            int current = count.get();
+            int limit = max;
+            if (limit > 0 && current > 0 && current + permits > limit)
+                return false;
+            if (count.compareAndSet(current, current + permits)) {
+                updatePeak(current + permits);
+                return true;
+            }
+        }
+    }
+
+    private void updatePeak(int value) {
+        for (int current = peak.get(); value > current; current = peak.get()) {
+            if (peak.compareAndSet(current, value))
+                break;
+        }
+    }
+
+    /** Releases requests from the window. */
+    void release(int permits) {
+        count.addAndGet(-permits);
+
+        // a waiter counted before its last attempt is signalled after it
+        if (waiters.get() > 0)
+            signal();
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return count.get();
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return max;
+    }
+
+    @Override
+    public int getPeakInFlightCount() {
+        return peak.get();
+    }
+
+    @Override
+    public long getBlockedCount() {
+        return blocked.get();
+    }
+
+    @Override
+    public long getTotalBlockedTime(TimeUnit unit) {
+        return unit.convert(blockedNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public void reset() {
+        peak.set(count.get());
+        blocked.set(0);
+        blockedNanos.set(0);
+        rejected.set(0);
+    }
+}
@@ -16,12 +16,12 @@ class MapRequest extends Request {
     private Message value;
     private KVMapListener listener;
 
-    MapRequest(final long seqNum, final String json, final String key, final KVMapListener listener) {
-        this(seqNum, json, key, null, listener);
+    MapRequest(final long seqNum, final Object payload, final String key, final KVMapListener listener) {
+        this(seqNum, payload, key, null, listener);
     }
 
-    MapRequest(final long seqNum, final String json, final String key, final Message value, final KVMapListener listener) {
-        super(seqNum, json);
+    MapRequest(final long seqNum, final Object payload, final String key, final Message value, final KVMapListener listener) {
+        super(seqNum, payload);
         this.key = key;
         this.value = value;
         this.listener = listener;
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tibco.eftl.*;
+
+/**
+ * Publishes the messages of a client acknowledged subscription.
+ * <p>
+ * Each subscriber gets its own subscription. A message is acknowledged
+ * once the subscriber's onNext returns, so the messages received but not
+ * yet requested by the subscriber are the unacknowledged messages, which
+ * the server bounds with the maximum pending acknowledgments of the
+ * connection. Demand is not sent to the server, so the connection is
+ * required to set a positive maximum for the queue to be bounded.
+ */
+class MessagePublisher implements Flow.Publisher<Message> {
+    private final WebSocketConnection connection;
+    private final String matcher;
+    private final String durable;
+    private final Properties props;
+
+    MessagePublisher(WebSocketConnection connection, String matcher, String durable, Properties props) {
+        this.connection = connection;
+        this.matcher = matcher;
+        this.durable = durable;
+        this.props = new Properties();
+        if (props != null)
+            this.props.putAll(props);
+        this.props.setProperty(EFTL.PROPERTY_ACKNOWLEDGE_MODE, EFTL.ACKNOWLEDGE_MODE_CLIENT);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber");
+
+        Stream stream = new Stream(subscriber);
+        subscriber.onSubscribe(stream);
+        stream.open();
+    }
+
+    private class Stream implements Flow.Subscription, SubscriptionListener {
+        private final Flow.Subscriber<? super Message> subscriber;
+
+        // received messages not yet delivered to the subscriber
+        private final ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<Message>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private volatile String subscriptionId;
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        Stream(Flow.Subscriber<? super Message> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void open() {
+            if (cancelled)
+                return;
+
+            try {
+                subscriptionId = connection.subscribe(matcher, durable, props, this);
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+
+            // cancelled before the subscription identifier was known
+            if (cancelled)
+                close();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("non-positive request: " + n));
+                return;
+            }
+
+            long current, next;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE)
+                    break;
+                next = current + n;
+                if (next < 0)
+                    next = Long.MAX_VALUE;
+            } while (!requested.compareAndSet(current, next));
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            close();
+            drain();
+        }
+
+        @Override
+        public void onMessages(Message[] messages) {
+            if (cancelled)
+                return;
+
+            for (Message message : messages)
+                queue.offer(message);
+
+            drain();
+        }
+
+        @Override
+        public void onSubscribe(String subscriptionId) {
+        }
+
+        @Override
+        public void onError(String subscriptionId, int code, String reason) {
+            fail(new EFTLException(code, reason));
+        }
+
+        private void fail(Throwable e) {
+            if (error == null)
+                error = e;
+            close();
+            drain();
+        }
+
+        private void close() {
+            String id = subscriptionId;
+            if (id == null || !closed.compareAndSet(false, true))
+                return;
+
+            try {
+                // leave a durable subscription to accumulate messages
+                if (durable != null)
+                    connection.closeSubscription(id);
+                else
+                    connection.unsubscribe(id);
+            } catch (UnsupportedOperationException e) {
+                connection.unsubscribe(id);
+            } catch (IllegalStateException e) {
+                // not connected
+            }
+        }
+
+        // Delivers the queued messages against the outstanding demand,
+        // on one thread at a time.
+        private void drain() {
+            if (wip.getAndIncrement() != 0)
+                return;
+
+            int missed = 1;
+            do {
+                while (!cancelled) {
+                    Throwable e = error;
+                    if (e != null) {
+                        cancelled = true;
+                        queue.clear();
+                        subscriber.onError(e);
+                        break;
+                    }
+
+                    if (requested.get() == 0)
+                        break;
+
+                    Message message = queue.poll();
+                    if (message == null)
+                        break;
+
+                    if (requested.get() != Long.MAX_VALUE)
+                        requested.decrementAndGet();
+
+                    try {
+                        subscriber.onNext(message);
+                    } catch (RuntimeException ex) {
+                        // a failed onNext ends the stream without
+                        // acknowledging the message
+                        cancelled = true;
+                        close();
+                        break;
+                    }
+
+                    try {
+                        connection.acknowledge(message);
+                    } catch (IllegalStateException ex) {
+                        // not connected; the message will be redelivered
+                    }
+                }
+
+                if (cancelled)
+                    queue.clear();
+
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
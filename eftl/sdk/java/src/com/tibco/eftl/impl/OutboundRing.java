@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The outbound request queue, a multi-producer single-consumer ring.
+ * <p>
+ * A producer claims the next sequence number, fills the claimed slot,
+ * and publishes it. Claiming is a single atomic increment, so producers
+ * never block one another, and the claimed sequence number doubles as
+ * the message sequence number of the request. The consumer takes slots
+ * strictly in sequence order and waits for a claimed slot to be
+ * published, so requests are written in sequence number order.
+ * <p>
+ * The ring is a list of fixed size segments that grows as needed and
+ * never blocks a producer, since requests must be accepted while the
+ * connection is being re-established.
+ * <p>
+ * A request that is assigned several consecutive sequence numbers
+ * occupies the slot of the first, and the consumer skips the others.
+ * <p>
+ * Only one thread at a time may call the consumer methods.
+ */
+final class OutboundRing {
+
+    static final int SEGMENT_SIZE = 1024;
+
+    // published for a claimed slot that carries no request
+    private static final Request SKIP = new Request(null);
+
+    private static final class Segment {
+        final long base;
+        final AtomicReferenceArray<Request> slots = new AtomicReferenceArray<Request>(SEGMENT_SIZE);
+        final AtomicReference<Segment> next = new AtomicReference<Segment>();
+
+        Segment(long base) {
+            this.base = base;
+        }
+    }
+
+    // the next sequence number to claim
+    private final AtomicLong tail = new AtomicLong(1);
+
+    // a recently used segment, at or before the segment of any
+    // sequence number claimed from now on
+    private volatile Segment tailSegment;
+
+    // the segment of the next sequence number to consume
+    private volatile Segment headSegment;
+
+    // the next sequence number to consume
+    private long head = 1;
+
+    // requests the consumer takes before those of the ring
+    private final ArrayDeque<Request> resent = new ArrayDeque<Request>();
+
+    private volatile Thread waiter;
+
+    OutboundRing() {
+        tailSegment = headSegment = new Segment(0);
+    }
+
+    // Producers //////////////////////////////////////////////////////////////
+
+    /** Claims the next sequence number. The slot must then be published. */
+    long claim() {
+        return tail.getAndIncrement();
+    }
+
+    /**
+     * Claims consecutive sequence numbers and returns the first. The
+     * slot of the first must then be published with a request of the
+     * same count, or each slot published empty.
+     */
+    long claim(int count) {
+        return tail.getAndAdd(count);
+    }
+
+    /**
+     * Publishes the request of a claimed slot. A null request publishes
+     * an empty slot, which the consumer skips.
+     */
+    void publish(long sequence, Request request) {
+        Segment segment = tailSegment;
+        if (segment.base > sequence)
+            segment = headSegment;
+
+        segment = find(segment, sequence);
+        if (segment.base > tailSegment.base)
+            tailSegment = segment;
+
+        segment.slots.set((int) (sequence - segment.base), (request != null ? request : SKIP));
+
+        Thread thread = waiter;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /** Claims a slot for the request and publishes it. */
+    void offer(Request request) {
+        publish(claim(), request);
+    }
+
+    private static Segment find(Segment segment, long sequence) {
+        while (sequence >= segment.base + SEGMENT_SIZE) {
+            Segment next = segment.next.get();
+            if (next == null) {
+                Segment created = new Segment(segment.base + SEGMENT_SIZE);
+                next = (segment.next.compareAndSet(null, created) ? created : segment.next.get());
+            }
+            segment = next;
+        }
+        return segment;
+    }
+
+    // Consumer ///////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the next request, or null if the next slot has not been
+     * published.
+     */
+    Request poll() {
+        if (!resent.isEmpty())
+            return resent.poll();
+
+        Segment segment = headSegment;
+        while (true) {
+            if (head >= segment.base + SEGMENT_SIZE) {
+                Segment next = segment.next.get();
+                if (next == null)
+                    return null;
+                headSegment = segment = next;
+                continue;
+            }
+
+            int index = (int) (head - segment.base);
+            Request request = segment.slots.get(index);
+            if (request == null)
+                return null;
+
+            segment.slots.lazySet(index, null);
+            head += request.getCount();
+
+            if (request != SKIP)
+                return request;
+        }
+    }
+
+    /**
+     * Returns the next request, waiting for it to be published.
+     */
+    Request take() throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+
+        Request request;
+        while ((request = poll()) == null) {
+            waiter = Thread.currentThread();
+            try {
+                // a producer that published after the poll sees the waiter
+                if ((request = poll()) != null)
+                    return request;
+                LockSupport.park(this);
+            } finally {
+                waiter = null;
+            }
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        return request;
+    }
+
+    /** Adds up to max published requests to the list. */
+    int drainTo(List<Request> list, int max) {
+        int count = 0;
+        Request request;
+        while (count < max && (request = poll()) != null) {
+            list.add(request);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Discards the published requests, up to the first slot that has
+     * been claimed but not yet published. Returns the sequence number
+     * of that slot; requests from there on remain queued.
+     */
+    long discard() {
+        resent.clear();
+        while (poll() != null)
+            ;
+        return head;
+    }
+
+    /** Queues requests to be taken before those remaining in the ring. */
+    void resend(Collection<? extends Request> requests) {
+        resent.addAll(requests);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The unacknowledged requests, indexed by sequence number.
+ * <p>
+ * Requests are held in a ring of slots indexed by sequence number
+ * modulo its power of two capacity, covering the sequence numbers from
+ * the oldest request still held. A request assigned several consecutive
+ * sequence numbers occupies the slot of each. Adding and removing a
+ * request therefore stores or clears array slots, without allocating
+ * or boxing.
+ * <p>
+ * The ring grows, up to a maximum capacity, when a request is added
+ * beyond its range. Past that, the oldest requests, the stragglers still
+ * awaiting a response while many later requests have completed, are
+ * moved to an ordered map so that the ring keeps covering new requests.
+ * <p>
+ * Every operation is a short critical section on this object, and no
+ * request callbacks are invoked while holding it.
+ */
+final class PendingRequests {
+
+    static final int INITIAL_CAPACITY = 1024;
+    static final int MAX_CAPACITY = 64 * 1024;
+
+    private Request[] slots = new Request[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+
+    // the slots cover the sequence numbers from low up to high
+    private long low = 1;
+    private long high = 1;
+
+    // the requests moved out of the ring
+    private final TreeMap<Long, Request> stragglers = new TreeMap<Long, Request>();
+
+    private static final Comparator<Request> ORDER = new Comparator<Request>() {
+        @Override
+        public int compare(Request r1, Request r2) {
+            return Long.compare(r1.getSeqNum(), r2.getSeqNum());
+        }
+    };
+
+    /** Adds a request assigned the sequence number. */
+    synchronized void put(long seqNum, Request request) {
+        int count = request.getCount();
+        if (count > MAX_CAPACITY) {
+            stragglers.put(seqNum, request);
+            return;
+        }
+
+        if (low == high) {
+            // the ring is empty, start its range at the request
+            low = high = seqNum;
+        } else if (seqNum < low) {
+            // the skipped slots down to a late request are empty
+            if (high - seqNum > slots.length) {
+                stragglers.put(seqNum, request);
+                return;
+            }
+            low = seqNum;
+        }
+
+        long end = seqNum + count;
+        if (end > high)
+            high = end;
+
+        // make room in the ring for the whole request
+        if (end - low > slots.length) {
+            advance(seqNum);
+            while (end - low > slots.length && slots.length < MAX_CAPACITY)
+                grow();
+            if (end - low > slots.length)
+                evict(end - slots.length);
+        }
+
+        for (long seq = seqNum; seq < end; seq++)
+            slots[(int) (seq & mask)] = request;
+    }
+
+    /** Returns the request assigned the sequence number, or null. */
+    synchronized Request get(long seqNum) {
+        if (seqNum >= low && seqNum < high) {
+            Request request = slots[(int) (seqNum & mask)];
+            if (request != null && covers(request, seqNum))
+                return request;
+        }
+
+        if (stragglers.isEmpty())
+            return null;
+        Map.Entry<Long, Request> entry = stragglers.floorEntry(seqNum);
+        if (entry == null || !covers(entry.getValue(), seqNum))
+            return null;
+        return entry.getValue();
+    }
+
+    private static boolean covers(Request request, long seqNum) {
+        return (seqNum >= request.getSeqNum() && seqNum < request.getSeqNum() + request.getCount());
+    }
+
+    /**
+     * Removes the request assigned the sequence number if it is the given
+     * request, and returns true if it was removed.
+     */
+    synchronized boolean remove(long seqNum, Request request) {
+        if (seqNum >= low && seqNum < high && slots[(int) (seqNum & mask)] == request) {
+            clear(request);
+            advance(high);
+            return true;
+        }
+        return (!stragglers.isEmpty() && stragglers.remove(seqNum, request));
+    }
+
+    /**
+     * Returns, in sequence number order, the requests assigned sequence
+     * numbers from the first up to and including the last.
+     */
+    synchronized List<Request> range(long first, long last) {
+        List<Request> list = new ArrayList<Request>();
+
+        long end = Math.min(last + 1, high);
+        for (long seq = Math.max(first, low); seq < end; seq++) {
+            Request request = slots[(int) (seq & mask)];
+
+            // a request occupying several slots is listed once
+            if (request != null && (request.getSeqNum() == seq || (seq == first && covers(request, seq))))
+                list.add(request);
+        }
+
+        if (!stragglers.isEmpty() && first <= last) {
+            Map.Entry<Long, Request> entry = stragglers.lowerEntry(first);
+            if (entry != null && covers(entry.getValue(), first))
+                list.add(entry.getValue());
+            list.addAll(stragglers.subMap(first, true, last, true).values());
+            Collections.sort(list, ORDER);
+        }
+
+        return list;
+    }
+
+    /** Removes every request and returns them in sequence number order. */
+    synchronized List<Request> clear() {
+        List<Request> list = new ArrayList<Request>();
+
+        for (long seq = low; seq < high; seq++) {
+            Request request = slots[(int) (seq & mask)];
+            if (request != null && request.getSeqNum() == seq)
+                list.add(request);
+            slots[(int) (seq & mask)] = null;
+        }
+        low = high;
+
+        // every straggler, including requests too large for the ring,
+        // which lie beyond its range
+        if (!stragglers.isEmpty()) {
+            list.addAll(stragglers.values());
+            stragglers.clear();
+            Collections.sort(list, ORDER);
+        }
+
+        return list;
+    }
+
+    private void clear(Request request) {
+        long end = request.getSeqNum() + request.getCount();
+        for (long seq = request.getSeqNum(); seq < end; seq++)
+            slots[(int) (seq & mask)] = null;
+    }
+
+    // moves low past the empty slots, up to the limit
+    private void advance(long limit) {
+        while (low < limit && slots[(int) (low & mask)] == null)
+            low++;
+    }
+
+    private void grow() {
+        Request[] grown = new Request[slots.length * 2];
+        int grownMask = grown.length - 1;
+        for (long seq = low; seq < high && seq < low + slots.length; seq++)
+            grown[(int) (seq & grownMask)] = slots[(int) (seq & mask)];
+        slots = grown;
+        mask = grownMask;
+    }
+
+    // moves the requests below the sequence number to the stragglers
+    private void evict(long seqNum) {
+        while (low < seqNum) {
+            Request request = slots[(int) (low & mask)];
+            if (request != null) {
+                clear(request);
+                stragglers.put(request.getSeqNum(), request);
+            }
+            low++;
+        }
+    }
+}
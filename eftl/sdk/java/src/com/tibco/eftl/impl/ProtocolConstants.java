@@ -13,6 +13,9 @@ public interface ProtocolConstants
 {
     // WebSocket protocol
     public static String EFTL_WS_PROTOCOL = "v1.eftl.tibco.com";
+    
+    // WebSocket protocol with binary encoded messages
+    public static String EFTL_WS_PROTOCOL_BINARY = "v1.binary.eftl.tibco.com";
  
     // eFTL protocol version
     public static int PROTOCOL_VERSION = 1;
@@ -15,8 +15,8 @@ class Publish extends Request {
     private Message message;
     private CompletionListener listener;
 
-    Publish(final long seqNum, final String json, final Message message, final CompletionListener listener) {
-        super(seqNum, json);
+    Publish(final long seqNum, final Object payload, final Message message, final CompletionListener listener) {
+        super(seqNum, payload);
         this.message = message;
         this.listener = listener;
     }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.tibco.eftl.*;
+import com.tibco.eftl.json.JsonObject;
+
+/**
+ * A batch of published messages, assigned consecutive sequence numbers
+ * starting at the sequence number of the batch.
+ * <p>
+ * The batch is one outbound request and one unacknowledged request.
+ * Each message is still sent as its own protocol message, and the
+ * outcome of each is recorded until every message has one.
+ */
+class PublishBatch extends Request {
+    private Message[] messages;
+    private Object[] bodies;
+    private boolean sequenced;
+    private BatchCompletionListener listener;
+    private int length;
+
+    // messages without an outcome
+    private boolean[] pending;
+    private int remaining;
+    private boolean failed;
+
+    /**
+     * @param bodies The encoded message bodies.
+     * @param sequenced Include the sequence numbers in the messages.
+     */
+    PublishBatch(final long seqNum, final Message[] messages, final Object[] bodies, final boolean sequenced, final BatchCompletionListener listener) {
+        super(seqNum, null);
+        this.messages = messages;
+        this.bodies = bodies;
+        this.sequenced = sequenced;
+        this.listener = listener;
+        this.pending = new boolean[messages.length];
+        this.remaining = messages.length;
+
+        Arrays.fill(pending, true);
+
+        int max = 0;
+        for (Object body : bodies)
+            max = Math.max(max, (body instanceof byte[] ? ((byte[]) body).length : ((String) body).length()));
+
+        // the envelope with the last sequence number is the longest
+        Object empty = (bodies[0] instanceof byte[] ? new byte[0] : "");
+        this.length = Envelope.of(envelope(messages.length - 1), ProtocolConstants.BODY_FIELD, empty).getLength() + max;
+    }
+
+    @Override
+    int getCount() {
+        return messages.length;
+    }
+
+    /** Returns the length of the longest message. */
+    @Override
+    int getLength() {
+        return length;
+    }
+
+    private JsonObject envelope(int index) {
+        JsonObject envelope = new JsonObject();
+        envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MESSAGE);
+        if (sequenced)
+            envelope.put(ProtocolConstants.SEQ_NUM_FIELD, getSeqNum() + index);
+        return envelope;
+    }
+
+    /**
+     * Returns the encoded messages without an outcome, and adds their
+     * sequence numbers to the list.
+     */
+    synchronized List<Object> getPayloads(boolean binary, List<Long> seqNums) {
+        List<Object> payloads = new ArrayList<Object>(remaining);
+        for (int i = 0; i < messages.length; i++) {
+            if (pending[i]) {
+                payloads.add(convert(Envelope.of(envelope(i), ProtocolConstants.BODY_FIELD, bodies[i]), binary));
+                seqNums.add(getSeqNum() + i);
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Records the success of one message and returns true if every
+     * message now has an outcome.
+     */
+    synchronized boolean acknowledge(long seqNum) {
+        int index = (int) (seqNum - getSeqNum());
+        if (pending[index]) {
+            pending[index] = false;
+            remaining--;
+        }
+        return (remaining == 0);
+    }
+
+    /**
+     * Records the success of every message up to and including the
+     * sequence number, and returns true if every message now has an
+     * outcome.
+     */
+    synchronized boolean acknowledgeThrough(long seqNum) {
+        int last = (int) Math.min(seqNum - getSeqNum(), messages.length - 1);
+        for (int i = 0; i <= last; i++) {
+            if (pending[i]) {
+                pending[i] = false;
+                remaining--;
+            }
+        }
+        return (remaining == 0);
+    }
+
+    /**
+     * Reports the failure of one message and returns true if every
+     * message now has an outcome.
+     */
+    boolean fail(long seqNum, int code, String reason) {
+        int index = (int) (seqNum - getSeqNum());
+        boolean done;
+        synchronized (this) {
+            if (!pending[index])
+                return (remaining == 0);
+            pending[index] = false;
+            failed = true;
+            done = (--remaining == 0);
+        }
+        if (listener != null)
+            listener.onError(messages, index, 1, code, reason);
+        return done;
+    }
+
+    @Override
+    boolean hasListener() {
+        return (listener != null);
+    }
+
+    @Override
+    void onSuccess(Message response) {
+        boolean completed;
+        synchronized (this) {
+            completed = !failed;
+        }
+        if (listener != null && completed) {
+            listener.onCompletion(messages);
+        }
+    }
+
+    @Override
+    void onError(String reason) {
+        onError(CompletionListener.PUBLISH_FAILED, reason);
+    }
+
+    /** Reports the failure of every message without an outcome. */
+    @Override
+    void onError(int code, String reason) {
+        List<int[]> ranges = new ArrayList<int[]>();
+        synchronized (this) {
+            for (int i = 0; i < messages.length; i++) {
+                if (!pending[i])
+                    continue;
+                int start = i;
+                while (i < messages.length && pending[i]) {
+                    pending[i++] = false;
+                }
+                ranges.add(new int[] {start, i - start});
+            }
+            failed = true;
+            remaining = 0;
+        }
+        if (listener != null) {
+            for (int[] range : ranges) {
+                listener.onError(messages, range[0], range[1], code, reason);
+            }
+        }
+    }
+}
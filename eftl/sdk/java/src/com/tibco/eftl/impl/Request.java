@@ -10,26 +10,70 @@
 package com.tibco.eftl.impl;
 
 import com.tibco.eftl.Message;
+import com.tibco.eftl.json.JsonObject;
+import com.tibco.eftl.json.JsonValue;
 
 class Request {
-    private String json;
+    // JSON text, the binary encoding of the request,
+    // or an envelope the writer completes
+    private Object payload;
     private long seqNum;
 
-    Request(String json) {
-        this.json = json;
+    Request(Object payload) {
+        this.payload = payload;
     }
 
-    Request(long seqNum, String json) {
+    Request(long seqNum, Object payload) {
         this.seqNum = seqNum;
-        this.json = json;
+        this.payload = payload;
     }
 
     long getSeqNum() {
         return seqNum;
     }
 
+    /**
+     * Returns the number of consecutive sequence numbers
+     * assigned to the request.
+     */
+    int getCount() {
+        return 1;
+    }
+
     String getJson() {
-        return json;
+        return (String) convert(payload, false);
+    }
+
+    byte[] getBinary() {
+        return (byte[]) convert(payload, true);
+    }
+
+    /** Returns an encoded message in the given encoding. */
+    static Object convert(Object payload, boolean binary) {
+        if (payload instanceof Envelope)
+            payload = ((Envelope) payload).join();
+        if (binary == (payload instanceof byte[]))
+            return payload;
+        if (binary)
+            return BinaryCodec.encode((JsonObject) JsonValue.parse((String) payload));
+        byte[] data = (byte[]) payload;
+        return BinaryCodec.decode(data, 0, data.length).toString();
+    }
+
+    /**
+     * Returns the request in the given encoding, converting it if the
+     * request was encoded for a previous connection.
+     */
+    Object getPayload(boolean binary) {
+        return (binary ? getBinary() : getJson());
+    }
+
+    int getLength() {
+        if (payload instanceof Envelope)
+            return ((Envelope) payload).getLength();
+        if (payload instanceof byte[])
+            return ((byte[]) payload).length;
+        return ((String) payload).length();
     }
 
     boolean hasListener() {
@@ -41,4 +85,7 @@ class Request {
     void onError(String reason) {}
 
     void onError(int code, String reason) {}
+
+    /** Called when the request is not sent after all, without a callback. */
+    void abandon() {}
 }
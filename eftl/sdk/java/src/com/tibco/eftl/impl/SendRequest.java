@@ -9,25 +9,34 @@
  */
 package com.tibco.eftl.impl;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import com.tibco.eftl.*;
 
 class SendRequest extends Request {
     private Message message;
     private RequestListener listener;
-    private Timer timer;
+    private TimerWheel.Timeout timeout;
 
-    SendRequest(final long seqNum, final String json, final Message message, final RequestListener listener) {
-        super(seqNum, json);
+    SendRequest(final long seqNum, final Object payload, final Message message, final RequestListener listener) {
+        super(seqNum, payload);
         this.message = message;
         this.listener = listener;
-        this.timer = new Timer("request timer " + seqNum);
     }
 
-    void setTimeout(long timeout, TimerTask task) {
-        timer.schedule(task, timeout);
+    void setTimeout(long timeout, Runnable task) {
+        // request timeouts share one timer thread
+        this.timeout = TimerWheel.getDefault().schedule(task, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimeout() {
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    @Override
+    void abandon() {
+        cancelTimeout();
     }
 
     @Override
@@ -41,7 +50,7 @@ class SendRequest extends Request {
             listener.onReply(response);
         }
 
-        timer.cancel();
+        cancelTimeout();
     }
 
     @Override
@@ -50,7 +59,7 @@ class SendRequest extends Request {
             listener.onError(message, RequestListener.REQUEST_FAILED, reason);
         }
 
-        timer.cancel();
+        cancelTimeout();
     }
 
     @Override
@@ -59,6 +68,6 @@ class SendRequest extends Request {
             listener.onError(message, code, reason);
         }
 
-        timer.cancel();
+        cancelTimeout();
     }
 }
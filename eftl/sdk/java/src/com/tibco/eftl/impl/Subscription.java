@@ -9,6 +9,8 @@
  */
 package com.tibco.eftl.impl;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import com.tibco.eftl.*;
@@ -23,6 +25,9 @@ public class Subscription
     private String id;
     private boolean pending;
     private long lastSeqNum;
+    private long ackSeqNum;
+    private long receivedSeqNum;
+    private final List<Message> received = new ArrayList<Message>();
  
     enum AcknowledgeMode 
     {
@@ -103,6 +108,31 @@ public class Subscription
         this.lastSeqNum = seqNum;
     }
     
+    long getAckSeqNum()
+    {
+        return ackSeqNum;
+    }
+    
+    void setAckSeqNum(long seqNum)
+    {
+        this.ackSeqNum = seqNum;
+    }
+    
+    List<Message> getReceived()
+    {
+        return received;
+    }
+    
+    long getReceivedSeqNum()
+    {
+        return receivedSeqNum;
+    }
+    
+    void setReceivedSeqNum(long seqNum)
+    {
+        this.receivedSeqNum = seqNum;
+    }
+    
     private static AcknowledgeMode getAckMode(Properties props)
     {
         if (props == null)
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel that runs timed tasks on a single thread.
+ * <p>
+ * The wheel is an array of buckets, each a list of the timeouts that
+ * expire when the wheel turns to it, possibly after a number of further
+ * rounds. Scheduling and cancelling only add the timeout to a queue, and
+ * the wheel thread moves it into or out of its bucket on the next tick,
+ * so both take constant time however many timeouts are pending.
+ * <p>
+ * Timeouts fire up to one tick late. Tasks run on the wheel thread and
+ * should not block. The request timeouts of every connection share the
+ * default wheel, and their tasks invoke the request listeners, so
+ * operations that would wait fail at once on its thread instead.
+ */
+final class TimerWheel implements Runnable {
+
+    private static final long DEFAULT_TICK_MILLIS = 10;
+    private static final int DEFAULT_SIZE = 512;
+
+    // the most timeouts moved into buckets per tick, so that a burst
+    // of scheduling does not delay expiry
+    private static final int MAX_TRANSFERS = 100000;
+
+    private static volatile TimerWheel defaultWheel;
+
+    static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state;
+
+        // owned by the wheel thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /** Cancels the timeout, unless it has already fired. */
+        void cancel() {
+            if (STATE.compareAndSet(this, PENDING, CANCELLED))
+                wheel.cancelled.offer(this);
+        }
+
+        boolean isCancelled() {
+            return (state == CANCELLED);
+        }
+
+        private boolean expire() {
+            return STATE.compareAndSet(this, PENDING, EXPIRED);
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            else
+                head = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            else
+                tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /** Runs the timeouts due by the deadline. */
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0 && timeout.deadline - deadline <= 0) {
+                    remove(timeout);
+                    if (timeout.expire()) {
+                        try {
+                            timeout.task.run();
+                        } catch (Exception e) {
+                            // discard exceptions thrown by the task
+                        }
+                    }
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Thread thread;
+
+    // the start of the wheel and the ticks it has turned, owned by the wheel thread
+    private volatile long startTime;
+    private long tick;
+
+    /**
+     * Returns the wheel shared by all connections.
+     */
+    static synchronized TimerWheel getDefault() {
+        if (defaultWheel == null) {
+            defaultWheel = new TimerWheel("EFTL Request Timer", DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_SIZE);
+        }
+        return defaultWheel;
+    }
+
+    /**
+     * Returns true when invoked on the thread of the default wheel, which
+     * runs the request timeouts of every connection.
+     */
+    static boolean inDefaultThread() {
+        TimerWheel wheel = defaultWheel;
+        return (wheel != null && wheel.thread == Thread.currentThread());
+    }
+
+    /**
+     * @param size The number of buckets, rounded up to a power of two.
+     */
+    TimerWheel(String name, long tick, TimeUnit unit, int size) {
+        this.name = name;
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+
+        int n = 1;
+        while (n < size)
+            n <<= 1;
+        this.buckets = new Bucket[n];
+        for (int i = 0; i < n; i++)
+            buckets[i] = new Bucket();
+        this.mask = n - 1;
+    }
+
+    /** Runs the task once the delay has elapsed. */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        start();
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        scheduled.offer(timeout);
+        return timeout;
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            startTime = System.nanoTime();
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (true) {
+            long deadline = waitForNextTick();
+
+            removeCancelled();
+            transferScheduled();
+
+            buckets[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    /** Waits for the next tick and returns its time. */
+    private long waitForNextTick() {
+        long deadline = startTime + (tick + 1) * tickNanos;
+        for (long now = System.nanoTime(); deadline - now > 0; now = System.nanoTime())
+            LockSupport.parkNanos(this, deadline - now);
+        return deadline;
+    }
+
+    private void removeCancelled() {
+        for (Timeout timeout; (timeout = cancelled.poll()) != null;) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFERS; i++) {
+            Timeout timeout = scheduled.poll();
+            if (timeout == null)
+                break;
+            if (timeout.isCancelled())
+                continue;
+
+            // the tick at which the timeout is due, never one already passed
+            long due = Math.max(tick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (due - tick) / buckets.length;
+            buckets[(int) (due & mask)].add(timeout);
+        }
+    }
+}
@@ -16,14 +16,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -31,19 +29,30 @@ import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
+import com.tibco.eftl.BatchCompletionListener;
 import com.tibco.eftl.CompletionListener;
 import com.tibco.eftl.Connection;
 import com.tibco.eftl.ConnectionListener;
 import com.tibco.eftl.RequestListener;
 import com.tibco.eftl.EFTL;
+import com.tibco.eftl.Flow;
+import com.tibco.eftl.InFlightMetrics;
 import com.tibco.eftl.KVMap;
 import com.tibco.eftl.KVMapListener;
 import com.tibco.eftl.Message;
 import com.tibco.eftl.SubscriptionListener;
 import com.tibco.eftl.Version;
 import com.tibco.eftl.json.JsonArray;
+import com.tibco.eftl.json.JsonByteParser;
+import com.tibco.eftl.json.JsonException;
 import com.tibco.eftl.json.JsonObject;
 import com.tibco.eftl.json.JsonValue;
+import com.tibco.eftl.websocket.BufferPool;
+import com.tibco.eftl.websocket.EventLoop;
+import com.tibco.eftl.websocket.MaskGenerator;
+import com.tibco.eftl.websocket.NioWebSocket;
+import com.tibco.eftl.websocket.PerMessageDeflate;
+import com.tibco.eftl.websocket.VirtualThreads;
 import com.tibco.eftl.websocket.WebSocket;
 import com.tibco.eftl.websocket.WebSocketListener;
 
@@ -53,7 +62,8 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
     protected int urlIndex;
     protected Properties props = new Properties();
     protected ConnectionListener listener;
-    protected WebSocket webSocket;
+    protected volatile WebSocket webSocket;
+    protected volatile ConnectRace race;
     protected TrustManager[] trustManagers;
     protected boolean trustAll;
     protected String clientId;
@@ -62,25 +72,90 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
     protected int maxMessageSize;
     protected int reconnectAttempts;
     protected boolean qos;
+    protected volatile boolean binary;
+    protected int writeMaxFrames;
+    protected int writeMaxBytes;
+    protected int autoAckBatchSize;
+    protected int deliveryBatchSize;
+    protected long deliveryBatchDelay;
     protected Thread writer;
     protected Timer reconnectTimer;
+    protected EventLoop eventLoop;
+    protected EventLoop.Timeout reconnectTimeout;
+    protected AtomicBoolean writeScheduled = new AtomicBoolean();
     protected AtomicBoolean connected = new AtomicBoolean();
     protected AtomicBoolean connecting = new AtomicBoolean();
     protected AtomicBoolean reconnecting = new AtomicBoolean();
-    protected AtomicLong messageIdGenerator = new AtomicLong();
     protected AtomicLong requestIdGenerator = new AtomicLong();
     protected AtomicLong subscriptionIdGenerator = new AtomicLong();
     protected ConcurrentHashMap<String, Subscription> subscriptions = 
             new ConcurrentHashMap<String, Subscription>();
-    protected ConcurrentSkipListMap<Long, Request> requests =
-            new ConcurrentSkipListMap<Long, Request>();
-    protected BlockingQueue<Request> writeQueue = 
-            new LinkedBlockingQueue<Request>();
-    protected Object writeLock = new Object();
+    protected PendingRequests requests = new PendingRequests();
+    protected OutboundRing writeQueue = new OutboundRing();
+    protected InFlightWindow inFlight = new InFlightWindow();
     protected Object processLock = new Object();
     
+    // only used by the thread that reads from the web socket
+    private final JsonByteParser parser = new JsonByteParser();
+    
+    // subscriptions with automatic acknowledgments not yet sent,
+    // guarded by the process lock
+    private final ArrayList<Subscription> pendingAcks = new ArrayList<Subscription>();
+    private int pendingAckCount;
+    
+    // subscriptions with received messages not yet delivered, and the
+    // time the oldest was received, guarded by the process lock
+    private final ArrayList<Subscription> pendingDeliveries = new ArrayList<Subscription>();
+    private long pendingDeliveryTime;
+    
+    // no publish below this sequence number awaits acknowledgment,
+    // only used by the thread that reads from the web socket
+    private long publishFloor;
+    
     private static final Request DISCONNECT = new Request(new String());
     
+    private static final int DEFAULT_WRITE_MAX_FRAMES = 256;
+    private static final int DEFAULT_WRITE_MAX_BYTES = 256*1024;
+    private static final int DEFAULT_AUTO_ACK_BATCH_SIZE = 256;
+    private static final int DEFAULT_DELIVERY_BATCH_SIZE = 1;
+    private static final double DEFAULT_DELIVERY_BATCH_DELAY = 0.01;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+    
+    private final ConnectRace.Callback raceCallback = new ConnectRace.Callback() {
+        @Override
+        public WebSocket createWebSocket(URI uri, WebSocketListener listener) {
+            return newWebSocket(uri, listener);
+        }
+        
+        @Override
+        public void onWinner(ConnectRace.Attempt attempt) {
+            webSocket = attempt.webSocket;
+            urlIndex = attempt.urlIndex;
+        }
+        
+        @Override
+        public void onFailure(ConnectRace.Attempt attempt) {
+            webSocket = attempt.webSocket;
+            // every server has been tried
+            urlIndex = urlList.size() - 1;
+        }
+    };
+    
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeScheduled.set(false);
+            write();
+        }
+    };
+    
+    public WebSocketConnection(String uri, ConnectionListener listener, EventLoop eventLoop) 
+    {
+        this(uri, listener);
+        
+        this.eventLoop = eventLoop;
+    }
+    
     public WebSocketConnection(String uri, ConnectionListener listener) 
     {
         try 
@@ -131,52 +206,105 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
             if (props != null)
                 this.props.putAll(props);
         
-            int connectTimeout = getConnectTimeout();
+            writeMaxFrames = getWriteMaxFrames();
+            writeMaxBytes = getWriteMaxBytes();
+            autoAckBatchSize = getAutoAckBatchSize();
+            deliveryBatchSize = getDeliveryBatchSize();
+            deliveryBatchDelay = getDeliveryBatchDelay();
 
-            String user = this.props.getProperty(EFTL.PROPERTY_USERNAME, null);
-            String password = this.props.getProperty(EFTL.PROPERTY_PASSWORD, null);
-            String identifier = this.props.getProperty(EFTL.PROPERTY_CLIENT_ID, null);
-        
-            String userInfo = getURL().getUserInfo();
+            inFlight.configure(getMaxInFlight(), !isInFlightPolicyFail(), getInFlightTimeout());
+
+            setState(ConnectionListener.ConnectionState.CONNECTING);
             
-            if (userInfo != null)
+            long attemptDelay = getConnectAttemptDelay();
+            
+            if (attemptDelay > 0)
             {
-                String[] tokens = userInfo.split(":");
-                
-                user = tokens[0];
-                
-                if (tokens.length > 1)
-                    password = tokens[1];
+                race = new ConnectRace(this, raceCallback, urlList, urlIndex, attemptDelay, eventLoop);
+                race.start();
+            }
+            else
+            {
+                race = null;
+                webSocket = newWebSocket(getURL(), this);
+                webSocket.open();
             }
+        }
+    }
+    
+    private WebSocket newWebSocket(URI uri, WebSocketListener listener)
+    {
+        int connectTimeout = getConnectTimeout();
 
-            String query = getURL().getQuery();
+        String user = this.props.getProperty(EFTL.PROPERTY_USERNAME, null);
+        String password = this.props.getProperty(EFTL.PROPERTY_PASSWORD, null);
+        String identifier = this.props.getProperty(EFTL.PROPERTY_CLIENT_ID, null);
+    
+        String userInfo = uri.getUserInfo();
         
-            if (query != null)
-            {
-                String[] tokens = query.split("&");
+        if (userInfo != null)
+        {
+            String[] tokens = userInfo.split(":");
+            
+            user = tokens[0];
+            
+            if (tokens.length > 1)
+                password = tokens[1];
+        }
+
+        String query = uri.getQuery();
+    
+        if (query != null)
+        {
+            String[] tokens = query.split("&");
 
-                for (int i = 0; i < tokens.length; i++)
+            for (int i = 0; i < tokens.length; i++)
+            {
+                if (tokens[i].startsWith("clientId=")) 
                 {
-                    if (tokens[i].startsWith("clientId=")) 
-                    {
-                        identifier = tokens[i].substring("clientId=".length());
-                    }
+                    identifier = tokens[i].substring("clientId=".length());
                 }
             }
+        }
 
-            webSocket = new WebSocket(getURL(), this);
-            webSocket.setProtocol(ProtocolConstants.EFTL_WS_PROTOCOL);
-            webSocket.setTrustManagers(trustManagers);
-            webSocket.setTrustAll(trustAll);
-            webSocket.setConnectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
-            webSocket.setSocketTimeout(connectTimeout, TimeUnit.MILLISECONDS);
-            webSocket.setUsername(user);
-            webSocket.setPassword(password);
-            webSocket.setClientId(identifier);
+        WebSocket webSocket = createWebSocket(uri, listener);
+        
+        // offer the binary encoding first, falling back to JSON
+        if (Boolean.parseBoolean(props.getProperty(EFTL.PROPERTY_BINARY_ENCODING, "false")))
+            webSocket.setProtocol(ProtocolConstants.EFTL_WS_PROTOCOL_BINARY);
+        
+        webSocket.setProtocol(ProtocolConstants.EFTL_WS_PROTOCOL);
+        webSocket.setTrustManagers(trustManagers);
+        webSocket.setTrustAll(trustAll);
+        webSocket.setConnectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+        webSocket.setSocketTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+        webSocket.setUsername(user);
+        webSocket.setPassword(password);
+        webSocket.setClientId(identifier);
+        webSocket.setVirtualThreads(isVirtualThreads());
+        webSocket.setMaskGenerator(getMaskGenerator());
+        webSocket.setCompression(getCompression());
+        
+        if (isBufferPool())
+            webSocket.setBufferPool(BufferPool.getDefault());
+        
+        if (Boolean.parseBoolean(props.getProperty(EFTL.PROPERTY_PIPELINE_LOGIN, "false")))
+            webSocket.setInitialMessage(loginMessage(uri).toString());
+        
+        return webSocket;
+    }
+    
+    private WebSocket createWebSocket(URI uri, WebSocketListener listener)
+    {
+        if (eventLoop != null)
+            return new NioWebSocket(uri, listener, eventLoop);
+        
+        String transport = props.getProperty(EFTL.PROPERTY_TRANSPORT, EFTL.TRANSPORT_BLOCKING);
 
-            setState(ConnectionListener.ConnectionState.CONNECTING);
-            webSocket.open();
-        }
+        if (EFTL.TRANSPORT_NIO.equalsIgnoreCase(transport))
+            return new NioWebSocket(uri, listener);
+        else
+            return new WebSocket(uri, listener);
     }
     
     /**
@@ -186,7 +314,11 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
      */
     public void forceDisconnect()
     {
-        if (webSocket != null)
+        ConnectRace race = this.race;
+        
+        if (race != null)
+            race.cancel();
+        else if (webSocket != null)
             webSocket.forceClose();
     }
     
@@ -231,16 +363,22 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
             {
                 // invoked in a thread to prevent potential
                 // deadlocks with message callbacks
-                new Thread() {
+                Runnable task = new Runnable() {
                     public void run() {
                         // synchronize to prevent a disconnect 
                         // from occurring between the message 
                         // callback and message acknowledgment
                         synchronized (processLock) {
+                            flushAcknowledgments();
                             queue(DISCONNECT);
                         }
                     }
-                }.start();
+                };
+                
+                if (eventLoop != null)
+                    eventLoop.execute(task);
+                else
+                    VirtualThreads.newThread(task, "EFTL Disconnect", isVirtualThreads()).start();
             }
         }
     }
@@ -268,32 +406,16 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
                 if (!isConnected())
                     throw new IllegalStateException("not connected");
 
-                JsonObject envelope = new JsonObject();
-
-                // synchronized to ensure message sequence numbers are ordered
-                synchronized (writeLock)
-                {
-                    long seqNum = messageIdGenerator.incrementAndGet();
-
-                    envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MAP_SET);
-                    if (qos)
-                        envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
-                    if (name != null)
-                        envelope.put(ProtocolConstants.MAP_FIELD, name);
-                    if (key != null)
-                        envelope.put(ProtocolConstants.KEY_FIELD, key);
-                    if (value != null)
-                        envelope.put(ProtocolConstants.VALUE_FIELD, ((JSONMessage) value).toJsonObject());
-
-                    MapRequest request = new MapRequest(seqNum, envelope.toString(), key, value, listener);
+                // encode the value before claiming a slot
+                final Object encoded = (value != null ? encode(((JSONMessage) value).toJsonObject()) : null);
 
-                    if (maxMessageSize > 0 && request.getJson().length() > maxMessageSize)
-                        throw new IllegalArgumentException("maximum message size exceeded");
-
-                    requests.put(seqNum, request);
-
-                    queue(request);
-                }
+                submit(1, new RequestFactory() {
+                    @Override
+                    public Request create(long seqNum) {
+                        JsonObject envelope = mapEnvelope(ProtocolConstants.OP_MAP_SET, seqNum, name, key);
+                        return new MapRequest(seqNum, encode(envelope, ProtocolConstants.VALUE_FIELD, encoded), key, value, listener);
+                    }
+                });
             }
 
             @Override
@@ -302,27 +424,13 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
                 if (!isConnected())
                     throw new IllegalStateException("not connected");
 
-                JsonObject envelope = new JsonObject();
-
-                // synchronized to ensure message sequence numbers are ordered
-                synchronized (writeLock)
-                {
-                    long seqNum = messageIdGenerator.incrementAndGet();
-
-                    envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MAP_GET);
-                    if (qos)
-                        envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
-                    if (name != null)
-                        envelope.put(ProtocolConstants.MAP_FIELD, name);
-                    if (key != null)
-                        envelope.put(ProtocolConstants.KEY_FIELD, key);
-
-                    MapRequest request = new MapRequest(seqNum, envelope.toString(), key, listener);
-
-                    requests.put(seqNum, request);
-
-                    queue(request);
-                }
+                submit(1, new RequestFactory() {
+                    @Override
+                    public Request create(long seqNum) {
+                        JsonObject envelope = mapEnvelope(ProtocolConstants.OP_MAP_GET, seqNum, name, key);
+                        return new MapRequest(seqNum, encode(envelope), key, listener);
+                    }
+                });
             }
 
             @Override
@@ -331,27 +439,13 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
                 if (!isConnected())
                     throw new IllegalStateException("not connected");
 
-                JsonObject envelope = new JsonObject();
-
-                // synchronized to ensure message sequence numbers are ordered
-                synchronized (writeLock)
-                {
-                    long seqNum = messageIdGenerator.incrementAndGet();
-
-                    envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MAP_REMOVE);
-                    if (qos)
-                        envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
-                    if (name != null)
-                        envelope.put(ProtocolConstants.MAP_FIELD, name);
-                    if (key != null)
-                        envelope.put(ProtocolConstants.KEY_FIELD, key);
-
-                    MapRequest request = new MapRequest(seqNum, envelope.toString(), key, listener);
-
-                    requests.put(seqNum, request);
-
-                    queue(request);
-                }
+                submit(1, new RequestFactory() {
+                    @Override
+                    public Request create(long seqNum) {
+                        JsonObject envelope = mapEnvelope(ProtocolConstants.OP_MAP_REMOVE, seqNum, name, key);
+                        return new MapRequest(seqNum, encode(envelope), key, listener);
+                    }
+                });
             }
         };
     }
@@ -368,7 +462,7 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         if (name != null)
             envelope.put(ProtocolConstants.MAP_FIELD, name);
         
-        queue(envelope.toString());
+        queue(encode(envelope));
     }
     
     @Override
@@ -377,36 +471,31 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         if (!isConnected())
             throw new IllegalStateException("not connected");
 
-        JsonObject envelope = new JsonObject();
+        if (protocol < 1)
+            throw new UnsupportedOperationException("send request is not supported with this server");
+
+        // encode the body before claiming a slot
+        final Object body = encode(((JSONMessage) request).toJsonObject());
         
-        // synchronized to ensure message sequence numbers are ordered
-        synchronized (writeLock)
-        {
-            final long seqNum = messageIdGenerator.incrementAndGet();
+        submit(1, new RequestFactory() {
+            @Override
+            public Request create(final long seqNum) {
+                JsonObject envelope = new JsonObject();
+                envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_REQUEST);
+                envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
                 
-            envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_REQUEST);
-            envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
-            envelope.put(ProtocolConstants.BODY_FIELD, ((JSONMessage) request).toJsonObject());
+                SendRequest sendRequest = new SendRequest(seqNum, encode(envelope, ProtocolConstants.BODY_FIELD, body), request, listener);
                 
-            SendRequest sendRequest = new SendRequest(seqNum, envelope.toString(), request, listener);
-            
-            if (protocol < 1)
-                throw new UnsupportedOperationException("send request is not supported with this server");
-
-            if (maxMessageSize > 0 && sendRequest.getJson().length() > maxMessageSize)
-                throw new IllegalArgumentException("maximum message size exceeded");
-
-            sendRequest.setTimeout((long)(timeout * 1000), new TimerTask() {
+                sendRequest.setTimeout((long)(timeout * 1000), new Runnable() {
                     @Override
                     public void run() {
                         requestTimeout(seqNum);
                     }
-            });
-
-            requests.put(seqNum, sendRequest);
+                });
                 
-            queue(sendRequest);
-        }
+                return sendRequest;
+            }
+        });
     }
 
     @Override
@@ -418,31 +507,24 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         if (((JSONMessage) request).replyTo == null)
             throw new IllegalArgumentException("not a request message");
             
-        JsonObject envelope = new JsonObject();
-        
-        // synchronized to ensure message sequence numbers are ordered
-        synchronized (writeLock)
-        {
-            long seqNum = messageIdGenerator.incrementAndGet();
-                
-            envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_REPLY);
-            envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
-            envelope.put(ProtocolConstants.TO_FIELD, ((JSONMessage) request).replyTo);
-            envelope.put(ProtocolConstants.REQ_ID_FIELD, ((JSONMessage) request).reqId);
-            envelope.put(ProtocolConstants.BODY_FIELD, ((JSONMessage) reply).toJsonObject());
-                
-            Publish publish = new Publish(seqNum, envelope.toString(), reply, listener);
-            
-            if (protocol < 1)
-                throw new UnsupportedOperationException("send reply is not supported with this server");
-
-            if (maxMessageSize > 0 && publish.getJson().length() > maxMessageSize)
-                throw new IllegalArgumentException("maximum message size exceeded");
+        if (protocol < 1)
+            throw new UnsupportedOperationException("send reply is not supported with this server");
 
-            requests.put(seqNum, publish);
+        // encode the body before claiming a slot
+        final Object body = encode(((JSONMessage) reply).toJsonObject());
+        
+        submit(1, new RequestFactory() {
+            @Override
+            public Request create(long seqNum) {
+                JsonObject envelope = new JsonObject();
+                envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_REPLY);
+                envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
+                envelope.put(ProtocolConstants.TO_FIELD, ((JSONMessage) request).replyTo);
+                envelope.put(ProtocolConstants.REQ_ID_FIELD, ((JSONMessage) request).reqId);
                 
-            queue(publish);
-        }
+                return new Publish(seqNum, encode(envelope, ProtocolConstants.BODY_FIELD, body), reply, listener);
+            }
+        });
     }
 
     @Override
@@ -457,30 +539,47 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         if (!isConnected())
             throw new IllegalStateException("not connected");
 
-        JsonObject envelope = new JsonObject();
+        // encode the body before claiming a slot, so that only the
+        // small envelope is encoded while later requests wait on it
+        final Object body = encode(((JSONMessage) message).toJsonObject());
         
-        // synchronized to ensure message sequence numbers are ordered
-        synchronized (writeLock)
-        {
-            long seqNum = messageIdGenerator.incrementAndGet();
+        submit(1, new RequestFactory() {
+            @Override
+            public Request create(long seqNum) {
+                JsonObject envelope = new JsonObject();
+                envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MESSAGE);
                 
-            envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MESSAGE);
-            envelope.put(ProtocolConstants.BODY_FIELD, ((JSONMessage) message).toJsonObject());
+                if (qos)
+                {
+                    envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
+                }
                 
-            if (qos)
-            {
-                envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
+                return new Publish(seqNum, encode(envelope, ProtocolConstants.BODY_FIELD, body), message, listener);
             }
-                
-            Publish publish = new Publish(seqNum, envelope.toString(), message, listener);
-            
-            if (maxMessageSize > 0 && publish.getJson().length() > maxMessageSize)
-                throw new IllegalArgumentException("maximum message size exceeded");
-
-            requests.put(seqNum, publish);
-                
-            queue(publish);
-        }
+        });
+    }
+    
+    @Override
+    public void publish(Message[] messages, BatchCompletionListener listener)
+    {
+        if (!isConnected())
+            throw new IllegalStateException("not connected");
+        
+        if (messages.length == 0)
+            throw new IllegalArgumentException("no messages");
+        
+        // encode the bodies before claiming the slots
+        final Object[] bodies = new Object[messages.length];
+        for (int i = 0; i < messages.length; i++)
+            bodies[i] = encode(((JSONMessage) messages[i]).toJsonObject());
+        
+        // the batch is one request with consecutive sequence numbers
+        submit(messages.length, new RequestFactory() {
+            @Override
+            public Request create(long seqNum) {
+                return new PublishBatch(seqNum, messages, bodies, qos, listener);
+            }
+        });
     }
     
     @Override
@@ -506,6 +605,17 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         return subscriptionId;
     }
 
+    @Override
+    public Flow.Publisher<Message> createPublisher(String matcher, String durable, Properties props)
+    {
+        // the pending acknowledgments are all that bound the messages 
+        // held for a subscriber that is behind
+        if (getMaxPendingAcks() <= 0)
+            throw new IllegalStateException("a publisher requires a positive " + EFTL.PROPERTY_MAX_PENDING_ACKS);
+
+        return new MessagePublisher(this, matcher, durable, props);
+    }
+
     private void subscribe(String subscriptionId, String matcher, String durable, Properties props, SubscriptionListener listener)
     {
         Subscription subscription = new Subscription(subscriptionId, matcher, durable, props, listener);
@@ -515,6 +625,11 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
     }
     
     private void subscribe(Subscription subscription) 
+    {
+        queue(encode(subscribeMessage(subscription)));
+    }
+    
+    private JsonObject subscribeMessage(Subscription subscription)
     {
         JsonObject message = new JsonObject();
         
@@ -531,7 +646,7 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
             }
         }
         
-        queue(message.toString());
+        return message;
     } 
     
     @Override
@@ -552,7 +667,7 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
             message.put(ProtocolConstants.ID_FIELD, subscription.getSubscriptionId());
             message.put(ProtocolConstants.DEL_FIELD, false);
 
-            queue(message.toString());
+            queue(encode(message));
         }
     }
 
@@ -579,7 +694,7 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
             message.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_UNSUBSCRIBE);
             message.put(ProtocolConstants.ID_FIELD, subscription.getSubscriptionId());
 
-            queue(message.toString());
+            queue(encode(message));
         }
     }
 
@@ -610,14 +725,43 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         acknowledge(((JSONMessage) message).seqNum, ((JSONMessage) message).subId);
     }
     
+    @Override
+    public InFlightMetrics getInFlightMetrics()
+    {
+        return inFlight;
+    }
+    
     @Override
     public void onOpen() 
+    {
+        binary = ProtocolConstants.EFTL_WS_PROTOCOL_BINARY.equals(webSocket.getProtocol());
+        
+        // the login was sent along with the upgrade request
+        if (webSocket.getInitialMessage() == null)
+        {
+            try 
+            {
+                send(encode(loginMessage(getURL())));
+            }
+            catch (IOException e)
+            {
+                // the connection can no longer be written
+                webSocket.abort(e);
+                return;
+            }
+        }
+        
+        // cancel auto-reconnects
+        cancelReconnect();
+    }
+    
+    private JsonObject loginMessage(URI uri)
     {
         String user = props.getProperty(EFTL.PROPERTY_USERNAME, null);
         String password = props.getProperty(EFTL.PROPERTY_PASSWORD, null);
         String identifier = props.getProperty(EFTL.PROPERTY_CLIENT_ID, null);
         
-        String userInfo = getURL().getUserInfo();
+        String userInfo = uri.getUserInfo();
         
         if (userInfo != null)
         {
@@ -629,7 +773,7 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
                 password = tokens[1];
         }
         
-        String query = getURL().getQuery();
+        String query = uri.getQuery();
         
         if (query != null)
         {
@@ -693,22 +837,14 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         
         message.put(ProtocolConstants.LOGIN_OPTIONS_FIELD, loginOptions);
 
-        try 
-        {
-            webSocket.send(message.toString());
-        }
-        catch (IOException e)
-        {
-            // TODO
-        }
-        
-        // cancel auto-reconnects
-        cancelReconnect();
+        return message;
     }
 
     @Override
     public void onClose(int code, String reason) 
     {
+        flushDeliveries();
+        
         setState(ConnectionListener.ConnectionState.DISCONNECTED);
 
         if (connecting.compareAndSet(true, false))
@@ -740,6 +876,8 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
     @Override
     public void onError(Throwable cause) 
     {
+        flushDeliveries();
+        
         setState(ConnectionListener.ConnectionState.DISCONNECTED);
 
         if (connecting.compareAndSet(true, false))
@@ -773,8 +911,17 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
     @Override
     public void onMessage(String text) 
     {
-        Object value = JsonValue.parse(text);
-            
+        onMessage(JsonValue.parse(text));
+    }
+
+    @Override
+    public void onTextMessage(byte[] data, int offset, int length)
+    {
+        onMessage(parser.parse(data, offset, length));
+    }
+
+    private void onMessage(Object value)
+    {
         if (value instanceof JsonObject)
         {
             JsonObject message = (JsonObject) value;
@@ -820,7 +967,21 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
     @Override
     public void onMessage(byte[] data, int offset, int length) 
     {
-        // ignore
+        // binary frames carry the binary encoding
+        JsonObject message;
+        
+        try
+        {
+            message = BinaryCodec.decode(data, offset, length);
+        }
+        catch (JsonException e)
+        {
+            // the server no longer speaks the negotiated protocol
+            webSocket.abort(new IOException("invalid binary message: " + e.getMessage()));
+            return;
+        }
+        
+        onMessage(message);
     }
 
     @Override
@@ -829,10 +990,20 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         // ignore
     }
     
+    @Override
+    public void onReadComplete()
+    {
+        flushDeliveries();
+        flushAcknowledgments();
+    }
+    
     private void handleHeartbeat(JsonObject message)
     {
+        flushDeliveries();
+        flushAcknowledgments();
+        
         // queue message for writer thread
-        queue(message.toString());
+        queue(encode(message));
     }
     
     private void handleWelcome(JsonObject message)
@@ -865,28 +1036,43 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         // reset URL list to start auto-reconnect attempts from the beginning
         resetURLList();
         
-        // synchronized to ensure message sequence numbers are ordered
-        synchronized(writeLock)
+        // the outbound queue has a single consumer, so the writer of
+        // the prior connection must have stopped before it is purged
+        joinWriter();
+        
+        // purge the outbound queue up to the first request still being
+        // queued, requests from there on are sent after those re-sent
+        long next = writeQueue.discard();
+        
+        // acknowledgments held for the prior connection
+        discardAcknowledgments();
+        
+        List<Request> resend = new ArrayList<Request>();
+        
+        // repair subscriptions
+        for (Subscription subscription : subscriptions.values())
         {
-            // purge the outbound queue
-            writeQueue.clear();
+            if (!resume)
+                subscription.setLastSeqNum(0);
+            
+            resend.add(new Request(encode(subscribeMessage(subscription))));
+        }
         
-            // start writer thread
-            writer = new Thread(this, "EFTL Writer");
-            writer.start();
+        // re-send unacknowledged messages
+        resend.addAll(requests.range(0, next - 1));
         
-            // repair subscriptions
-            for (Subscription subscription : subscriptions.values())
-            {
-                if (!resume)
-                    subscription.setLastSeqNum(0);
-                
-                subscribe(subscription);
-            }
-    
-            // re-send unacknowledged messages
-            for (Request request : requests.values())
-                queue(request);
+        writeQueue.resend(resend);
+        
+        // start writer thread, the event loop writes
+        // the outbound queue when one is assigned
+        if (eventLoop == null)
+        {
+            writer = VirtualThreads.newThread(this, "EFTL Writer", isVirtualThreads());
+            writer.start();
+        }
+        else
+        {
+            scheduleWrite();
         }
         
         // invoke callback if not auto-reconnecting
@@ -922,6 +1108,9 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         //   LISTENS_DISALLOWED listens are disabled for this user
         //   SUBSCRIPTION_FAILED an internal error occurred
         
+        // deliver the messages received before the error
+        flushDeliveries();
+        
         Subscription subscription = subscriptions.get(subscriptionId);
 
         // remove the subscription only if it's untryable
@@ -966,42 +1155,117 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
                     if (deliveryCount != null)
                         ((JSONMessage) message).setDeliveryCount(deliveryCount.longValue());
 
-                    try
-                    {
-                        subscription.getListener().onMessages(new Message[] {message});
-                    }
-                    catch (Exception e)
-                    {
-                        // catch and discard exceptions thrown by the listener
-                    }
-                    
-                    // track the last received sequence number
-                    if (subscription.isAutoAck() && seqNum != null)
-                        subscription.setLastSeqNum(seqNum.longValue());                    
+                    if (deliveryBatchSize > 1)
+                        receive(subscription, message, (seqNum != null ? seqNum.longValue() : 0));
+                    else
+                        deliver(subscription, new Message[] {message}, (seqNum != null ? seqNum.longValue() : 0));
+                }
+                else if (subscription.isAutoAck())
+                {
+                    // auto-acknowledge the redelivered message
+                    deferAcknowledgment(subscription, seqNum.longValue());
                 }
-
-                // auto-acknowledge the message
-                if (subscription.isAutoAck() && seqNum != null)
-                    acknowledge(seqNum.longValue(), subscription.getSubscriptionId());
             }
         }
     }
     
-    private void handleError(JsonObject message)
+    /**
+     * Holds a received message so that the messages of a subscription
+     * received together are delivered together.
+     */
+    private void receive(Subscription subscription, Message message, long seqNum)
     {
-        int code = ((Number) message.get(ProtocolConstants.ERR_CODE_FIELD)).intValue();
-        String reason = (String) message.get(ProtocolConstants.REASON_FIELD);
+        List<Message> received = subscription.getReceived();
         
-        // The server is sending an error to the client.
-        // Possible errors include:
-        //   BAD_SUBSCRIBER_ID a subscription ID is null or does not start 
-        //                     with the client ID
-        //   SEND_DISALLOWED sending is disabled for this user
+        if (pendingDeliveries.isEmpty())
+            pendingDeliveryTime = System.nanoTime();
         
-        listener.onError(this, code, reason);
+        if (received.isEmpty())
+            pendingDeliveries.add(subscription);
+        
+        received.add(message);
+        
+        if (seqNum != 0)
+            subscription.setReceivedSeqNum(seqNum);
+        
+        if (received.size() >= deliveryBatchSize)
+        {
+            pendingDeliveries.remove(subscription);
+            deliverReceived(subscription);
+        }
+        else if (System.nanoTime() - pendingDeliveryTime >= deliveryBatchDelay)
+        {
+            flushDeliveries();
+        }
     }
     
-    private void handleAck(JsonObject message)
+    /**
+     * Delivers the held messages, in one array per subscription.
+     */
+    private void flushDeliveries()
+    {
+        synchronized (processLock)
+        {
+            if (pendingDeliveries.isEmpty())
+                return;
+            
+            for (Subscription subscription : pendingDeliveries)
+                deliverReceived(subscription);
+            
+            pendingDeliveries.clear();
+        }
+    }
+    
+    private void deliverReceived(Subscription subscription)
+    {
+        List<Message> received = subscription.getReceived();
+        Message[] messages = received.toArray(new Message[received.size()]);
+        long seqNum = subscription.getReceivedSeqNum();
+        
+        received.clear();
+        subscription.setReceivedSeqNum(0);
+        
+        // skip subscriptions removed since
+        if (subscriptions.get(subscription.getSubscriptionId()) == subscription)
+            deliver(subscription, messages, seqNum);
+    }
+    
+    private void deliver(Subscription subscription, Message[] messages, long seqNum)
+    {
+        try
+        {
+            subscription.getListener().onMessages(messages);
+        }
+        catch (Exception e)
+        {
+            // catch and discard exceptions thrown by the listener
+        }
+        
+        if (subscription.isAutoAck() && seqNum != 0)
+        {
+            // track the last received sequence number
+            subscription.setLastSeqNum(seqNum);
+            
+            // auto-acknowledge the messages
+            deferAcknowledgment(subscription, seqNum);
+        }
+    }
+    
+    private void handleError(JsonObject message)
+    {
+        int code = ((Number) message.get(ProtocolConstants.ERR_CODE_FIELD)).intValue();
+        String reason = (String) message.get(ProtocolConstants.REASON_FIELD);
+        
+        // The server is sending an error to the client.
+        // Possible errors include:
+        //   BAD_SUBSCRIBER_ID a subscription ID is null or does not start 
+        //                     with the client ID
+        //   SEND_DISALLOWED sending is disabled for this user
+        
+        listener.onError(this, code, reason);
+    }
+    
+    private void handleAck(JsonObject message)
     {
         Long seqNum = (Long) message.get(ProtocolConstants.SEQ_NUM_FIELD);
         Number code = (Number) message.get(ProtocolConstants.ERR_CODE_FIELD);
@@ -1012,10 +1276,48 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
             if (code != null)
                 requestError(seqNum, code.intValue(), reason);
             else
-                requestSuccess(seqNum, null);
+                publishSuccess(seqNum);
         }
     }
     
+    /**
+     * Completes the acknowledged publish and every unacknowledged publish
+     * with a lesser sequence number, in sequence number order. Requests
+     * and map operations complete with their own responses.
+     */
+    private void publishSuccess(long seqNum)
+    {
+        // Remove all unacknowledged messages with a sequence number equal to
+        // or less than the sequence number contained within the ack message.
+        
+        long floor = seqNum + 1;
+        
+        for (Request request : requests.range(publishFloor, seqNum))
+        {
+            if (request instanceof PublishBatch)
+            {
+                if (((PublishBatch) request).acknowledgeThrough(seqNum) && removeRequest(request.getSeqNum(), request))
+                    request.onSuccess(null);
+                else
+                    floor = Math.min(floor, request.getSeqNum());
+            }
+            else if (request instanceof Publish)
+            {
+                if (removeRequest(request.getSeqNum(), request))
+                    request.onSuccess(null);
+            }
+        }
+        
+        // start the next pass after the completed publishes
+        if (floor > publishFloor)
+            publishFloor = floor;
+        
+        // an acknowledgment of any other request completes it alone
+        Request request = getRequest(seqNum);
+        if (request != null && !(request instanceof Publish) && !(request instanceof PublishBatch))
+            requestSuccess(seqNum, null);
+    }
+    
     private void handleReply(JsonObject message)
     {
         Long seqNum = (Long) message.get(ProtocolConstants.SEQ_NUM_FIELD);
@@ -1039,9 +1341,6 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         Number code = (Number) message.get(ProtocolConstants.ERR_CODE_FIELD);
         String reason = (String) message.get(ProtocolConstants.REASON_FIELD);
         
-        // Remove all unacknowledged messages with a sequence number equal to
-        // or less than the sequence number contained within the ack message.
-        
         if (seqNum != null)
         {
             if (code != null)
@@ -1065,7 +1364,60 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
             message.put(ProtocolConstants.ID_FIELD, subId);
         
         // queue message for writer thread
-        queue(message.toString());
+        queue(encode(message));
+    }
+    
+    /**
+     * Holds an automatic acknowledgment so that the messages of a
+     * subscription received together are acknowledged together.
+     */
+    private void deferAcknowledgment(Subscription subscription, long seqNum)
+    {
+        if (subscription.getAckSeqNum() == 0)
+            pendingAcks.add(subscription);
+        
+        if (seqNum > subscription.getAckSeqNum())
+            subscription.setAckSeqNum(seqNum);
+        
+        if (++pendingAckCount >= autoAckBatchSize)
+            flushAcknowledgments();
+    }
+    
+    /**
+     * Sends one acknowledgment of all the messages received, per
+     * subscription with held acknowledgments.
+     */
+    private void flushAcknowledgments()
+    {
+        synchronized (processLock)
+        {
+            if (pendingAcks.isEmpty())
+                return;
+            
+            for (Subscription subscription : pendingAcks)
+            {
+                // skip subscriptions removed since
+                if (subscriptions.get(subscription.getSubscriptionId()) == subscription)
+                    acknowledge(subscription.getAckSeqNum(), subscription.getSubscriptionId());
+                
+                subscription.setAckSeqNum(0);
+            }
+            
+            pendingAcks.clear();
+            pendingAckCount = 0;
+        }
+    }
+    
+    private void discardAcknowledgments()
+    {
+        synchronized (processLock)
+        {
+            for (Subscription subscription : pendingAcks)
+                subscription.setAckSeqNum(0);
+            
+            pendingAcks.clear();
+            pendingAckCount = 0;
+        }
     }
     
     private void requestTimeout(Long seqNum)
@@ -1073,27 +1425,141 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         requestError(seqNum, RequestListener.REQUEST_TIMEOUT, "request timeout");
     }
     
+    /** Returns the unacknowledged request assigned the sequence number. */
+    private Request getRequest(long seqNum)
+    {
+        return requests.get(seqNum);
+    }
+    
     private void requestSuccess(Long seqNum, Message response)
     {
-        Request request = requests.remove(seqNum);
-        if (request != null)
+        Request request = getRequest(seqNum);
+        if (request instanceof PublishBatch)
+        {
+            // a batch completes once every message has an outcome
+            if (((PublishBatch) request).acknowledge(seqNum) && removeRequest(request.getSeqNum(), request))
+                request.onSuccess(response);
+        }
+        else if (request != null && removeRequest(seqNum, request))
+        {
             request.onSuccess(response);
+        }
     }
     
     private void requestError(Long seqNum, int code, String reason)
     {
-        Request request = requests.remove(seqNum);
+        Request request = getRequest(seqNum);
+        if (request instanceof PublishBatch)
+        {
+            if (((PublishBatch) request).fail(seqNum, code, reason))
+                removeRequest(request.getSeqNum(), request);
+            if (request.hasListener())
+                return;
+        }
+        else if (request != null && !removeRequest(seqNum, request))
+        {
+            request = null;
+        }
+        
         if (request != null && request.hasListener())
             request.onError(code, reason);
         else
             listener.onError(this, code, reason);
     }
     
+    /** Removes an unacknowledged request and releases it from the window. */
+    private boolean removeRequest(long seqNum, Request request)
+    {
+        if (!requests.remove(seqNum, request))
+            return false;
+        
+        inFlight.release(request.getCount());
+        return true;
+    }
+    
+    /** Builds the request for the sequence numbers claimed for it. */
+    private interface RequestFactory
+    {
+        Request create(long seqNum);
+    }
+    
+    /**
+     * Waits for room for the request in the in-flight window, claims
+     * its sequence numbers, and queues the request the factory builds 
+     * for them. If the request cannot be built or is too large, empty 
+     * slots are queued in its place so that later requests are not 
+     * held up, and the room is returned to the window.
+     */
+    private void submit(int count, RequestFactory factory)
+    {
+        // wait for room before claiming a slot
+        acquire(count);
+        
+        // the claimed slot orders the request and gives its sequence number
+        long seqNum = writeQueue.claim(count);
+        Request request = null;
+        try
+        {
+            request = factory.create(seqNum);
+            
+            if (maxMessageSize > 0 && request.getLength() > maxMessageSize)
+                throw new IllegalArgumentException("maximum message size exceeded");
+            
+            requests.put(seqNum, request);
+            
+            queue(seqNum, request);
+        }
+        catch (RuntimeException e)
+        {
+            // a request timeout must not fire for a request never sent
+            if (request != null)
+                request.abandon();
+            for (int i = 0; i < count; i++)
+                queue(seqNum + i, null);
+            inFlight.release(count);
+            throw e;
+        }
+    }
+    
+    private JsonObject mapEnvelope(int op, long seqNum, String name, String key)
+    {
+        JsonObject envelope = new JsonObject();
+        envelope.put(ProtocolConstants.OP_FIELD, op);
+        if (qos)
+            envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
+        if (name != null)
+            envelope.put(ProtocolConstants.MAP_FIELD, name);
+        if (key != null)
+            envelope.put(ProtocolConstants.KEY_FIELD, key);
+        return envelope;
+    }
+    
+    /**
+     * Admits requests into the in-flight window, waiting or failing
+     * as the policy selects when it is full.
+     */
+    private void acquire(int count)
+    {
+        // acknowledgments are processed on the callback thread, 
+        // so an operation there cannot wait for them, nor can one on
+        // the request timer thread shared by every connection
+        WebSocket webSocket = this.webSocket;
+        boolean mayWait = (webSocket == null || !webSocket.isListenerThread()) && !TimerWheel.inDefaultThread();
+        inFlight.acquire(count, mayWait);
+        
+        // the connection may have closed while waiting
+        if (!isConnected())
+        {
+            inFlight.release(count);
+            throw new IllegalStateException("not connected");
+        }
+    }
+    
     private void clearRequests(int code, String reason)
     {
-        for (Long key : requests.keySet())
+        for (Request request : requests.clear())
         {
-            Request request = requests.remove(key);
+            inFlight.release(request.getCount());
             request.onError(code, reason);
         }
     }
@@ -1150,6 +1616,22 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
 
     private synchronized void scheduleReconnect(long delay)
     {
+        if (eventLoop != null)
+        {
+            if (reconnectTimeout != null)
+                reconnectTimeout.cancel();
+            
+            reconnectTimeout = eventLoop.schedule(new Runnable()
+            {
+                @Override
+                public void run() {
+                    connect(null);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            
+            return;
+        }
+        
         if (reconnectTimer == null)
             reconnectTimer = new Timer("EFTL Reconnect");
         
@@ -1174,6 +1656,14 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
             cancelled = true;
         }
         
+        if (reconnectTimeout != null)
+        {
+            reconnectTimeout.cancel();
+            reconnectTimeout = null;
+            
+            cancelled = true;
+        }
+        
         return cancelled;
     }
     
@@ -1213,6 +1703,38 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         return value;
     }
 
+    private long getConnectAttemptDelay()
+    {
+        // defaults to 0 (no racing)
+        long value = 0;
+        try
+        {
+            value = (long) (Double.parseDouble(props.getProperty(EFTL.PROPERTY_CONNECT_ATTEMPT_DELAY, "0")) * 1000.0);
+        }
+        catch (Exception e)
+        {
+            value = 0;
+        }
+        return value;
+    }
+
+    private boolean isVirtualThreads()
+    {
+        return Boolean.parseBoolean(props.getProperty(EFTL.PROPERTY_VIRTUAL_THREADS, "false"));
+    }
+
+    private boolean isBufferPool()
+    {
+        return Boolean.parseBoolean(props.getProperty(EFTL.PROPERTY_BUFFER_POOL, "false"));
+    }
+
+    private MaskGenerator getMaskGenerator()
+    {
+        String value = props.getProperty(EFTL.PROPERTY_FRAME_MASKING, EFTL.FRAME_MASKING_SECURE);
+        
+        return (EFTL.FRAME_MASKING_FAST.equalsIgnoreCase(value) ? MaskGenerator.FAST : MaskGenerator.SECURE);
+    }
+
     private int getMaxPendingAcks()
     {
         int value = 0;
@@ -1227,41 +1749,379 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         return value;
     }
 
-    private void queue(String text)
+    private PerMessageDeflate getCompression()
+    {
+        if (!Boolean.parseBoolean(props.getProperty(EFTL.PROPERTY_COMPRESSION, "false")))
+            return null;
+        
+        int threshold = DEFAULT_COMPRESSION_THRESHOLD;
+        try
+        {
+            threshold = Integer.parseInt(props.getProperty(EFTL.PROPERTY_COMPRESSION_THRESHOLD, Integer.toString(DEFAULT_COMPRESSION_THRESHOLD)));
+        }
+        catch (Exception e)
+        {
+            threshold = DEFAULT_COMPRESSION_THRESHOLD;
+        }
+        
+        return new PerMessageDeflate(threshold,
+                Boolean.parseBoolean(props.getProperty(EFTL.PROPERTY_COMPRESSION_CLIENT_NO_CONTEXT_TAKEOVER, "false")),
+                Boolean.parseBoolean(props.getProperty(EFTL.PROPERTY_COMPRESSION_SERVER_NO_CONTEXT_TAKEOVER, "false")));
+    }
+
+    private int getWriteMaxFrames()
     {
-        queue(new Request(text));
+        int value = DEFAULT_WRITE_MAX_FRAMES;
+        try
+        {
+            value = Integer.parseInt(props.getProperty(EFTL.PROPERTY_WRITE_MAX_FRAMES, Integer.toString(DEFAULT_WRITE_MAX_FRAMES)));
+        }
+        catch (Exception e)
+        {
+            value = DEFAULT_WRITE_MAX_FRAMES;
+        }
+        return Math.max(1, value);
+    }
+
+    private int getWriteMaxBytes()
+    {
+        int value = DEFAULT_WRITE_MAX_BYTES;
+        try
+        {
+            value = Integer.parseInt(props.getProperty(EFTL.PROPERTY_WRITE_MAX_BYTES, Integer.toString(DEFAULT_WRITE_MAX_BYTES)));
+        }
+        catch (Exception e)
+        {
+            value = DEFAULT_WRITE_MAX_BYTES;
+        }
+        return Math.max(1, value);
+    }
+
+    private int getAutoAckBatchSize()
+    {
+        int value = DEFAULT_AUTO_ACK_BATCH_SIZE;
+        try
+        {
+            value = Integer.parseInt(props.getProperty(EFTL.PROPERTY_AUTO_ACK_BATCH_SIZE, Integer.toString(DEFAULT_AUTO_ACK_BATCH_SIZE)));
+        }
+        catch (Exception e)
+        {
+            value = DEFAULT_AUTO_ACK_BATCH_SIZE;
+        }
+        return Math.max(1, value);
+    }
+
+    private int getDeliveryBatchSize()
+    {
+        int value = DEFAULT_DELIVERY_BATCH_SIZE;
+        try
+        {
+            value = Integer.parseInt(props.getProperty(EFTL.PROPERTY_DELIVERY_BATCH_SIZE, Integer.toString(DEFAULT_DELIVERY_BATCH_SIZE)));
+        }
+        catch (Exception e)
+        {
+            value = DEFAULT_DELIVERY_BATCH_SIZE;
+        }
+        return Math.max(1, value);
+    }
+
+    private long getDeliveryBatchDelay()
+    {
+        double value = DEFAULT_DELIVERY_BATCH_DELAY;
+        try
+        {
+            value = Double.parseDouble(props.getProperty(EFTL.PROPERTY_DELIVERY_BATCH_DELAY, Double.toString(DEFAULT_DELIVERY_BATCH_DELAY)));
+        }
+        catch (Exception e)
+        {
+            value = DEFAULT_DELIVERY_BATCH_DELAY;
+        }
+        return Math.max(0, (long) (value * 1000000000.0));
+    }
+
+    private int getMaxInFlight()
+    {
+        int value = 0;
+        try
+        {
+            value = Integer.parseInt(props.getProperty(EFTL.PROPERTY_MAX_IN_FLIGHT, "0"));
+        }
+        catch (Exception e)
+        {
+            value = 0;
+        }
+        return Math.max(0, value);
+    }
+
+    private boolean isInFlightPolicyFail()
+    {
+        return EFTL.IN_FLIGHT_POLICY_FAIL.equalsIgnoreCase(props.getProperty(EFTL.PROPERTY_IN_FLIGHT_POLICY, EFTL.IN_FLIGHT_POLICY_BLOCK));
+    }
+
+    private long getInFlightTimeout()
+    {
+        long value = 0;
+        try
+        {
+            value = (long) (Double.parseDouble(props.getProperty(EFTL.PROPERTY_IN_FLIGHT_TIMEOUT, "0")) * 1000.0);
+        }
+        catch (Exception e)
+        {
+            value = 0;
+        }
+        return Math.max(0, value);
+    }
+
+    private void queue(Object payload)
+    {
+        queue(new Request(payload));
+    }
+    
+    /** Encodes a message for the negotiated WebSocket subprotocol. */
+    private Object encode(JsonObject message)
+    {
+        return (binary ? BinaryCodec.encode(message) : message.toString());
+    }
+    
+    /**
+     * Encodes an envelope whose last field was encoded beforehand.
+     * The writer joins the two when the request is sent.
+     */
+    private Object encode(JsonObject envelope, String name, Object value)
+    {
+        if (value == null)
+            return encode(envelope);
+        
+        return Envelope.of(envelope, name, value);
+    }
+    
+    private void send(Object payload) throws IOException
+    {
+        if (payload instanceof byte[])
+            webSocket.send((byte[]) payload);
+        else
+            webSocket.send((String) payload);
     }
     
     private void queue(Request request)
     {
         writeQueue.offer(request);
+        scheduleWrite();
+    }
+    
+    /** Publishes the claimed outbound slot of a sequenced request. */
+    private void queue(long seqNum, Request request)
+    {
+        writeQueue.publish(seqNum, request);
+        scheduleWrite();
+    }
+    
+    private void scheduleWrite()
+    {
+        // the event loop writes the outbound queue
+        if (eventLoop != null && writeScheduled.compareAndSet(false, true))
+            eventLoop.execute(writeTask);
+    }
+    
+    private void send(Request request) throws IOException
+    {
+        if (request == DISCONNECT)
+        {
+            // send a disconnect message and close
+            JsonObject message = new JsonObject();
+            message.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_DISCONNECT);
+            send(encode(message));
+            webSocket.close();
+        }
+        else
+        {
+            send(request.getPayload(binary));
+            
+            if (!qos && request.getSeqNum() > 0)
+            {
+                requestSuccess(request.getSeqNum(), null);
+            }
+        }
+    }
+    
+    /**
+     * Sends a batch of requests, coalescing consecutive requests 
+     * into as few socket writes as the write limits allow.
+     * Returns false if the batch contained the disconnect request.
+     */
+    private boolean send(List<Request> batch) throws IOException
+    {
+        List<Object> payloads = new ArrayList<Object>(batch.size());
+        List<Long> seqNums = new ArrayList<Long>(batch.size());
+        int bytes = 0;
+        
+        for (int i = 0, n = batch.size(); i < n; i++)
+        {
+            Request request = batch.get(i);
+            
+            if (request == DISCONNECT)
+            {
+                flush(payloads, seqNums);
+                send(request);
+                return false;
+            }
+            
+            if (request instanceof PublishBatch)
+            {
+                // the messages of a published batch still to be sent
+                List<Long> batchSeqNums = new ArrayList<Long>();
+                List<Object> batchPayloads = ((PublishBatch) request).getPayloads(binary, batchSeqNums);
+                
+                for (int j = 0, m = batchPayloads.size(); j < m; j++)
+                    bytes = append(payloads, seqNums, bytes, batchPayloads.get(j), batchSeqNums.get(j));
+            }
+            else
+            {
+                bytes = append(payloads, seqNums, bytes, request.getPayload(binary), request.getSeqNum());
+            }
+        }
+        
+        flush(payloads, seqNums);
+        
+        return true;
+    }
+    
+    /**
+     * Adds a payload to those to send, flushing them first when the 
+     * payload exceeds the write limit. Returns the number of bytes to send.
+     */
+    private int append(List<Object> payloads, List<Long> seqNums, int bytes, Object payload, long seqNum) throws IOException
+    {
+        int length = (payload instanceof byte[] ? ((byte[]) payload).length : ((String) payload).length());
+        
+        // flush when the next message exceeds the write limit
+        if (!payloads.isEmpty() && bytes + length > writeMaxBytes)
+        {
+            flush(payloads, seqNums);
+            bytes = 0;
+        }
+        
+        payloads.add(payload);
+        seqNums.add(seqNum);
+        
+        return bytes + length;
+    }
+    
+    private void flush(List<Object> payloads, List<Long> seqNums) throws IOException
+    {
+        int count = payloads.size();
+        
+        if (count == 0)
+            return;
+        
+        if (count == 1)
+            send(payloads.get(0));
+        else
+            webSocket.send(payloads);
+        
+        payloads.clear();
+        
+        if (!qos)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                long seqNum = seqNums.get(i);
+                
+                if (seqNum > 0)
+                    requestSuccess(seqNum, null);
+            }
+        }
+        
+        seqNums.clear();
+    }
+    
+    private void write()
+    {
+        try
+        {
+            List<Request> batch = new ArrayList<Request>();
+            Request request;
+            
+            while (webSocket.isConnected() && (request = writeQueue.poll()) != null)
+            {
+                batch.add(request);
+                
+                while (batch.size() < writeMaxFrames && (request = writeQueue.poll()) != null)
+                    batch.add(request);
+                
+                boolean open = send(batch);
+                
+                batch.clear();
+                
+                if (!open)
+                    break;
+            }
+        }
+        catch (IllegalStateException e)
+        {
+            // connection has been closed
+        }
+        catch (Exception e)
+        {
+            // the connection can no longer be written
+            webSocket.abort(e);
+        }
+    }
+    
+    /**
+     * Waits for the writer thread of the prior connection to stop. It
+     * was interrupted when that connection closed, and its writes fail
+     * on the closed socket. The event loop needs no waiting, since it
+     * reads and writes the connection on the same thread.
+     */
+    private void joinWriter()
+    {
+        Thread writer = this.writer;
+        
+        if (writer == null || writer == Thread.currentThread())
+            return;
+        
+        writer.interrupt();
+        
+        boolean interrupted = false;
+        
+        while (writer.isAlive())
+        {
+            try
+            {
+                writer.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
     
     @Override
     public void run() {
+        // the writer serves the connection it was started for
+        WebSocket webSocket = this.webSocket;
+        
         try
         {
+            List<Request> batch = new ArrayList<Request>();
+            
             while (webSocket.isConnected()) 
             {
-                Request request = writeQueue.take();
+                // send every request that is ready with a single write
+                batch.add(writeQueue.take());
+                writeQueue.drainTo(batch, writeMaxFrames - 1);
                 
-                if (request == DISCONNECT)
-                {
-                    // send a disconnect message and close
-                    JsonObject message = new JsonObject();
-                    message.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_DISCONNECT);
-                    webSocket.send(message.toString());
-                    webSocket.close();
-                }
-                else
-                {
-                    webSocket.send(request.getJson());
-                    
-                    if (!qos && request.getSeqNum() > 0)
-                    {
-                        requestSuccess(request.getSeqNum(), null);
-                    }
-                }
+                boolean open = send(batch);
+                
+                batch.clear();
+                
+                if (!open)
+                    break;
             }
         }
         catch (InterruptedException e)
@@ -1274,7 +2134,8 @@ public class WebSocketConnection implements Connection, WebSocketListener, Runna
         }
         catch (Exception e)
         {
-            // TODO
+            // the connection can no longer be written
+            webSocket.abort(e);
         }
     }
 
@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ */
+package com.tibco.eftl.json;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Parses UTF-8 encoded JSON text directly from bytes, without first
+ * decoding the text into a string.
+ * <p>
+ * The UTF-8 encoding is validated as strings are read, and strings
+ * that contain only ASCII characters are created with a single copy.
+ * Object keys are interned in a small per-parser cache, since the same
+ * keys occur in nearly every message.
+ * <p>
+ * A parser may be reused for any number of documents but is not
+ * thread-safe.
+ */
+public class JsonByteParser {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final int KEY_CACHE_SIZE = 256;
+    private static final int MAX_CACHED_KEY_LENGTH = 32;
+
+    private final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+    private byte[] src;
+    private int pos;
+    private int len;
+    private char[] chars = new char[64];
+
+    public Object parse(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return parse(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            return parse(data, 0, data.length);
+        }
+    }
+
+    public Object parse(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        src = data;
+        pos = offset;
+        len = offset + length;
+        try {
+            Object value = readJson();
+            consumeWhitespace();
+            if (pos < len) {
+                throw new JsonException("Expected end of stream at " + pos);
+            }
+            return value;
+        } finally {
+            src = null;
+        }
+    }
+
+    private Object readJson() {
+        consumeWhitespace();
+        while (pos < len) {
+            byte c = src[pos++];
+            switch (c) {
+            case '{':
+                return readJsonObject();
+            case '[':
+                return readJsonArray();
+            case '"':
+                return readJsonString(false);
+            case 't':
+                return readJsonTrue();
+            case 'f':
+                return readJsonFalse();
+            case 'n':
+                return readJsonNull();
+            case '-':
+            case '0':
+            case '1':
+            case '2':
+            case '3':
+            case '4':
+            case '5':
+            case '6':
+            case '7':
+            case '8':
+            case '9':
+                return readJsonNumber(c);
+            default:
+                throw new JsonException("Unexpected token: " + (char) (c & 0xFF));
+            }
+        }
+        return null;
+    }
+
+    private JsonObject readJsonObject() {
+        consumeWhitespace();
+
+        JsonObject object = new JsonObject();
+
+        // check for an empty object
+        if (pos < len && src[pos] == '}') {
+            pos++;
+            return object;
+        }
+
+        boolean needsComma = false;
+
+        while (pos < len) {
+            byte c = src[pos++];
+            switch(c) {
+            case '}':
+                if (!needsComma) {
+                    throw new JsonException("Unexpected comma in object literal");
+                }
+                return object;
+            case ',':
+                if (!needsComma) {
+                    throw new JsonException("Unexpected comma in object literal");
+                }
+                needsComma = false;
+                break;
+            case '"':
+                if (needsComma) {
+                    throw new JsonException("Missing comma in object literal");
+                }
+                needsComma = true;
+                String name = readJsonString(true);
+                consumeChar(':');
+                object.put(name, readJson());
+                break;
+            default:
+                throw new JsonException("Unexpected token in object literal");
+            }
+
+            consumeWhitespace();
+        }
+
+        throw new JsonException("Unterminated object literal");
+    }
+
+    private JsonArray readJsonArray() {
+        consumeWhitespace();
+
+        JsonArray array = new JsonArray();
+
+        // check for an empty array
+        if (pos < len && src[pos] == ']') {
+            pos++;
+            return array;
+        }
+
+        boolean needsComma = false;
+
+        while (pos < len) {
+            byte c = src[pos];
+            switch(c) {
+            case ']':
+                if (!needsComma) {
+                    throw new JsonException("Unexpected comma in array literal");
+                }
+                pos++;
+                return array;
+            case ',':
+                if (!needsComma) {
+                    throw new JsonException("Unexpected comma in array literal");
+                }
+                needsComma = false;
+                pos++;
+                break;
+            default:
+                if (needsComma) {
+                    throw new JsonException("Missing comma in array literal");
+                }
+                needsComma = true;
+                array.add(readJson());
+            }
+
+            consumeWhitespace();
+        }
+
+        throw new JsonException("Unterminated array literal");
+    }
+
+    private String readJsonString(boolean key) {
+
+        int start = pos;
+
+        // optimal case when string contains only ASCII characters
+        // and no escape characters
+
+        while (pos < len) {
+            byte c = src[pos++];
+            if (c == '"') {
+                int length = pos - 1 - start;
+                if (key && length <= MAX_CACHED_KEY_LENGTH) {
+                    return cachedKey(start, length);
+                }
+                return new String(src, start, length, ISO_8859_1);
+            } else if (c == '\\' || c < 0) {
+                pos--;
+                break;
+            } else if (c <= 0x1F) {
+                throw new JsonException("String contains control character");
+            }
+        }
+
+        // non-optimal case where string contains escape
+        // or non-ASCII characters
+
+        int count = 0;
+
+        for (int i = start; i < pos; i++) {
+            append(count++, (char) src[i]);
+        }
+
+        while (pos < len) {
+            int c = src[pos++];
+            if (c == '"') {
+                return new String(chars, 0, count);
+            } else if (c == '\\') {
+                c = nextChar();
+                switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    append(count++, (char) c);
+                    break;
+                case 'b':
+                    append(count++, '\b');
+                    break;
+                case 'f':
+                    append(count++, '\f');
+                    break;
+                case 'n':
+                    append(count++, '\n');
+                    break;
+                case 'r':
+                    append(count++, '\r');
+                    break;
+                case 't':
+                    append(count++, '\t');
+                    break;
+                case 'u':
+                    if (len - pos < 5) {
+                        throw new JsonException("Invalid character code: \\u" + new String(src, pos, len - pos, ISO_8859_1));
+                    }
+                    int code = fromHex(src[pos]) << 12 |
+                               fromHex(src[pos+1]) <<  8 |
+                               fromHex(src[pos+2]) <<  4 |
+                               fromHex(src[pos+3]);
+                    if (code < 0) {
+                        throw new JsonException("Invalid character code: " + new String(src, pos, 4, ISO_8859_1));
+                    }
+                    pos += 4;
+                    append(count++, (char) code);
+                    break;
+                default:
+                    throw new JsonException("Unexpected character in string: '\\" + (char) (c & 0xFF) + "'");
+                }
+            } else if (c >= 0) {
+                if (c <= 0x1F) {
+                    throw new JsonException("String contains control character");
+                }
+                append(count++, (char) c);
+            } else {
+                int cp = readCodePoint(c);
+                if (cp >= 0x10000) {
+                    append(count++, Character.highSurrogate(cp));
+                    append(count++, Character.lowSurrogate(cp));
+                } else {
+                    append(count++, (char) cp);
+                }
+            }
+        }
+
+        throw new JsonException("Unterminated string literal");
+    }
+
+    /**
+     * Decodes and validates a multi-byte UTF-8 sequence whose first
+     * byte has already been consumed.
+     */
+    private int readCodePoint(int b) {
+        int cp;
+        int n;
+        int min;
+        if ((b & 0xE0) == 0xC0) {
+            cp = b & 0x1F;
+            n = 1;
+            min = 0x80;
+        } else if ((b & 0xF0) == 0xE0) {
+            cp = b & 0x0F;
+            n = 2;
+            min = 0x800;
+        } else if ((b & 0xF8) == 0xF0) {
+            cp = b & 0x07;
+            n = 3;
+            min = 0x10000;
+        } else {
+            throw new JsonException("Invalid UTF-8 sequence at " + (pos - 1));
+        }
+        if (len - pos < n) {
+            throw new JsonException("Truncated UTF-8 sequence at " + (pos - 1));
+        }
+        for (int i = 0; i < n; i++) {
+            int c = src[pos++];
+            if ((c & 0xC0) != 0x80) {
+                throw new JsonException("Invalid UTF-8 sequence at " + (pos - 1));
+            }
+            cp = (cp << 6) | (c & 0x3F);
+        }
+        if (cp < min || cp > Character.MAX_CODE_POINT || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE)) {
+            throw new JsonException("Invalid UTF-8 sequence at " + (pos - n - 1));
+        }
+        return cp;
+    }
+
+    private void append(int index, char c) {
+        if (index == chars.length) {
+            char[] grown = new char[chars.length * 2];
+            System.arraycopy(chars, 0, grown, 0, index);
+            chars = grown;
+        }
+        chars[index] = c;
+    }
+
+    private String cachedKey(int start, int length) {
+        int hash = 0;
+        for (int i = start, end = start + length; i < end; i++) {
+            hash = 31 * hash + src[i];
+        }
+        int index = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+
+        String key = keyCache[index];
+        if (key != null && key.length() == length) {
+            int i = 0;
+            while (i < length && key.charAt(i) == src[start + i]) {
+                i++;
+            }
+            if (i == length) {
+                return key;
+            }
+        }
+
+        key = new String(src, start, length, ISO_8859_1);
+        keyCache[index] = key;
+        return key;
+    }
+
+    private int fromHex(byte c) {
+        return c >= '0' && c <= '9' ? c - '0'
+                : c >= 'A' && c <= 'F' ? c - 'A' + 10
+                        : c >= 'a' && c <= 'f' ? c - 'a' + 10
+                                : -1;
+    }
+
+    private Number readJsonNumber(byte c) {
+        final int start = pos - 1;
+
+        boolean negative = false;
+
+        if (c == '-') {
+            negative = true;
+            c = nextChar();
+            if (!(c >= '0' && c <= '9')) {
+                throw new JsonException("Invalid number format: " + text(start, pos));
+            }
+        }
+
+        if (c != '0') {
+            readDigits();
+        }
+
+        boolean isDouble = false;
+
+        // fraction part
+        if (pos < len) {
+            c = src[pos];
+            if (c == '.') {
+                pos++;
+                c = nextChar();
+                if (!(c >= '0' && c <= '9')) {
+                    throw new JsonException("Invalid number format: " + text(start, pos));
+                }
+                readDigits();
+                isDouble = true;
+            }
+        }
+
+        // exponent part
+        if (pos < len) {
+            c = src[pos];
+            if (c == 'e' || c == 'E') {
+                pos++;
+                c = nextChar();
+                if (c == '-' || c == '+') {
+                    c = nextChar();
+                }
+                if (!(c >= '0' && c <= '9')) {
+                    throw new JsonException("Invalid number format: " + text(start, pos));
+                }
+                readDigits();
+                isDouble = true;
+            }
+        }
+
+        if (isDouble) {
+            return Double.valueOf(text(start, pos));
+        }
+
+        // accumulate negatively to cover the range of long
+        long value = 0;
+        for (int i = (negative ? start + 1 : start); i < pos; i++) {
+            int digit = src[i] - '0';
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                // overflow, must be a double
+                return Double.valueOf(text(start, pos));
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                return Double.valueOf(text(start, pos));
+            }
+            value = -value;
+        }
+        return Long.valueOf(value);
+    }
+
+    private String text(int start, int end) {
+        return new String(src, start, end - start, ISO_8859_1);
+    }
+
+    private void readDigits() {
+        for (; pos < len; pos++) {
+            byte c = src[pos];
+            if (!(c >= '0' && c <= '9')) {
+                break;
+            }
+        }
+    }
+
+    private Boolean readJsonTrue() {
+        if (len - pos < 3
+                || src[pos]   != 'r'
+                || src[pos+1] != 'u'
+                || src[pos+2] != 'e') {
+            throw new JsonException("Unexpected token: t");
+        }
+        pos += 3;
+        return Boolean.TRUE;
+    }
+
+    private Boolean readJsonFalse() {
+        if (len - pos < 4
+                || src[pos]   != 'a'
+                || src[pos+1] != 'l'
+                || src[pos+2] != 's'
+                || src[pos+3] != 'e') {
+            throw new JsonException("Unexpected token: f");
+        }
+        pos += 4;
+        return Boolean.FALSE;
+    }
+
+    private Object readJsonNull() {
+        if (len - pos < 3
+                || src[pos]   != 'u'
+                || src[pos+1] != 'l'
+                || src[pos+2] != 'l') {
+            throw new JsonException("Unexpected token: n");
+        }
+        pos += 3;
+        return null;
+    }
+
+    private byte nextChar() {
+        if (pos >= len) {
+            throw new JsonException("Unexpected end of stream");
+        }
+        return src[pos++];
+    }
+
+    private void consumeChar(char token) {
+        consumeWhitespace();
+        if (pos >= len) {
+            throw new JsonException("Expected " + token + " but reached end of stream");
+        }
+        byte c = src[pos++];
+        if (c == token) {
+            return;
+        } else {
+            throw new JsonException("Expected " + token + " found " + (char) (c & 0xFF));
+        }
+    }
+
+    private void consumeWhitespace() {
+        while (pos < len) {
+            byte c = src[pos];
+            switch (c) {
+            case ' ':
+            case '\t':
+            case '\r':
+            case '\n':
+                pos++;
+                break;
+            default:
+                return;
+            }
+        }
+    }
+}
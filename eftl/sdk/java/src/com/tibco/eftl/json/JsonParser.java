@@ -335,7 +335,7 @@ public class JsonParser {
                 || src.charAt(pos+3) != 'e') {
             throw new JsonException("Unexpected token: f");
         }
-        pos += 3;
+        pos += 4;
         return Boolean.FALSE;
     }
 
@@ -16,6 +16,10 @@ public class JsonValue {
         return new JsonParser(text).parse();
     }
     
+    public static Object parse(byte[] data, int offset, int length) {
+        return new JsonByteParser().parse(data, offset, length);
+    }
+    
     protected static void writeJson(Object value, Appendable out) throws IOException {
         if (value == null) {
             out.append("null");
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A pool of byte arrays and direct byte buffers in power-of-two size
+ * classes.
+ * <p>
+ * Buffers are borrowed with one of the acquire methods and returned with
+ * the matching release method once they are no longer referenced.
+ * Requests larger than the largest size class are allocated and
+ * released to the garbage collector as usual. Each size class retains
+ * a bounded number of bytes.
+ * <p>
+ * The pool records the arrays it lends and only takes back those, once
+ * each, so an array it did not hand out or one released twice can never
+ * be handed to two borrowers at once.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 10;
+
+    private static BufferPool defaultPool;
+
+    private final int maxShift;
+    private final SizeClass[] arrays;
+    private final SizeClass[] buffers;
+
+    private static final class SizeClass {
+
+        private final Object[] slots;
+        private int count;
+
+        // arrays compare by identity, so a weak map records the lent
+        // arrays without keeping those the borrower drops
+        private final Map<Object, Boolean> lent;
+
+        SizeClass(int capacity, boolean tracked) {
+            slots = new Object[capacity];
+            lent = (tracked ? new WeakHashMap<Object, Boolean>() : null);
+        }
+
+        synchronized Object poll() {
+            if (count == 0)
+                return null;
+            Object value = slots[--count];
+            slots[count] = null;
+            if (lent != null)
+                lent.put(value, Boolean.TRUE);
+            return value;
+        }
+
+        synchronized void lend(Object value) {
+            if (lent != null)
+                lent.put(value, Boolean.TRUE);
+        }
+
+        synchronized void offer(Object value) {
+            if (lent != null) {
+                if (lent.remove(value) == null)
+                    return;
+            } else {
+                for (int i = 0; i < count; i++) {
+                    if (slots[i] == value)
+                        return;
+                }
+            }
+            if (count < slots.length)
+                slots[count++] = value;
+        }
+    }
+
+    /**
+     * Returns the pool shared by all connections, with size classes
+     * from 1K to 1M that each retain up to 1M.
+     */
+    public static synchronized BufferPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new BufferPool(1024*1024, 1024*1024);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * @param maxSize The largest pooled size, rounded up to a power of two.
+     * @param maxBytesPerClass The number of bytes retained by each size class.
+     */
+    public BufferPool(int maxSize, int maxBytesPerClass) {
+        maxShift = Math.max(MIN_SHIFT, shift(maxSize));
+        arrays = new SizeClass[maxShift - MIN_SHIFT + 1];
+        buffers = new SizeClass[maxShift - MIN_SHIFT + 1];
+        for (int i = 0; i < arrays.length; i++) {
+            int capacity = Math.min(256, Math.max(2, maxBytesPerClass >> (MIN_SHIFT + i)));
+            arrays[i] = new SizeClass(capacity, true);
+            buffers[i] = new SizeClass(capacity, false);
+        }
+    }
+
+    /** Returns an array of at least the requested size. */
+    public byte[] acquire(int size) {
+        int shift = shift(size);
+        if (shift > maxShift)
+            return new byte[size];
+        SizeClass sizeClass = arrays[shift - MIN_SHIFT];
+        byte[] array = (byte[]) sizeClass.poll();
+        if (array == null) {
+            array = new byte[1 << shift];
+            sizeClass.lend(array);
+        }
+        return array;
+    }
+
+    /**
+     * Returns an array to the pool. The array must no longer be referenced.
+     * Arrays that were not acquired from this pool, or that were already
+     * released, are ignored.
+     */
+    public void release(byte[] array) {
+        if (array == null)
+            return;
+        int index = classIndex(array.length);
+        if (index >= 0)
+            arrays[index].offer(array);
+    }
+
+    /**
+     * Returns a cleared direct buffer with a capacity of at least
+     * the requested size.
+     */
+    public ByteBuffer acquireDirect(int size) {
+        int shift = shift(size);
+        if (shift > maxShift)
+            return ByteBuffer.allocateDirect(size);
+        ByteBuffer buffer = (ByteBuffer) buffers[shift - MIN_SHIFT].poll();
+        return (buffer != null ? buffer : ByteBuffer.allocateDirect(1 << shift));
+    }
+
+    /**
+     * Returns a direct buffer to the pool. The buffer must no longer be
+     * referenced. A buffer that is already in the pool is not added again.
+     */
+    public void releaseDirect(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect())
+            return;
+        int index = classIndex(buffer.capacity());
+        if (index >= 0) {
+            buffer.clear();
+            buffers[index].offer(buffer);
+        }
+    }
+
+    /** Returns the size class index of an exact class size, or -1. */
+    private int classIndex(int size) {
+        if (size < (1 << MIN_SHIFT) || Integer.bitCount(size) != 1)
+            return -1;
+        int shift = Integer.numberOfTrailingZeros(size);
+        return (shift <= maxShift ? shift - MIN_SHIFT : -1);
+    }
+
+    /** Returns the smallest power-of-two exponent not less than MIN_SHIFT that holds size. */
+    private static int shift(int size) {
+        if (size <= (1 << MIN_SHIFT))
+            return MIN_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
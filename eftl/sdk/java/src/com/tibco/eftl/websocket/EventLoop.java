@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single-threaded selector loop that multiplexes the I/O of many
+ * non-blocking channels and runs submitted and timed tasks.
+ * <p>
+ * All channel operations and handler callbacks are performed on the
+ * event loop thread.
+ */
+public class EventLoop implements Runnable {
+
+    public interface Handler {
+
+        public void onReady(SelectionKey key);
+    }
+
+    public static final class Timeout implements Comparable<Timeout> {
+
+        private final Runnable task;
+        private final long deadline;
+        private final long sequence;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline, long sequence) {
+            this.task = task;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Timeout other) {
+            if (deadline != other.deadline) {
+                return (deadline - other.deadline < 0 ? -1 : 1);
+            }
+            return (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
+        }
+    }
+
+    private static EventLoop defaultLoop;
+
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timeout> timeouts = new PriorityQueue<Timeout>();
+    private final AtomicLong timeoutSequence = new AtomicLong();
+    private final AtomicBoolean wakeup = new AtomicBoolean();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean running = true;
+    private volatile Thread thread;
+
+    /**
+     * Returns the event loop shared by all non-blocking WebSockets that
+     * were not assigned an event loop of their own.
+     */
+    public static synchronized EventLoop getDefault() {
+        if (defaultLoop == null) {
+            defaultLoop = new EventLoop("EFTL EventLoop");
+        }
+        return defaultLoop;
+    }
+
+    public EventLoop(String name) {
+        this.name = name;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean inEventLoop() {
+        return (Thread.currentThread() == thread);
+    }
+
+    public void execute(Runnable task) {
+        start();
+        tasks.offer(task);
+        if (!inEventLoop() && wakeup.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        final Timeout timeout = new Timeout(task,
+                System.nanoTime() + unit.toNanos(delay),
+                timeoutSequence.incrementAndGet());
+
+        if (inEventLoop()) {
+            timeouts.add(timeout);
+        } else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    timeouts.add(timeout);
+                }
+            });
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Registers a channel with this event loop. Must be invoked on the
+     * event loop thread.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        if (!inEventLoop())
+            throw new IllegalStateException("not invoked on the event loop thread");
+        return channel.register(selector, ops, handler);
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                long delay = runTimeouts();
+
+                wakeup.set(false);
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(delay);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((Handler) key.attachment()).onReady(key);
+                    }
+                }
+
+                runTasks();
+            }
+        } catch (IOException e) {
+            // selector failure
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void runTasks() {
+        for (Runnable task; (task = tasks.poll()) != null;) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                // discard exceptions thrown by the task
+            }
+        }
+    }
+
+    /**
+     * Runs the expired timeouts and returns the number of milliseconds
+     * until the next timeout expires, or 0 if there are none.
+     */
+    private long runTimeouts() {
+        long now = System.nanoTime();
+
+        for (Timeout timeout; (timeout = timeouts.peek()) != null;) {
+            if (timeout.cancelled) {
+                timeouts.poll();
+            } else if (timeout.deadline - now <= 0) {
+                timeouts.poll();
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    // discard exceptions thrown by the task
+                }
+            } else {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout.deadline - now));
+            }
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Process-wide statistics of the TLS handshakes performed by secure
+ * WebSockets.
+ * <p>
+ * A handshake is counted as resumed when the negotiated session was
+ * created before the handshake started, that is, when the session was
+ * taken from the session cache or a session ticket.
+ */
+public final class HandshakeMetrics {
+
+    private static final AtomicLong handshakes = new AtomicLong();
+    private static final AtomicLong resumed = new AtomicLong();
+    private static final AtomicLong totalNanos = new AtomicLong();
+    private static final AtomicLong maxNanos = new AtomicLong();
+
+    private HandshakeMetrics() {
+    }
+
+    /**
+     * Records a completed handshake and returns true if it resumed a
+     * previous session.
+     */
+    static boolean record(SSLSession session, long startNanos, long startMillis) {
+        long elapsed = System.nanoTime() - startNanos;
+        boolean isResumed = (session != null && session.getCreationTime() < startMillis);
+
+        handshakes.incrementAndGet();
+        if (isResumed)
+            resumed.incrementAndGet();
+        totalNanos.addAndGet(elapsed);
+
+        for (long max = maxNanos.get(); elapsed > max; max = maxNanos.get()) {
+            if (maxNanos.compareAndSet(max, elapsed))
+                break;
+        }
+
+        return isResumed;
+    }
+
+    /** Returns the number of completed handshakes. */
+    public static long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /** Returns the number of completed handshakes that resumed a session. */
+    public static long getResumedCount() {
+        return resumed.get();
+    }
+
+    /** Returns the total time spent in completed handshakes. */
+    public static long getTotalHandshakeTime(TimeUnit unit) {
+        return unit.convert(totalNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the longest completed handshake. */
+    public static long getMaxHandshakeTime(TimeUnit unit) {
+        return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public static void reset() {
+        handshakes.set(0);
+        resumed.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+}
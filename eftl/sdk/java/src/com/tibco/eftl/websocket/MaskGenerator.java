@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Source of the 4-byte masks applied to client frames.
+ */
+public interface MaskGenerator {
+
+    public int nextMask();
+
+    /**
+     * Cryptographically strong masks from a per-thread {@link SecureRandom},
+     * avoiding contention on a shared instance.
+     */
+    public static final MaskGenerator SECURE = new MaskGenerator() {
+
+        private final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+            @Override
+            protected SecureRandom initialValue() {
+                try {
+                    // an instance-synchronized PRNG, unlike the
+                    // globally synchronized native PRNG
+                    SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+                    random.setSeed(new SecureRandom().generateSeed(20));
+                    return random;
+                } catch (NoSuchAlgorithmException e) {
+                    return new SecureRandom();
+                }
+            }
+        };
+
+        @Override
+        public int nextMask() {
+            return random.get().nextInt();
+        }
+    };
+
+    /**
+     * Fast, non-cryptographic masks from {@link ThreadLocalRandom}.
+     * Suitable when the client does not send payloads chosen by
+     * untrusted code.
+     */
+    public static final MaskGenerator FAST = new MaskGenerator() {
+
+        @Override
+        public int nextMask() {
+            return ThreadLocalRandom.current().nextInt();
+        }
+    };
+}
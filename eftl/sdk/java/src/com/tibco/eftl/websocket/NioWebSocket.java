@@ -0,0 +1,582 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A WebSocket that performs its I/O on a non-blocking {@link SocketChannel}
+ * driven by an {@link EventLoop} instead of a dedicated reader thread.
+ * <p>
+ * Listener callbacks are invoked on the event loop thread.
+ */
+public class NioWebSocket extends WebSocket implements EventLoop.Handler {
+
+    private static final int BUFFER_SIZE = 128*1024;
+
+    // senders block once this many bytes are waiting to be written
+    private static final int MAX_PENDING_BYTES = 4*1024*1024;
+
+    private final EventLoop loop;
+    private final Object writeLock = new Object();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+    };
+
+    private volatile SocketChannel channel;
+    private SelectionKey key;
+    private SSLEngine engine;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private boolean released;
+    private long handshakeStartNanos;
+    private long handshakeStartMillis;
+    private ByteBuffer outbound;
+    private UpgradeRequest request;
+    private boolean upgraded;
+    private boolean shutdownOutput;
+    private long lastReadTime;
+    private EventLoop.Timeout connectTimer;
+    private EventLoop.Timeout idleTimer;
+
+    public NioWebSocket(URI uri, WebSocketListener listener) {
+        this(uri, listener, EventLoop.getDefault());
+    }
+
+    public NioWebSocket(URI uri, WebSocketListener listener, EventLoop loop) {
+        super(uri, listener);
+        this.loop = loop;
+    }
+
+    @Override
+    public void setSocketTimeout(int socketTimeout, TimeUnit unit) {
+        super.setSocketTimeout(socketTimeout, unit);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (upgraded) {
+                    scheduleIdleCheck(NioWebSocket.this.socketTimeout);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean isListenerThread() {
+        // the loop may also read the other connections it serves
+        return loop.inEventLoop();
+    }
+
+    // Implementation /////////////////////////////////////////////////////////
+
+    @Override
+    void connect() {
+        if (address != null) {
+            connect(getSocketAddress());
+            return;
+        }
+
+        // the lookup may be slow, and must not hold up the other
+        // connections of the loop when reconnecting from it
+        Thread resolver = VirtualThreads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                connect(getSocketAddress());
+            }
+        }, "EFTL Resolver", virtualThreads);
+        resolver.setDaemon(true);
+        resolver.start();
+    }
+
+    private void connect(final InetSocketAddress socketAddress) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (socketAddress.isUnresolved())
+                        throw new UnknownHostException(socketAddress.getHostName());
+                    open(socketAddress);
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    @Override
+    void disconnect() {
+        cancelTimers();
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        synchronized (writeLock) {
+            writeLock.notifyAll();
+        }
+        if (deflate != null || bufferPool != null) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (writeLock) {
+                        endCompression();
+                    }
+                    releaseBuffers();
+                }
+            });
+        }
+    }
+
+    @Override
+    void releaseBuffers() {
+        super.releaseBuffers();
+        if (bufferPool == null)
+            return;
+        synchronized (writeLock) {
+            if (released)
+                return;
+            released = true;
+            bufferPool.releaseDirect(outbound);
+            outbound = null;
+        }
+        bufferPool.releaseDirect(appIn);
+        bufferPool.releaseDirect(netIn);
+        bufferPool.releaseDirect(netOut);
+        appIn = null;
+        netIn = null;
+        netOut = null;
+    }
+
+    /** 
+     * Allocates a read or network buffer, off-heap from the buffer pool 
+     * if there is one. 
+     */
+    private ByteBuffer allocate(int size) {
+        if (bufferPool != null)
+            return bufferPool.acquireDirect(size);
+        return ByteBuffer.allocate(size);
+    }
+
+    private ByteBuffer allocateOutbound() {
+        if (bufferPool != null)
+            return bufferPool.acquireDirect(WRITE_BUFFER_SIZE);
+        return ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    }
+
+    @Override
+    void disconnect(int code) {
+        try {
+            write(WebSocketFrame.closeFrame(code));
+            synchronized (writeLock) {
+                shutdownOutput = true;
+            }
+            scheduleFlush();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    void write(byte[] frame) throws IOException {
+        synchronized (writeLock) {
+            awaitWritable();
+            outbound = WebSocketFrame.ensureRemaining(outbound, frame.length);
+            outbound.put(frame);
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    void writeText(CharSequence text) throws IOException {
+        synchronized (writeLock) {
+            awaitWritable();
+            outbound = textFrame(outbound, text);
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    void writeMessages(List<?> messages) throws IOException {
+        synchronized (writeLock) {
+            awaitWritable();
+            for (Object message : messages)
+                outbound = messageFrame(outbound, message);
+        }
+        scheduleFlush();
+    }
+
+    private void awaitWritable() throws IOException {
+        if (!loop.inEventLoop()) {
+            while (isOpen() && outbound.position() > MAX_PENDING_BYTES) {
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        if (!isOpen())
+            throw new SocketException("Socket is closed");
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    connected();
+                }
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private boolean isOpen() {
+        SocketChannel channel = this.channel;
+        return (channel != null && channel.isOpen());
+    }
+
+    private void open(InetSocketAddress address) throws Exception {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setSendBufferSize(BUFFER_SIZE);
+        channel.socket().setReceiveBufferSize(BUFFER_SIZE);
+        channel.socket().setTcpNoDelay(true);
+
+        appIn = allocate(BUFFER_SIZE);
+        synchronized (writeLock) {
+            outbound = allocateOutbound();
+            this.channel = channel;
+        }
+
+        if (state.get() == ReadyState.CLOSED) {
+            // closed while the connect was pending
+            channel.close();
+            return;
+        }
+
+        // closed before there was a channel to close
+        if (forceClosed)
+            throw new SocketException("WebSocket closed");
+
+        if (connectTimeout > 0) {
+            connectTimer = loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!upgraded) {
+                        fail(new SocketTimeoutException("connect timed out"));
+                    }
+                }
+            }, connectTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        if (channel.connect(address)) {
+            key = loop.register(channel, 0, this);
+            connected();
+        } else {
+            key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    private void connected() throws Exception {
+        if (isSecure()) {
+            engine = getSSLContext().createSSLEngine(getHost(), getPort());
+            engine.setUseClientMode(true);
+            if (!trustAll) {
+                // hostname verification performed during the handshake
+                SSLParameters params = engine.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(params);
+            }
+            handshakeStartNanos = System.nanoTime();
+            handshakeStartMillis = System.currentTimeMillis();
+            int packetSize = engine.getSession().getPacketBufferSize();
+            netIn = allocate(Math.max(packetSize, BUFFER_SIZE));
+            netOut = allocate(Math.max(packetSize, BUFFER_SIZE));
+            engine.beginHandshake();
+        }
+
+        lastReadTime = System.nanoTime();
+        key.interestOps(SelectionKey.OP_READ);
+
+        // send HTTP upgrade request
+        request = newUpgradeRequest();
+        write(upgradeBytes(request));
+    }
+
+    private void read() throws Exception {
+        int numRead = channel.read(engine != null ? netIn : appIn);
+        if (numRead < 0)
+            throw new EOFException();
+
+        lastReadTime = System.nanoTime();
+
+        if (engine != null)
+            unwrap();
+
+        appIn.flip();
+        try {
+            if (!upgraded)
+                upgrade();
+            if (upgraded) {
+                process(appIn);
+                notifyReadComplete();
+            }
+        } finally {
+            appIn.compact();
+        }
+    }
+
+    private void upgrade() throws IOException, UpgradeException, WebSocketException {
+        // read HTTP upgrade response, leaving any frames that follow it
+        UpgradeResponse response = UpgradeResponse.parse(appIn);
+        if (response == null) {
+            if (appIn.limit() == appIn.capacity())
+                throw new IOException("HTTP response header too large");
+            return;
+        }
+        response.validate(request, protocols);
+
+        // set up the agreed upon extensions
+        negotiate(response);
+
+        // get the agreed upon protocol
+        protocol = response.getProtocol();
+
+        upgraded = true;
+
+        if (handshakeStartNanos != 0) {
+            handshakeCompleted(engine.getSession(), handshakeStartNanos, handshakeStartMillis);
+            handshakeStartNanos = 0;
+        }
+
+        if (connectTimer != null)
+            connectTimer.cancel();
+        scheduleIdleCheck(socketTimeout);
+
+        // notify listener
+        notifyOpen();
+    }
+
+    private void flush() throws IOException {
+        synchronized (writeLock) {
+            flushScheduled.set(false);
+
+            if (!isOpen() || key == null)
+                return;
+
+            boolean pending;
+
+            if (engine != null) {
+                wrap();
+                pending = (netOut.position() > 0 || outbound.position() > 0);
+            } else {
+                outbound.flip();
+                try {
+                    channel.write(outbound);
+                } finally {
+                    outbound.compact();
+                }
+                pending = (outbound.position() > 0);
+            }
+
+            if (pending) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (outbound.capacity() > WRITE_BUFFER_SIZE) {
+                    // release a buffer grown by a large frame
+                    ByteBuffer larger = outbound;
+                    outbound = allocateOutbound();
+                    if (bufferPool != null)
+                        bufferPool.releaseDirect(larger);
+                }
+                if (shutdownOutput && engine == null) {
+                    channel.socket().shutdownOutput();
+                    shutdownOutput = false;
+                }
+            }
+
+            writeLock.notifyAll();
+        }
+    }
+
+    private void scheduleFlush() throws IOException {
+        if (loop.inEventLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    private void wrap() throws IOException {
+        outbound.flip();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.wrap(outbound, netOut);
+
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    int position = netOut.position();
+                    writeNetOut();
+                    if (netOut.position() == position)
+                        break; // socket is full, wait for OP_WRITE
+                    continue;
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    break;
+                }
+
+                runDelegatedTasks();
+                checkHandshake(result);
+
+                if (result.bytesProduced() == 0 && result.bytesConsumed() == 0)
+                    break;
+            }
+        } finally {
+            outbound.compact();
+        }
+
+        writeNetOut();
+    }
+
+    private void checkHandshake(SSLEngineResult result) {
+        if (handshakeStartNanos != 0 && 
+            result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshakeCompleted(engine.getSession(), handshakeStartNanos, handshakeStartMillis);
+            handshakeStartNanos = 0;
+        }
+    }
+
+    private void writeNetOut() throws IOException {
+        netOut.flip();
+        try {
+            channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    appIn = WebSocketFrame.ensureRemaining(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    break;
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException();
+                }
+
+                checkHandshake(result);
+
+                SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    status = engine.getHandshakeStatus();
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP ||
+                    status == SSLEngineResult.HandshakeStatus.FINISHED) {
+                    flush();
+                }
+
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                    break;
+            }
+        } finally {
+            netIn.compact();
+        }
+
+        // make room for a TLS record larger than the buffer
+        if (!netIn.hasRemaining()) {
+            netIn = WebSocketFrame.ensureRemaining(netIn, engine.getSession().getPacketBufferSize());
+        }
+    }
+
+    private void runDelegatedTasks() throws SSLException {
+        for (Runnable task; (task = engine.getDelegatedTask()) != null;) {
+            task.run();
+        }
+    }
+
+    private void scheduleIdleCheck(final long timeout) {
+        if (idleTimer != null)
+            idleTimer.cancel();
+        idleTimer = null;
+
+        if (timeout <= 0)
+            return;
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadTime);
+
+        idleTimer = loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadTime);
+                if (elapsed >= timeout) {
+                    fail(new SocketTimeoutException("Read timed out"));
+                } else {
+                    scheduleIdleCheck(timeout);
+                }
+            }
+        }, Math.max(timeout - elapsed, 1), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimers() {
+        EventLoop.Timeout timer;
+        if ((timer = connectTimer) != null)
+            timer.cancel();
+        if ((timer = idleTimer) != null)
+            timer.cancel();
+    }
+
+    private void fail(Throwable cause) {
+        notifyError(cause);
+        disconnect();
+    }
+}
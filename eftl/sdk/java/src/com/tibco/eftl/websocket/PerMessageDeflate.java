@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate extension (RFC 7692).
+ * <p>
+ * An instance created by the application describes the extension
+ * offered in the opening handshake. The instance returned by
+ * {@link #accept(String)} holds the negotiated parameters and the
+ * deflater and inflater used for the lifetime of the connection.
+ * <p>
+ * The client never offers client_max_window_bits since the deflater
+ * always uses a 32K window.
+ */
+public class PerMessageDeflate {
+
+    public static final String EXTENSION_NAME = "permessage-deflate";
+
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+    // trailing bytes of a DEFLATE block flushed with Z_SYNC_FLUSH
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+
+    private static final int BUFFER_SIZE = 8*1024;
+
+    private final int threshold;
+    private final boolean clientNoContextTakeover;
+    private final boolean serverNoContextTakeover;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private ByteBuffer encoded;
+    private byte[] deflated;
+    private byte[] inflated;
+
+    /**
+     * @param threshold Text messages whose encoded size is less
+     *                  than this number of bytes are sent uncompressed.
+     *                  Empty messages are never compressed.
+     * @param clientNoContextTakeover Reset the compression context
+     *                  after each message sent.
+     * @param serverNoContextTakeover Request that the server reset
+     *                  its compression context after each message.
+     */
+    public PerMessageDeflate(int threshold, boolean clientNoContextTakeover, boolean serverNoContextTakeover) {
+        this.threshold = Math.max(1, threshold);
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /** Returns the value of the Sec-WebSocket-Extensions request header. */
+    public String offer() {
+        StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+        if (clientNoContextTakeover)
+            offer.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        if (serverNoContextTakeover)
+            offer.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        return offer.toString();
+    }
+
+    /**
+     * Validates the Sec-WebSocket-Extensions response header against
+     * this offer. Returns the negotiated extension, or null if the server
+     * declined it.
+     */
+    public PerMessageDeflate accept(String response) throws WebSocketException {
+        if (response == null || response.trim().isEmpty())
+            return null;
+
+        String[] extensions = response.split(",");
+        if (extensions.length > 1)
+            throw new WebSocketException("unexpected extensions: " + response);
+
+        String[] params = extensions[0].split(";");
+        if (!EXTENSION_NAME.equalsIgnoreCase(params[0].trim()))
+            throw new WebSocketException("unexpected extension: " + params[0].trim());
+
+        boolean client = clientNoContextTakeover;
+        boolean server = false;
+
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            int eq = param.indexOf('=');
+            String name = (eq < 0 ? param : param.substring(0, eq).trim());
+
+            if (CLIENT_NO_CONTEXT_TAKEOVER.equalsIgnoreCase(name)) {
+                client = true;
+            } else if (SERVER_NO_CONTEXT_TAKEOVER.equalsIgnoreCase(name)) {
+                server = true;
+            } else if (SERVER_MAX_WINDOW_BITS.equalsIgnoreCase(name)) {
+                // the inflater accepts any window size
+            } else if (CLIENT_MAX_WINDOW_BITS.equalsIgnoreCase(name)) {
+                throw new WebSocketException(CLIENT_MAX_WINDOW_BITS + " was not offered");
+            } else {
+                throw new WebSocketException("unknown " + EXTENSION_NAME + " parameter: " + param);
+            }
+        }
+
+        if (serverNoContextTakeover && !server)
+            throw new WebSocketException(SERVER_NO_CONTEXT_TAKEOVER + " was not accepted");
+
+        PerMessageDeflate extension = new PerMessageDeflate(threshold, client, server);
+        extension.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        extension.inflater = new Inflater(true);
+        return extension;
+    }
+
+    /**
+     * Encodes a text frame into the buffer, compressing the payload
+     * if it is at least the threshold size.
+     */
+    public ByteBuffer textFrame(ByteBuffer buffer, CharSequence text, MaskGenerator generator) {
+        // no UTF-8 encoding of the text can reach the threshold
+        if (text.length() * 3L < threshold)
+            return WebSocketFrame.textFrame(buffer, text, generator);
+
+        if (encoded == null)
+            encoded = ByteBuffer.allocate(BUFFER_SIZE);
+        encoded.clear();
+        encoded = WebSocketFrame.ensureRemaining(encoded, WebSocketFrame.utf8Length(text));
+        WebSocketFrame.putUtf8(encoded, text);
+
+        int length = encoded.position();
+        if (length < threshold)
+            return WebSocketFrame.frame(buffer, WebSocketFrame.TEXT, encoded.array(), 0, length, generator);
+
+        int compressed = deflate(encoded.array(), 0, length);
+        buffer = WebSocketFrame.compressedFrame(buffer, WebSocketFrame.TEXT, deflated, 0, compressed, generator);
+
+        if (encoded.capacity() > WebSocket.WRITE_BUFFER_SIZE)
+            encoded = null;
+
+        return buffer;
+    }
+
+    /**
+     * Encodes a binary frame into the buffer, compressing the payload
+     * if it is at least the threshold size.
+     */
+    public ByteBuffer binaryFrame(ByteBuffer buffer, byte[] data, int offset, int length, MaskGenerator generator) {
+        if (length < threshold)
+            return WebSocketFrame.frame(buffer, WebSocketFrame.BINARY, data, offset, length, generator);
+
+        int compressed = deflate(data, offset, length);
+        return WebSocketFrame.compressedFrame(buffer, WebSocketFrame.BINARY, deflated, 0, compressed, generator);
+    }
+
+    /** Compresses the data and returns the number of compressed bytes. */
+    private int deflate(byte[] data, int offset, int length) {
+        if (deflated == null || deflated.length > WebSocket.WRITE_BUFFER_SIZE)
+            deflated = new byte[BUFFER_SIZE];
+
+        deflater.setInput(data, offset, length);
+
+        int count = 0;
+        while (true) {
+            count += deflater.deflate(deflated, count, deflated.length - count, Deflater.SYNC_FLUSH);
+            if (count < deflated.length)
+                break;
+            deflated = Arrays.copyOf(deflated, deflated.length * 2);
+        }
+
+        if (clientNoContextTakeover)
+            deflater.reset();
+
+        // remove the trailing empty block
+        return count - TAIL.length;
+    }
+
+    /**
+     * Decompresses a message payload. The returned buffer is valid
+     * until the next call.
+     */
+    public ByteBuffer inflate(byte[] data, int offset, int length) throws WebSocketException {
+        if (inflated == null || inflated.length > WebSocket.WRITE_BUFFER_SIZE)
+            inflated = new byte[BUFFER_SIZE];
+
+        try {
+            int count = inflate(data, offset, length, 0);
+            if (!inflater.finished())
+                count = inflate(TAIL, 0, TAIL.length, count);
+
+            // a final block ends the compression context
+            if (serverNoContextTakeover || inflater.finished())
+                inflater.reset();
+
+            return ByteBuffer.wrap(inflated, 0, count);
+        } catch (DataFormatException e) {
+            throw new WebSocketException("invalid compressed data: " + e.getMessage());
+        }
+    }
+
+    private int inflate(byte[] data, int offset, int length, int count) throws DataFormatException {
+        inflater.setInput(data, offset, length);
+        while (true) {
+            int n = inflater.inflate(inflated, count, inflated.length - count);
+            count += n;
+            if (count == inflated.length)
+                inflated = Arrays.copyOf(inflated, inflated.length * 2);
+            else if (inflater.needsInput() || inflater.finished())
+                return count;
+            else if (n == 0)
+                throw new DataFormatException("incomplete compressed data");
+        }
+    }
+
+    /** Releases the deflater and inflater. */
+    public void end() {
+        if (deflater != null)
+            deflater.end();
+        if (inflater != null)
+            inflater.end();
+    }
+}
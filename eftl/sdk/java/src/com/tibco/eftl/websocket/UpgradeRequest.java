@@ -24,6 +24,7 @@ public class UpgradeRequest {
     private final String username;
     private final String password;
     private final String clientId;
+    private final String extensions;
     
     private static final SecureRandom random = new SecureRandom();
     
@@ -34,12 +35,17 @@ public class UpgradeRequest {
     }
     
     public UpgradeRequest(URI uri, List<String> protocols, String username, String password, String clientId) {
+        this(uri, protocols, username, password, clientId, null);
+    }
+    
+    public UpgradeRequest(URI uri, List<String> protocols, String username, String password, String clientId, String extensions) {
         this.uri = uri;
         this.protocols = protocols.toArray(new String[0]);
         this.key = generateKey();
         this.username = username;
         this.password = password;
         this.clientId = clientId;
+        this.extensions = extensions;
     }
     
     public String getKey() {
@@ -95,6 +101,10 @@ public class UpgradeRequest {
             request.append("Sec-WebSocket-Protocol: ").append(protocol).append("\r\n");
         }
 
+        if (extensions != null) {
+            request.append("Sec-WebSocket-Extensions: ").append(extensions).append("\r\n");
+        }
+
         request.append("\r\n");
 
         return request.toString();
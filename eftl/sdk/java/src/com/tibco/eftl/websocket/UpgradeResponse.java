@@ -9,10 +9,10 @@
  */
 package com.tibco.eftl.websocket;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
@@ -21,6 +21,9 @@ import java.util.Map;
 
 public class UpgradeResponse {
 
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int MAX_HEADER_SIZE = 64*1024;
+
     private final String version;
     private final int statusCode;
     private final String statusReason;
@@ -34,30 +37,83 @@ public class UpgradeResponse {
         this.headers = new HashMap<String, String>();
     }
 
+    /**
+     * Reads the response header from the stream one byte at a time, so
+     * that no bytes following the header are consumed.
+     */
     public static UpgradeResponse read(InputStream stream) throws IOException {
-        UpgradeResponse response = null;
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+        while (true) {
+            int b = stream.read();
+            if (b < 0)
+                throw new IOException("no HTTP response");
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAX_HEADER_SIZE)
+                    throw new IOException("HTTP response header too large");
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            buffer.put((byte) b);
+            if (b == '\n' && endsHeader(buffer, buffer.position())) {
+                buffer.flip();
+                return parse(buffer);
+            }
+        }
+    }
 
-        for (String line; (line = reader.readLine()) != null;) {
-            if (line.isEmpty())
+    /**
+     * Parses a complete response header from the buffer, leaving the
+     * buffer positioned at the first byte following the header.
+     * Returns null, leaving the buffer unchanged, if the buffer does
+     * not yet hold the complete header.
+     */
+    public static UpgradeResponse parse(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int end = -1;
+        for (int i = start + 4; i <= buffer.limit(); i++) {
+            if (endsHeader(buffer, i)) {
+                end = i;
                 break;
-            if (response == null) {
-                String[] status = line.split(" ", 3);
-                response = new UpgradeResponse(status[0], Integer.parseInt(status[1]), status[2]);
-            } else {
-                String[] header = line.split(": ", 2);
-                response.setHeader(header[0], header[1]);
             }
         }
+        if (end < 0)
+            return null;
+
+        byte[] bytes = new byte[end - start];
+        buffer.get(bytes);
+        String[] lines = new String(bytes, 0, bytes.length - 4, ISO_8859_1).split("\r\n");
 
-        if (response == null) {
-            throw new IOException("no HTTP response");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2)
+            throw new IOException("invalid HTTP response: " + lines[0]);
+
+        UpgradeResponse response;
+        try {
+            response = new UpgradeResponse(status[0], Integer.parseInt(status[1]), (status.length > 2 ? status[2] : ""));
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid HTTP response: " + lines[0]);
+        }
+
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0)
+                throw new IOException("invalid HTTP header: " + lines[i]);
+            response.setHeader(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
         }
 
         return response;
     }
 
+    /** Returns true if the bytes before the index are CR LF CR LF. */
+    private static boolean endsHeader(ByteBuffer buffer, int index) {
+        return (index >= 4 &&
+                buffer.get(index-1) == '\n' && buffer.get(index-2) == '\r' &&
+                buffer.get(index-3) == '\n' && buffer.get(index-4) == '\r');
+    }
+
     public String getVersion() {
         return version;
     }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates virtual threads when running on a Java runtime that supports
+ * them (Java 21 or later), and platform threads otherwise.
+ * <p>
+ * The virtual thread API is accessed reflectively so that the library
+ * continues to run on Java 8.
+ */
+public final class VirtualThreads {
+
+    private static final Method ofVirtual;
+    private static final Method name;
+    private static final Method unstarted;
+
+    static {
+        Method ofVirtualMethod = null;
+        Method nameMethod = null;
+        Method unstartedMethod = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+            nameMethod = builder.getMethod("name", String.class);
+            unstartedMethod = builder.getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            // virtual threads are not supported by this runtime
+            ofVirtualMethod = null;
+        }
+        ofVirtual = ofVirtualMethod;
+        name = nameMethod;
+        unstarted = unstartedMethod;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return (ofVirtual != null);
+    }
+
+    /**
+     * Returns an unstarted thread that runs the task. A virtual thread is
+     * returned if requested and supported by the runtime, otherwise a
+     * platform thread is returned.
+     */
+    public static Thread newThread(Runnable task, String threadName, boolean virtual) {
+        if (virtual && isSupported()) {
+            try {
+                Object builder = ofVirtual.invoke(null);
+                builder = name.invoke(builder, threadName);
+                return (Thread) unstarted.invoke(builder, task);
+            } catch (Exception e) {
+                // fall back to a platform thread
+            }
+        }
+        return new Thread(task, threadName);
+    }
+}
@@ -13,16 +13,21 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -31,32 +36,54 @@ import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 public class WebSocket implements Runnable {
 
-    private enum ReadyState {
+    enum ReadyState {
         INIT, CONNECTING, OPEN, CLOSING, CLOSED;
     }
     
-    private URI uri;
-    private WebSocketListener listener;
-    private ArrayList<String> protocols;
-    private String protocol;
-    private Socket socket;
-    private TrustManager[] trustManagers;
-    private boolean trustAll;
-    private String username;
-    private String password;
-    private String clientId;
-    private AtomicReference<ReadyState> state = 
+    URI uri;
+    WebSocketListener listener;
+    ArrayList<String> protocols;
+    String protocol;
+    private volatile Socket socket;
+    private ByteBuffer writeBuffer;
+    TrustManager[] trustManagers;
+    boolean trustAll;
+    String username;
+    String password;
+    String clientId;
+    AtomicReference<ReadyState> state = 
             new AtomicReference<ReadyState>(ReadyState.INIT);
     
+    // frame dispatch
+    private WebSocketFrame frame = new WebSocketFrame();
+    private WebSocketFrame partialFrame;
+    private WebSocketFragmentListener fragmentListener;
+    private byte fragmentOpCode = -1;
+    
+    // writer buffers larger than this are released once written
+    static final int WRITE_BUFFER_SIZE = 128*1024;
+    
     // configuration
-    private int connectTimeout = 15000;
-    private int socketTimeout = 0;
+    int connectTimeout = 15000;
+    int socketTimeout = 0;
+    boolean virtualThreads;
+    InetAddress address;
+    String initialMessage;
+    MaskGenerator maskGenerator = MaskGenerator.SECURE;
+    volatile long handshakeNanos;
+    volatile boolean sessionResumed;
+    PerMessageDeflate compression;
+    BufferPool bufferPool;
+    volatile PerMessageDeflate deflate;
+    volatile Thread reader;
+    volatile boolean forceClosed;
 
     // Public API /////////////////////////////////////////////////////////////
     
@@ -102,6 +129,69 @@ public class WebSocket implements Runnable {
         this.trustAll = trustAll;
     }
 
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setMaskGenerator(MaskGenerator maskGenerator) {
+        this.maskGenerator = (maskGenerator != null ? maskGenerator : MaskGenerator.SECURE);
+    }
+
+    /**
+     * Deliver the fragments of fragmented messages to the fragment 
+     * listener as they arrive instead of reassembling them. Compressed
+     * messages are always reassembled.
+     */
+    public void setFragmentListener(WebSocketFragmentListener fragmentListener) {
+        this.fragmentListener = fragmentListener;
+    }
+
+    /**
+     * Borrow frame buffers from the pool. Message payloads passed to
+     * the listener are returned to the pool once the listener returns.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        frame.setBufferPool(bufferPool);
+    }
+
+    /**
+     * Offer the permessage-deflate extension in the opening handshake.
+     */
+    public void setCompression(PerMessageDeflate compression) {
+        this.compression = compression;
+    }
+    
+    /**
+     * Returns true if the server accepted the permessage-deflate extension.
+     */
+    public boolean isCompressed() {
+        return (deflate != null);
+    }
+
+    /**
+     * Connect to the given address rather than resolving the host of
+     * the URI. The host of the URI is still sent to the server and
+     * verified against its certificate.
+     */
+    public void setAddress(InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Send a text message immediately after the upgrade request, without
+     * waiting for the upgrade response, saving a round trip. The server
+     * must accept frames sent ahead of its response. The message is sent
+     * before the response is validated, and is never compressed.
+     */
+    public void setInitialMessage(String text) {
+        this.initialMessage = text;
+    }
+
+    public String getInitialMessage() {
+        return initialMessage;
+    }
+
     public void setUsername(String username) {
         this.username = username;
     }
@@ -133,14 +223,40 @@ public class WebSocket implements Runnable {
         }
     }
     
+    /**
+     * Closes the connection without the closing handshake. A connection
+     * not yet established stops before connecting, and the failure is
+     * reported to the listener as usual.
+     */
     public void forceClose() {
+        forceClosed = true;
+        disconnect();
+    }
+    
+    /** 
+     * Closes the connection after a failure, reporting the cause to the 
+     * listener unless the connection is already closed.
+     */
+    public void abort(Throwable cause) {
+        notifyError(cause);
         disconnect();
     }
     
     public void send(String text) throws IOException {
         if (!isConnected())
             throw new IllegalStateException("WebSocket is not open");
-        write(WebSocketFrame.textFrame(text));
+        writeText(text);
+    }
+    
+    /**
+     * Sends each message with a single write to the socket, a
+     * {@link CharSequence} as a text message and a byte array as
+     * a binary message.
+     */
+    public void send(List<?> messages) throws IOException {
+        if (!isConnected())
+            throw new IllegalStateException("WebSocket is not open");
+        writeMessages(messages);
     }
     
     public void send(byte[] data) throws IOException {
@@ -159,9 +275,18 @@ public class WebSocket implements Runnable {
         return (state.get() == ReadyState.OPEN);
     }
     
+    /**
+     * Returns true when invoked on the thread that reads the connection
+     * and invokes the listener, which must not wait on anything that
+     * only a later message can bring about.
+     */
+    public boolean isListenerThread() {
+        return (Thread.currentThread() == reader);
+    }
+    
     // Implementation /////////////////////////////////////////////////////////
 
-    private void notifyOpen() {
+    void notifyOpen() {
         try {
             ReadyState currentState = state.get();
             if (currentState == ReadyState.CONNECTING) {
@@ -174,7 +299,7 @@ public class WebSocket implements Runnable {
         }
     }
     
-    private void notifyClose(int code, String reason) {
+    void notifyClose(int code, String reason) {
         try {
             ReadyState currentState = state.get();
             if (currentState == ReadyState.CLOSING) {
@@ -193,7 +318,7 @@ public class WebSocket implements Runnable {
         }
     }
     
-    private void notifyError(Throwable cause) {
+    void notifyError(Throwable cause) {
         try {
             ReadyState currentState = state.get();
             if (currentState == ReadyState.CLOSING) {
@@ -210,19 +335,47 @@ public class WebSocket implements Runnable {
         }
     }
 
-    private void notifyMessage(WebSocketFrame frame) {
+    void notifyMessage(WebSocketFrame frame) throws WebSocketException {
+        byte[] data = frame.getPayload();
+        int length = frame.getPayloadLength();
+        
+        if (frame.isCompressed()) {
+            ByteBuffer inflated = deflate.inflate(data, 0, length);
+            data = inflated.array();
+            length = inflated.limit();
+        }
+        
         try {
             if (frame.getOpCode() == WebSocketFrame.TEXT) {
-                listener.onMessage(frame.getPayloadAsString());
+                listener.onTextMessage(data, 0, length);
+            } else if (bufferPool != null && !frame.isCompressed()) {
+                // the listener takes the pooled payload over
+                listener.onMessage(frame.detachPayload(), 0, length, bufferPool);
             } else {
-                listener.onMessage(frame.getPayload(), 0, frame.getPayloadLength());
+                listener.onMessage(data, 0, length);
             }
         } catch (Exception e) {
             // discard exceptions thrown by the listener
         }
     }
     
-    private void notifyPong(WebSocketFrame frame) {
+    void notifyReadComplete() {
+        try {
+            listener.onReadComplete();
+        } catch (Exception e) {
+            // discard exceptions thrown by the listener
+        }
+    }
+    
+    void notifyFragment(byte opcode, WebSocketFrame frame) {
+        try {
+            fragmentListener.onFragment(opcode, frame.getPayload(), 0, frame.getPayloadLength(), frame.isFin());
+        } catch (Exception e) {
+            // discard exceptions thrown by the listener
+        }
+    }
+    
+    void notifyPong(WebSocketFrame frame) {
         try {
             listener.onPong(frame.getPayload(), 0, frame.getPayloadLength());
         } catch (Exception e) {
@@ -230,11 +383,17 @@ public class WebSocket implements Runnable {
         }
     }
     
-    private String getHost() {
+    String getHost() {
         return uri.getHost();
     }
     
-    private int getPort() {
+    InetSocketAddress getSocketAddress() {
+        if (address != null)
+            return new InetSocketAddress(address, getPort());
+        return new InetSocketAddress(getHost(), getPort());
+    }
+
+    int getPort() {
         int port = uri.getPort();
         if (port == -1) {
             if ("wss".equalsIgnoreCase(uri.getScheme())) { 
@@ -248,13 +407,16 @@ public class WebSocket implements Runnable {
 
     @Override
     public void run() {
+        reader = Thread.currentThread();
         try {
             // socket connect
-            socket = getSocketFactory().createSocket();
-            socket.connect(new InetSocketAddress(getHost(), getPort()), connectTimeout);
+            socket = SocketFactory.getDefault().createSocket();
+            
+            // closed before there was a socket to close
+            if (forceClosed)
+                throw new SocketException("WebSocket closed");
             
-            // verify hostname
-            verifyHostname(getHost(), socket);
+            socket.connect(getSocketAddress(), connectTimeout);
             
             // socket configuration
             socket.setSoTimeout(socketTimeout);
@@ -262,14 +424,38 @@ public class WebSocket implements Runnable {
             socket.setReceiveBufferSize(128*1024);
             socket.setTcpNoDelay(true);
             
+            if (isSecure()) {
+                long startNanos = System.nanoTime();
+                long startMillis = System.currentTimeMillis();
+                
+                // layer TLS over the connected socket, identifying the
+                // peer by host and port so that cached sessions resume
+                socket = getSSLContext().getSocketFactory().createSocket(socket, getHost(), getPort(), true);
+                
+                // verify hostname
+                if (trustAll) {
+                    ((SSLSocket) socket).startHandshake();
+                } else {
+                    verifyHostname(getHost(), socket);
+                }
+                
+                handshakeCompleted(((SSLSocket) socket).getSession(), startNanos, startMillis);
+            }
+            
             // send HTTP upgrade request
-            UpgradeRequest request = new UpgradeRequest(uri, protocols, username, password, clientId);
-            request.write(socket.getOutputStream());
+            UpgradeRequest request = newUpgradeRequest();
+            synchronized(socket) {
+                socket.getOutputStream().write(upgradeBytes(request));
+            }
             
-            // read HTTP upgrade response
-            UpgradeResponse response = UpgradeResponse.read(socket.getInputStream());
+            // read HTTP upgrade response, keeping any frames that follow it
+            ByteBuffer buffer = ByteBuffer.allocate(128*1024);
+            UpgradeResponse response = readResponse(buffer);
             response.validate(request, protocols);
             
+            // set up the agreed upon extensions
+            negotiate(response);
+            
             // get the agreed upon protocol
             protocol = response.getProtocol();
             
@@ -277,7 +463,7 @@ public class WebSocket implements Runnable {
             notifyOpen();
             
             // dispatch frames
-            dispatch();
+            dispatch(buffer);
         } catch (Exception e) {
             notifyError(e);
         } finally {
@@ -287,69 +473,187 @@ public class WebSocket implements Runnable {
             } catch (IOException e) {
                 // ignore
             }
+            if (socket != null) {
+                synchronized(socket) {
+                    endCompression();
+                }
+            }
+            releaseBuffers();
+        }
+    }
+    
+    UpgradeRequest newUpgradeRequest() {
+        return new UpgradeRequest(uri, protocols, username, password, clientId,
+                (compression != null ? compression.offer() : null));
+    }
+    
+    /** Returns the upgrade request followed by the initial message, if any. */
+    byte[] upgradeBytes(UpgradeRequest request) {
+        byte[] header = request.toString().getBytes(Charset.forName("UTF-8"));
+        if (initialMessage == null)
+            return header;
+        ByteBuffer buffer = ByteBuffer.allocate(header.length + initialMessage.length());
+        buffer.put(header);
+        buffer = WebSocketFrame.textFrame(buffer, initialMessage, maskGenerator);
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+    
+    /**
+     * Reads until the buffer holds the complete upgrade response header.
+     * On return the buffer is positioned at the bytes following the header.
+     */
+    private UpgradeResponse readResponse(ByteBuffer buffer) throws IOException {
+        while (true) {
+            read(buffer);
+            buffer.flip();
+            UpgradeResponse response = UpgradeResponse.parse(buffer);
+            if (response != null)
+                return response;
+            if (buffer.limit() == buffer.capacity())
+                throw new IOException("HTTP response header too large");
+            buffer.compact();
+        }
+    }
+    
+    void negotiate(UpgradeResponse response) throws WebSocketException {
+        String extensions = response.getHeader("Sec-WebSocket-Extensions");
+        if (compression != null) {
+            deflate = compression.accept(extensions);
+        } else if (extensions != null) {
+            throw new WebSocketException("unexpected extensions: " + extensions);
+        }
+        frame.setCompressionEnabled(deflate != null);
+    }
+    
+    /** 
+     * Returns the frame buffers to the pool. Must be invoked by the 
+     * reading thread once reading has stopped.
+     */
+    void releaseBuffers() {
+        frame.release();
+        if (partialFrame != null) {
+            partialFrame.release();
+            partialFrame = null;
+        }
+    }
+    
+    /** Must be invoked while holding the write lock. */
+    void endCompression() {
+        PerMessageDeflate deflate = this.deflate;
+        this.deflate = null;
+        if (deflate != null)
+            deflate.end();
+    }
+    
+    /** Encodes a text or binary frame, compressing it if negotiated. */
+    ByteBuffer messageFrame(ByteBuffer buffer, Object message) {
+        if (message instanceof byte[]) {
+            byte[] data = (byte[]) message;
+            PerMessageDeflate deflate = this.deflate;
+            if (deflate != null)
+                return deflate.binaryFrame(buffer, data, 0, data.length, maskGenerator);
+            return WebSocketFrame.frame(buffer, WebSocketFrame.BINARY, data, 0, data.length, maskGenerator);
         }
+        return textFrame(buffer, (CharSequence) message);
+    }
+    
+    /** Encodes a text frame, compressing it if negotiated. */
+    ByteBuffer textFrame(ByteBuffer buffer, CharSequence text) {
+        PerMessageDeflate deflate = this.deflate;
+        if (deflate != null)
+            return deflate.textFrame(buffer, text, maskGenerator);
+        return WebSocketFrame.textFrame(buffer, text, maskGenerator);
     }
 
-    private void dispatch() throws IOException, WebSocketException {
-        WebSocketFrame frame = new WebSocketFrame();
-        WebSocketFrame partialFrame = null;
-        ByteBuffer buffer = ByteBuffer.allocate(128*1024);
+    private void dispatch(ByteBuffer buffer) throws IOException, WebSocketException {
+        // frames received along with the upgrade response
+        process(buffer);
+        buffer.clear();
+        notifyReadComplete();
 
         while (state.get() != ReadyState.CLOSED) {
             read(buffer);
             buffer.flip();
-            while (frame.parse(buffer)) {
-                switch (frame.getOpCode()) {
-                case WebSocketFrame.CONTINUATION:
-                    if (partialFrame == null) {
-                        throw new WebSocketException("unexpected continuation frame");
-                    }
-                    partialFrame.append(frame);
-                    if (partialFrame.isFin()) {
-                        notifyMessage(partialFrame);
-                        partialFrame = null;
-                    }
-                    break;
-                case WebSocketFrame.TEXT:
-                    if (partialFrame != null) {
-                        throw new WebSocketException("expected continuation frame");
-                    }
-                    if (frame.isFin()) {
-                        notifyMessage(frame);
-                    } else {
-                        partialFrame = frame.copy();
-                    }
-                    break;
-                case WebSocketFrame.BINARY:
-                    if (partialFrame != null) {
-                        throw new WebSocketException("expected continuation frame");
-                    }
+            process(buffer);
+            buffer.clear();
+            
+            // the burst ends when no more data has been received
+            if (socket.getInputStream().available() == 0)
+                notifyReadComplete();
+        }
+    }
+    
+    void process(ByteBuffer buffer) throws IOException, WebSocketException {
+        while (frame.parse(buffer)) {
+            switch (frame.getOpCode()) {
+            case WebSocketFrame.CONTINUATION:
+                if (fragmentOpCode >= 0) {
+                    notifyFragment(fragmentOpCode, frame);
                     if (frame.isFin()) {
-                        notifyMessage(frame);
-                    } else {
-                        partialFrame = frame.copy();
+                        fragmentOpCode = -1;
                     }
                     break;
-                case WebSocketFrame.CLOSE:
-                    notifyClose(frame.getCloseCode(), frame.getCloseReason());
-                    break;
-                case WebSocketFrame.PING:
-                    write(WebSocketFrame.pongFrame(frame.getPayload(), 0, frame.getPayloadLength()));
-                    break;
-                case WebSocketFrame.PONG:
-                    notifyPong(frame);
-                    break;
                 }
+                if (partialFrame == null) {
+                    throw new WebSocketException("unexpected continuation frame");
+                }
+                partialFrame.append(frame);
+                if (partialFrame.isFin()) {
+                    notifyMessage(partialFrame);
+                    partialFrame.release();
+                    partialFrame = null;
+                }
+                break;
+            case WebSocketFrame.TEXT:
+                if (partialFrame != null || fragmentOpCode >= 0) {
+                    throw new WebSocketException("expected continuation frame");
+                }
+                if (frame.isFin()) {
+                    notifyMessage(frame);
+                } else if (fragmentListener != null && !frame.isCompressed()) {
+                    fragmentOpCode = frame.getOpCode();
+                    notifyFragment(fragmentOpCode, frame);
+                } else {
+                    partialFrame = frame.copy();
+                }
+                break;
+            case WebSocketFrame.BINARY:
+                if (partialFrame != null || fragmentOpCode >= 0) {
+                    throw new WebSocketException("expected continuation frame");
+                }
+                if (frame.isFin()) {
+                    notifyMessage(frame);
+                } else if (fragmentListener != null && !frame.isCompressed()) {
+                    fragmentOpCode = frame.getOpCode();
+                    notifyFragment(fragmentOpCode, frame);
+                } else {
+                    partialFrame = frame.copy();
+                }
+                break;
+            case WebSocketFrame.CLOSE:
+                notifyClose(frame.getCloseCode(), frame.getCloseReason());
+                break;
+            case WebSocketFrame.PING:
+                write(WebSocketFrame.pongFrame(frame.getPayload(), 0, frame.getPayloadLength()));
+                break;
+            case WebSocketFrame.PONG:
+                notifyPong(frame);
+                break;
             }
-            buffer.clear();
         }
     }
     
-    private void connect() {
-        new Thread(this, "WebSocket").start();
+    void connect() {
+        VirtualThreads.newThread(this, "WebSocket", virtualThreads).start();
     }
     
-    private void disconnect() {
+    void disconnect() {
+        Socket socket = this.socket;
+        if (socket == null)
+            return;
         try {
             socket.close();
         } catch (IOException e) {
@@ -357,7 +661,7 @@ public class WebSocket implements Runnable {
         }
     }
     
-    private void disconnect(int code) {
+    void disconnect(int code) {
         try {
             write(WebSocketFrame.closeFrame(code));
             socket.shutdownOutput();
@@ -368,11 +672,36 @@ public class WebSocket implements Runnable {
         }
     }
     
-    private void write(byte[] frame) throws IOException {
+    void write(byte[] frame) throws IOException {
         synchronized(socket) {
             socket.getOutputStream().write(frame);
         }
     }
+    
+    void writeText(CharSequence text) throws IOException {
+        synchronized(socket) {
+            if (writeBuffer == null)
+                writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            writeBuffer.clear();
+            writeBuffer = textFrame(writeBuffer, text);
+            socket.getOutputStream().write(writeBuffer.array(), writeBuffer.arrayOffset(), writeBuffer.position());
+            if (writeBuffer.capacity() > WRITE_BUFFER_SIZE)
+                writeBuffer = null;
+        }
+    }
+
+    void writeMessages(List<?> messages) throws IOException {
+        synchronized(socket) {
+            if (writeBuffer == null)
+                writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            writeBuffer.clear();
+            for (Object message : messages)
+                writeBuffer = messageFrame(writeBuffer, message);
+            socket.getOutputStream().write(writeBuffer.array(), writeBuffer.arrayOffset(), writeBuffer.position());
+            if (writeBuffer.capacity() > WRITE_BUFFER_SIZE)
+                writeBuffer = null;
+        }
+    }
 
     private void read(ByteBuffer buffer) throws IOException {
         int numRead = socket.getInputStream().read(buffer.array(), buffer.position(), buffer.remaining());
@@ -381,16 +710,43 @@ public class WebSocket implements Runnable {
         buffer.position(buffer.position() + numRead);
     }
     
-    private SocketFactory getSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
-        if ("wss".equalsIgnoreCase(uri.getScheme())) {
-            SSLContext context = SSLContext.getInstance("TLS");
-            context.init(null, (trustAll ? TRUST_ALL : trustManagers), null);
-            return context.getSocketFactory();
-        } else {
-            return SocketFactory.getDefault();
+    boolean isSecure() {
+        return "wss".equalsIgnoreCase(uri.getScheme());
+    }
+    
+    /**
+     * Returns the SSL context for the trust configuration. Contexts are
+     * shared so that reconnects resume sessions from the context's 
+     * session cache instead of performing full handshakes.
+     */
+    SSLContext getSSLContext() throws NoSuchAlgorithmException, KeyManagementException {
+        TrustManager[] managers = (trustAll ? TRUST_ALL : trustManagers);
+        synchronized (contexts) {
+            SSLContext context = contexts.get(managers);
+            if (context == null) {
+                context = SSLContext.getInstance("TLS");
+                context.init(null, managers, null);
+                contexts.put(managers, context);
+            }
+            return context;
         }
     }
     
+    void handshakeCompleted(SSLSession session, long startNanos, long startMillis) {
+        handshakeNanos = System.nanoTime() - startNanos;
+        sessionResumed = HandshakeMetrics.record(session, startNanos, startMillis);
+    }
+    
+    /** Returns the duration of the TLS handshake, or 0 if there was none. */
+    public long getHandshakeTime(TimeUnit unit) {
+        return unit.convert(handshakeNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /** Returns true if the TLS handshake resumed a previous session. */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+    
     private void verifyHostname(String hostname, Socket socket) throws CertificateException, IOException {
         
         // Perform hostname verification only if one or more trust managers
@@ -458,6 +814,10 @@ public class WebSocket implements Runnable {
         }
     }
     
+    // SSL contexts keyed by the identity of the trust manager array
+    private final static Map<TrustManager[], SSLContext> contexts = 
+            new WeakHashMap<TrustManager[], SSLContext>();
+    
     private final static TrustManager[] TRUST_ALL = new TrustManager[] { new X509TrustManager() {
             
         @Override
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+/**
+ * Receives fragmented messages one fragment at a time, without the
+ * fragments being joined into a single payload.
+ */
+public interface WebSocketFragmentListener {
+
+    /**
+     * Invoked for each fragment of a fragmented message, in order.
+     * The data is only valid for the duration of the call.
+     *
+     * @param opcode The op code of the message, either 
+     *               {@link WebSocketFrame#TEXT} or {@link WebSocketFrame#BINARY}.
+     * @param fin True for the last fragment of the message.
+     */
+    public void onFragment(byte opcode, byte[] data, int offset, int length, boolean fin);
+}
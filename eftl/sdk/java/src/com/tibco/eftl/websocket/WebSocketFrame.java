@@ -10,8 +10,8 @@
 package com.tibco.eftl.websocket;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.security.SecureRandom;
 import java.util.Arrays;
 
 /**
@@ -44,11 +44,17 @@ public class WebSocketFrame {
     public static final byte PING         = 0x09;
     public static final byte PONG         = 0x0A;
 
-    private static final SecureRandom random;
+    // per-message compressed bit of the first frame of a message
+    private static final int RSV1 = 0x40;
+    
+    // 2 byte header, 8 byte extended length, and 4 byte mask
+    private static final int MAX_HEADER_LENGTH = 14;
+    
     private static final Charset UTF8;
     
+    private static volatile MaskGenerator defaultMaskGenerator = MaskGenerator.SECURE;
+    
     static {
-        random = new SecureRandom();
         UTF8 = Charset.forName("UTF-8");
     }
     
@@ -92,58 +98,188 @@ public class WebSocketFrame {
         if (offset < 0 || length < 0) 
             throw new IndexOutOfBoundsException();
         
-        if (data != null && offset + length > data.length) 
-            throw new IndexOutOfBoundsException();
+        byte[] frame = new byte[headerLength(length) + length];
+        
+        frame(ByteBuffer.wrap(frame), opcode, data, offset, length, defaultMaskGenerator);
         
-        int maskOffset = (length <= 125 ? 2 : (length <= 65535 ? 4 : 10));
-        int dataOffset = maskOffset + 4; // plus 4 for mask
+        return frame;
+    }
+
+    /** Set the mask generator used by frames created without one. */
+    public static void setDefaultMaskGenerator(MaskGenerator generator) {
+        defaultMaskGenerator = (generator != null ? generator : MaskGenerator.SECURE);
+    }
     
-        byte[] frame = new byte[length + dataOffset];
+    /** Encode a text frame into the buffer, growing the buffer if needed. */
+    public static ByteBuffer textFrame(ByteBuffer buffer, CharSequence text) {
+        return textFrame(buffer, text, defaultMaskGenerator);
+    }
+
+    /** Encode a text frame into the buffer, growing the buffer if needed. */
+    public static ByteBuffer textFrame(ByteBuffer buffer, CharSequence text, MaskGenerator generator) {
+        int length = utf8Length(text);
+        buffer = ensureRemaining(buffer, length + MAX_HEADER_LENGTH);
+        int mask = putHeader(buffer, TEXT, true, false, length, generator);
+        int dataOffset = buffer.position();
+        putUtf8(buffer, text);
+        mask(buffer, dataOffset, length, mask);
+        return buffer;
+    }
+
+    /** Encode a frame into the buffer, growing the buffer if needed. */
+    public static ByteBuffer frame(ByteBuffer buffer, byte opcode, byte[] data, int offset, int length, MaskGenerator generator) {
+        return frame(buffer, opcode, false, data, offset, length, generator);
+    }
+
+    /** Encode a frame with a compressed payload into the buffer, growing the buffer if needed. */
+    public static ByteBuffer compressedFrame(ByteBuffer buffer, byte opcode, byte[] data, int offset, int length, MaskGenerator generator) {
+        return frame(buffer, opcode, true, data, offset, length, generator);
+    }
+
+    private static ByteBuffer frame(ByteBuffer buffer, byte opcode, boolean compressed, byte[] data, int offset, int length, MaskGenerator generator) {
+        if (offset < 0 || length < 0) 
+            throw new IndexOutOfBoundsException();
+        
+        if (data != null && offset + length > data.length) 
+            throw new IndexOutOfBoundsException();
         
-        frame[0] = (byte) ((byte) (fin ? 0x80 : 0) | opcode);
+        buffer = ensureRemaining(buffer, headerLength(length) + length);
+        int mask = putHeader(buffer, opcode, true, compressed, length, generator);
+        int dataOffset = buffer.position();
+        if (data != null)
+            buffer.put(data, offset, length);
+        mask(buffer, dataOffset, length, mask);
+        return buffer;
+    }
+
+    /** Returns the length of a masked frame header for the payload length. */
+    private static int headerLength(int length) {
+        return (length <= 125 ? 2 : (length <= 65535 ? 4 : 10)) + 4;
+    }
+
+    /** Returns a buffer with at least length bytes remaining, preserving its content. */
+    static ByteBuffer ensureRemaining(ByteBuffer buffer, int length) {
+        if (buffer.remaining() >= length)
+            return buffer;
+        long capacity = Math.max(buffer.capacity(), 256);
+        while (capacity - buffer.position() < length)
+            capacity *= 2;
+        if (capacity > Integer.MAX_VALUE)
+            throw new OutOfMemoryError("frame too large");
+        ByteBuffer larger = (buffer.isDirect() ? 
+                ByteBuffer.allocateDirect((int) capacity) : ByteBuffer.allocate((int) capacity));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /** Writes the frame header, including a generated mask, and returns the mask. */
+    private static int putHeader(ByteBuffer buffer, byte opcode, boolean fin, boolean compressed, int length, MaskGenerator generator) {
+        buffer.put((byte) ((fin ? 0x80 : 0) | (compressed ? RSV1 : 0) | opcode));
         
         if (length <= 125) {
-            frame[1] = (byte) (0x80 | length);
+            buffer.put((byte) (0x80 | length));
         } else if (length <= 65535) {
-            frame[1] = (byte) (0x80 | 126);
-            frame[2] = (byte) ((((long) length) >> 8)  & 0xFF);
-            frame[3] = (byte) ( ((long) length)        & 0xFF);
+            buffer.put((byte) (0x80 | 126));
+            buffer.putShort((short) length);
         } else {
-            frame[1] = (byte) (0x80 | 127);
-            frame[2] = (byte) ((((long) length) >> 56) & 0xFF);
-            frame[3] = (byte) ((((long) length) >> 48) & 0xFF);
-            frame[4] = (byte) ((((long) length) >> 40) & 0xFF);
-            frame[5] = (byte) ((((long) length) >> 32) & 0xFF);
-            frame[6] = (byte) ((((long) length) >> 24) & 0xFF);
-            frame[7] = (byte) ((((long) length) >> 16) & 0xFF);
-            frame[8] = (byte) ((((long) length) >> 8)  & 0xFF);
-            frame[9] = (byte) ( ((long) length)        & 0xFF);
+            buffer.put((byte) (0x80 | 127));
+            buffer.putLong(length);
         }
+        
+        int mask = generator.nextMask();
+        buffer.putInt(mask);
+        return mask;
+    }
 
-        generateMask(frame, maskOffset);
+    /** 
+     * Masks length bytes starting at offset in place, 8 bytes at a time. 
+     * The mask is applied in network byte order, starting at mask byte 0.
+     */
+    static void mask(ByteBuffer buffer, int offset, int length, int mask) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.BIG_ENDIAN);
         
-        if (data != null) {
-            for (int i = 0; i < length; i++) {
-                frame[dataOffset + i] = (byte) (data[offset + i] ^ frame[maskOffset + (i % 4)]);
-            }
+        long wideMask = ((long) mask << 32) | (mask & 0xFFFFFFFFL);
+        int end = offset + length;
+        int i = offset;
+        
+        for (; i + 8 <= end; i += 8) {
+            buffer.putLong(i, buffer.getLong(i) ^ wideMask);
+        }
+        for (int shift = 24; i < end; i++, shift -= 8) {
+            buffer.put(i, (byte) (buffer.get(i) ^ (mask >> shift)));
         }
         
-        return frame;
+        buffer.order(order);
     }
 
-    /** Generates a 4-byte mask. */
-    private static void generateMask(byte[] buffer, int offset) {
-        int rand = 0;
-        for (int i = 0; i < 4; i++) {
-            rand = (i == 0 ? random.nextInt() : rand >> 8);
-            buffer[i + offset] = (byte) rand;
+    /** Masks length bytes of the array starting at offset in place. */
+    static void mask(byte[] data, int offset, int length, int mask) {
+        mask(ByteBuffer.wrap(data), offset, length, mask);
+    }
+
+    /** Returns the number of bytes needed to encode the text as UTF-8. */
+    static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int count = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    count += 1;
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        // 2 chars encoded as 4 bytes
+                        count += 2;
+                        i++;
+                    }
+                    // unpaired surrogates are replaced by '?'
+                } else {
+                    count += 2;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Encodes the text as UTF-8 into the buffer, which must have sufficient space. */
+    static void putUtf8(ByteBuffer buffer, CharSequence text) {
+        int length = text.length();
+        int position = buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put(position++, (byte) c);
+            } else if (c < 0x800) {
+                buffer.put(position++, (byte) (0xC0 | (c >> 6)));
+                buffer.put(position++, (byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    buffer.put(position++, (byte) (0xF0 | (cp >> 18)));
+                    buffer.put(position++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    buffer.put(position++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    buffer.put(position++, (byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    buffer.put(position++, (byte) '?');
+                }
+            } else {
+                buffer.put(position++, (byte) (0xE0 | (c >> 12)));
+                buffer.put(position++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put(position++, (byte) (0x80 | (c & 0x3F)));
+            }
         }
+        buffer.position(position);
     }
 
+    private BufferPool pool;
     private boolean fin;
+    private boolean compressed;
+    private boolean compressionEnabled;
     private boolean masked;
     private byte opcode;
-    private byte[] mask;
+    private int mask;
     private byte[] payload;
     private int payloadOffset;
     private int payloadLength;
@@ -153,6 +289,11 @@ public class WebSocketFrame {
     public WebSocketFrame() {
     }
 
+    /** Borrow payload buffers from the pool instead of allocating them. */
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
     public void setFin(boolean fin) {
         this.fin = fin;
     }
@@ -161,6 +302,20 @@ public class WebSocketFrame {
         return fin;
     }
 
+    /** Set when the peer negotiated per-message compression. */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+    
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+    
+    /** Returns true if the payload of the message is compressed. */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     public void setOpCode(byte opcode) {
         this.opcode = opcode;
     }
@@ -170,7 +325,7 @@ public class WebSocketFrame {
     }
 
     public void setPayload(byte[] data, int offset, int length) {
-        payload = Arrays.copyOfRange(data, offset, length);
+        payload = Arrays.copyOfRange(data, offset, offset + length);
         payloadLength = length;
     }
     
@@ -213,45 +368,156 @@ public class WebSocketFrame {
     
     public WebSocketFrame copy() {
         WebSocketFrame frame = new WebSocketFrame();
+        frame.setBufferPool(pool);
         frame.setOpCode(opcode);
         frame.setFin(fin);
-        frame.setPayload(payload, 0, payloadLength);
+        frame.setCompressed(compressed);
+        if (pool != null) {
+            frame.allocatePayload(payloadLength);
+            System.arraycopy(payload, 0, frame.payload, 0, payloadLength);
+            frame.payloadLength = payloadLength;
+        } else {
+            frame.setPayload(payload, 0, payloadLength);
+        }
         return frame;
     }
     
-    public void append(WebSocketFrame frame) {
-        payloadOffset = payloadLength;
-        payloadLength += frame.getPayloadLength();
+    /** 
+     * Returns the payload to the buffer pool. The frame must not
+     * be used afterwards until a payload is set or parsed.
+     */
+    public void release() {
+        if (pool != null)
+            pool.release(payload);
+        payload = null;
+        payloadLength = 0;
+    }
+    
+    /**
+     * Hands the payload array over to the caller, who becomes responsible
+     * for returning it to the buffer pool. The frame allocates a new
+     * payload for the next frame it parses.
+     */
+    public byte[] detachPayload() {
+        byte[] data = payload;
+        payload = null;
+        payloadLength = 0;
+        return data;
+    }
+    
+    private void allocatePayload(int length) {
+        if (pool != null) {
+            pool.release(payload);
+            payload = pool.acquire(length);
+        } else {
+            payload = new byte[length];
+        }
+    }
+    
+    public void append(WebSocketFrame frame) throws WebSocketException {
+        int length = payloadLength + frame.getPayloadLength();
+        if (length < 0)
+            throw new WebSocketException("message too large");
+        // double the capacity so that reassembly copies each byte 
+        // a constant number of times
+        if (length > payload.length) {
+            int capacity = (int) Math.min(Math.max(length, 2L * payload.length), Integer.MAX_VALUE - 8);
+            if (pool != null) {
+                byte[] larger = pool.acquire(capacity);
+                System.arraycopy(payload, 0, larger, 0, payloadLength);
+                pool.release(payload);
+                payload = larger;
+            } else {
+                payload = Arrays.copyOf(payload, capacity);
+            }
+        }
         // append to the payload
-        payload = Arrays.copyOf(payload, payloadLength);
-        System.arraycopy(frame.getPayload(), 0, payload, payloadOffset, frame.getPayloadLength());
+        System.arraycopy(frame.getPayload(), 0, payload, payloadLength, frame.getPayloadLength());
+        payloadLength = length;
         // update the fin
         fin = frame.isFin();
     }
     
+    private void parseOpCode(byte b) throws WebSocketException {
+        fin = (b & 0x80) != 0;
+        opcode = (byte) (b & 0x0F);
+        compressed = (b & RSV1) != 0;
+        int rsv = (b & 0x70) >> 4;
+        
+        if (compressed && compressionEnabled && (opcode == TEXT || opcode == BINARY))
+            rsv &= ~(RSV1 >> 4);
+        
+        if (rsv != 0)
+            throw new WebSocketException("rsv is non-zero");
+        
+        if (opcode == CONTINUATION || opcode == TEXT || opcode == BINARY) {
+            // valid data messages
+        } else if (opcode == CLOSE || opcode == PING || opcode == PONG) {
+            if (!fin)
+                throw new WebSocketException("fragmented control message");
+        } else {
+            throw new WebSocketException("unknown op code: " + opcode);
+        }
+    }
+    
+    /**
+     * Decodes the entire frame header with bulk reads when it is
+     * available in the buffer. Returns false, consuming nothing,
+     * when the header is incomplete.
+     */
+    private boolean parseHeader(ByteBuffer buffer) throws WebSocketException {
+        int remaining = buffer.remaining();
+        if (remaining < 2)
+            return false;
+        
+        int b = buffer.get(buffer.position() + 1);
+        int length = (b & 0x7F);
+        int headerLength = 2 + (length == 126 ? 2 : (length == 127 ? 8 : 0)) + ((b & 0x80) != 0 ? 4 : 0);
+        if (remaining < headerLength)
+            return false;
+        
+        parseOpCode(buffer.get());
+        buffer.get();
+        masked = (b & 0x80) != 0;
+        
+        if (length == 126) {
+            length = buffer.getShort() & 0xFFFF;
+        } else if (length == 127) {
+            long extendedLength = buffer.getLong();
+            if (extendedLength < 0 || extendedLength > Integer.MAX_VALUE)
+                throw new WebSocketException("invalid payload length");
+            length = (int) extendedLength;
+        }
+        payloadLength = length;
+        
+        if (masked) {
+            mask = buffer.getInt();
+        }
+        
+        if (payload == null || payload.length < payloadLength) {
+            allocatePayload(payloadLength);
+        }
+        
+        return true;
+    }
+    
     public boolean parse(ByteBuffer buffer) throws WebSocketException {
         while (buffer.hasRemaining()) {
             switch (state) {
             
             // FIN and Opcode
             case 0: {
-                byte b = buffer.get();
-                fin = (b & 0x80) != 0;
-                opcode = (byte) (b & 0x0F);
-                int rsv = (b & 0x70) >> 4;
-                
-                if (rsv != 0)
-                    throw new WebSocketException("rsv is non-zero");
-                
-                if (opcode == CONTINUATION || opcode == TEXT || opcode == BINARY) {
-                    // valid data messages
-                } else if (opcode == CLOSE || opcode == PING || opcode == PONG) {
-                    if (!fin)
-                        throw new WebSocketException("fragmented control message");
-                } else {
-                    throw new WebSocketException("unknown op code: " + opcode);
+                // fast path when the entire header is buffered
+                if (parseHeader(buffer)) {
+                    if (payloadLength == 0) {
+                        return true;
+                    }
+                    state = 4;
+                    break;
                 }
                 
+                parseOpCode(buffer.get());
+                
                 state = 1;
                 
                 break;
@@ -265,7 +531,7 @@ public class WebSocketFrame {
                 payloadLength = (byte) (b & 0x7F);
                 if (payloadLength >= 0 && payloadLength <= 125) {
                     if (payload == null || payload.length < payloadLength) {
-                        payload = new byte[payloadLength];
+                        allocatePayload(payloadLength);
                     }
                     if (masked) {
                         cursor = 4;
@@ -299,7 +565,7 @@ public class WebSocketFrame {
                 payloadLength |= (b & 0xFF) << (8 * --cursor);
                 if (cursor == 0) {
                     if (payload == null || payload.length < payloadLength) {
-                        payload = new byte[payloadLength];
+                        allocatePayload(payloadLength);
                     }
                     if (masked) {
                         cursor = 4;
@@ -320,12 +586,8 @@ public class WebSocketFrame {
             case 3: {
                 byte b = buffer.get();
                 
-                if (mask == null) {
-                    mask = new byte[4];
-                }
-                
-                mask[4 - cursor--] = b;
-                if (cursor == 0) {
+                mask = (mask << 8) | (b & 0xFF);
+                if (--cursor == 0) {
                     if (payloadLength == 0) {
                         state = 0;
                         return true;
@@ -346,9 +608,7 @@ public class WebSocketFrame {
                     payloadOffset = 0;
                     
                     if (masked) {
-                        for (int i = 0; i < payloadLength; i++) {
-                            payload[i] = (byte) (payload[i] ^ mask[i % 4]);
-                        }
+                        mask(payload, 0, payloadLength, mask);
                     }
                     
                     state = 0;
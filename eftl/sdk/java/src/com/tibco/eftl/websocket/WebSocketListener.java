@@ -9,6 +9,8 @@
  */
 package com.tibco.eftl.websocket;
 
+import java.nio.charset.StandardCharsets;
+
 public interface WebSocketListener {
 
     public void onOpen();
@@ -19,7 +21,50 @@ public interface WebSocketListener {
 
     public void onMessage(String text);
     
+    /**
+     * Invoked with the UTF-8 encoded payload of a text message.
+     * Listeners that can consume the encoded bytes directly override
+     * this method to avoid decoding the payload into a string.
+     * The data is only valid for the duration of the call, as for
+     * {@link #onMessage(byte[], int, int)}.
+     */
+    public default void onTextMessage(byte[] data, int offset, int length) {
+        onMessage(new String(data, offset, length, StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Invoked with the payload of a binary message. The data is only 
+     * valid for the duration of the call, after which the buffer may be
+     * returned to a {@link BufferPool} and reused. Listeners that retain
+     * the data must copy it.
+     */
     public void onMessage(byte[] data, int offset, int length);
     
+    /**
+     * Invoked instead of {@link #onMessage(byte[], int, int)} with the 
+     * payload of an uncompressed binary message when the socket borrows 
+     * its buffers from a {@link BufferPool}. The listener owns the array
+     * and may retain it beyond the call without copying, but must pass
+     * it to {@link BufferPool#release(byte[])} once it no longer 
+     * references it. The default delivers the payload to 
+     * {@link #onMessage(byte[], int, int)} and releases it on return.
+     */
+    public default void onMessage(byte[] data, int offset, int length, BufferPool pool) {
+        try {
+            onMessage(data, offset, length);
+        } finally {
+            pool.release(data);
+        }
+    }
+    
     public void onPong(byte[] data, int offset, int length);
+    
+    /**
+     * Invoked after the messages of a read have been delivered, when
+     * no more received data is waiting to be processed. Listeners use
+     * this method to act once per burst of messages rather than once
+     * per message.
+     */
+    public default void onReadComplete() {
+    }
 }
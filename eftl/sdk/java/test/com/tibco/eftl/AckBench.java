@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tibco.eftl.impl.StandInServer;
+
+/**
+ * Measures publish throughput against how often the stand-in server
+ * acknowledges publishes, each acknowledgment covering every publish
+ * before it.
+ * <p>
+ * A burst of messages is published with a completion listener each, and
+ * the server acknowledges every Nth publish and the last publish it has
+ * received whenever the client pauses. The results show the number of
+ * acknowledgments sent per message and their effect on throughput, and
+ * the run fails unless every publish completes, in order. Usage:
+ * <pre>
+ *   test/run.sh com.tibco.eftl.AckBench [blocking|nio] [messages]
+ * </pre>
+ */
+public class AckBench {
+
+    private static final int[] INTERVALS = {1, 8, 64, 512};
+
+    public static void main(String[] args) throws Exception {
+        String transport = (args.length > 0 ? args[0] : EFTL.TRANSPORT_BLOCKING);
+        int count = (args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+        StandInServer server = new StandInServer(0).start();
+
+        System.out.println("transport " + transport + ", " + count + " messages");
+        System.out.println("  ack every        msg/s   acks/msg  client CPU us/msg");
+
+        for (int interval : INTERVALS) {
+            server.setAckInterval(interval);
+
+            Properties props = new Properties();
+            props.setProperty(EFTL.PROPERTY_TRANSPORT, transport);
+
+            Connection connection = BenchSupport.connect(server.getURL(), props);
+
+            // warm up, then measure
+            run(connection, count / 4);
+            long acks = server.getAcksOut();
+            long cpu = BenchSupport.clientCpuTime();
+            long start = System.nanoTime();
+
+            run(connection, count);
+
+            long elapsed = System.nanoTime() - start;
+            cpu = BenchSupport.clientCpuTime() - cpu;
+            acks = server.getAcksOut() - acks;
+
+            System.out.printf("%11d %12.0f %10.4f %18.1f%n", interval, count / (elapsed / 1e9),
+                    (double) acks / count, cpu / 1e3 / count);
+
+            connection.disconnect();
+        }
+
+        server.close();
+    }
+
+    private static void run(Connection connection, int count) throws Exception {
+        final CountDownLatch completed = new CountDownLatch(count);
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final AtomicLong last = new AtomicLong(-1);
+
+        CompletionListener listener = new CompletionListener() {
+            @Override
+            public void onCompletion(Message message) {
+                long sequence = message.getLong("sequence");
+                if (sequence != last.get() + 1)
+                    outOfOrder.incrementAndGet();
+                last.set(sequence);
+                completed.countDown();
+            }
+
+            @Override
+            public void onError(Message message, int code, String reason) {
+                errors.incrementAndGet();
+                completed.countDown();
+            }
+        };
+
+        String payload = BenchSupport.text(new Random(1), 256);
+
+        for (int i = 0; i < count; i++) {
+            Message message = connection.createMessage();
+            message.setString("type", "order");
+            message.setLong("sequence", (long) i);
+            message.setString("text", payload);
+            connection.publish(message, listener);
+        }
+
+        if (!completed.await(120, TimeUnit.SECONDS))
+            throw new IllegalStateException("completed " + (count - completed.getCount()) + " of " + count);
+        if (errors.get() > 0)
+            throw new IllegalStateException(errors.get() + " publishes failed");
+        if (outOfOrder.get() > 0)
+            throw new IllegalStateException(outOfOrder.get() + " publishes completed out of order");
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Helpers shared by the benchmarks that run against the stand-in server.
+ */
+final class BenchSupport {
+
+    private BenchSupport() {
+    }
+
+    /** Connects and waits for the connection to be established. */
+    static Connection connect(String url, Properties props) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final AtomicReference<Connection> connection = new AtomicReference<Connection>();
+        final AtomicReference<String> error = new AtomicReference<String>();
+
+        EFTL.connect(url, props, new ConnectionListener() {
+            @Override
+            public void onConnect(Connection c) {
+                connection.set(c);
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnect(Connection c, int code, String reason) {
+                error.compareAndSet(null, "disconnected: " + code + " " + reason);
+                connected.countDown();
+            }
+
+            @Override
+            public void onReconnect(Connection c) {
+            }
+
+            @Override
+            public void onError(Connection c, int code, String reason) {
+                error.compareAndSet(null, "error: " + code + " " + reason);
+            }
+        });
+
+        if (!connected.await(10, TimeUnit.SECONDS))
+            throw new IllegalStateException("timed out connecting to " + url);
+        if (connection.get() == null)
+            throw new IllegalStateException(error.get());
+        return connection.get();
+    }
+
+    /**
+     * Returns the CPU time used so far by the live threads, excluding
+     * the threads of the stand-in server.
+     */
+    static long clientCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            ThreadInfo info = threads.getThreadInfo(id);
+            if (info == null || info.getThreadName().startsWith("stand-in"))
+                continue;
+            long time = threads.getThreadCpuTime(id);
+            if (time > 0)
+                total += time;
+        }
+        return total;
+    }
+
+    /** Returns a JSON-like text of the length, which compresses like typical payloads. */
+    static String text(java.util.Random random, int length) {
+        String[] words = {"order", "price", "quantity", "symbol", "TIBX", "status", "filled",
+                          "pending", "account", "region", "emea", "amer", "apj", "timestamp"};
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < length) {
+            builder.append(words[random.nextInt(words.length)]).append('=');
+            builder.append(random.nextInt(10000)).append(' ');
+        }
+        builder.setLength(length);
+        return builder.toString();
+    }
+}
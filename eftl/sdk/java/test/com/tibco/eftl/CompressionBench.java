@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.tibco.eftl.impl.StandInServer;
+
+/**
+ * Measures publish and delivery throughput, bytes on the wire and client
+ * CPU time with and without permessage-deflate, against the stand-in
+ * server.
+ * <p>
+ * Each message is published and delivered back to a subscription on the
+ * same connection, so it crosses the connection compressed in both
+ * directions. Usage:
+ * <pre>
+ *   test/run.sh com.tibco.eftl.CompressionBench [blocking|nio]
+ * </pre>
+ */
+public class CompressionBench {
+
+    private static final int[] SIZES = {256, 1024, 16 * 1024};
+
+    public static void main(String[] args) throws Exception {
+        String transport = (args.length > 0 ? args[0] : EFTL.TRANSPORT_BLOCKING);
+        StandInServer server = new StandInServer(0).start();
+
+        System.out.println("transport " + transport);
+        System.out.println("  size  compression          msg/s   bytes out/msg  bytes in/msg  client CPU us/msg");
+
+        for (int size : SIZES) {
+            for (String mode : new String[] {"off", "on", "no takeover"}) {
+                Properties props = new Properties();
+                props.setProperty(EFTL.PROPERTY_TRANSPORT, transport);
+                if (!mode.equals("off")) {
+                    props.setProperty(EFTL.PROPERTY_COMPRESSION, "true");
+                    if (mode.equals("no takeover")) {
+                        props.setProperty(EFTL.PROPERTY_COMPRESSION_CLIENT_NO_CONTEXT_TAKEOVER, "true");
+                        props.setProperty(EFTL.PROPERTY_COMPRESSION_SERVER_NO_CONTEXT_TAKEOVER, "true");
+                    }
+                }
+
+                Connection connection = BenchSupport.connect(server.getURL(), props);
+                int count = Math.max(2000, 20 * 1024 * 1024 / size);
+
+                // warm up, then measure
+                run(connection, size, count / 4);
+                server.resetStatistics();
+                long cpu = BenchSupport.clientCpuTime();
+                long start = System.nanoTime();
+
+                run(connection, size, count);
+
+                long elapsed = System.nanoTime() - start;
+                cpu = BenchSupport.clientCpuTime() - cpu;
+
+                System.out.printf("%6d  %-12s %12.0f %15d %13d %18.1f%n", size, mode,
+                        count / (elapsed / 1e9), server.getBytesIn() / count, server.getBytesOut() / count,
+                        cpu / 1e3 / count);
+
+                connection.disconnect();
+            }
+        }
+
+        server.close();
+    }
+
+    private static void run(Connection connection, int size, int count) throws Exception {
+        final CountDownLatch received = new CountDownLatch(count);
+        String id = connection.subscribe(null, new SubscriptionListener() {
+            @Override
+            public void onMessages(Message[] messages) {
+                for (int i = 0; i < messages.length; i++)
+                    received.countDown();
+            }
+
+            @Override
+            public void onSubscribe(String subscriptionId) {
+            }
+
+            @Override
+            public void onError(String subscriptionId, int code, String reason) {
+            }
+        });
+
+        // wait for the subscription before publishing
+        Thread.sleep(200);
+
+        Random random = new Random(1);
+        for (int i = 0; i < count; i++) {
+            Message message = connection.createMessage();
+            message.setString("type", "order");
+            message.setLong("sequence", (long) i);
+            message.setDouble("price", random.nextDouble() * 100);
+            message.setString("text", BenchSupport.text(random, size));
+            connection.publish(message);
+        }
+
+        if (!received.await(120, TimeUnit.SECONDS))
+            throw new IllegalStateException("received " + (count - received.getCount()) + " of " + count);
+
+        connection.unsubscribe(id);
+    }
+}
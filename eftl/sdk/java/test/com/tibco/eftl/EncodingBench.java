@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.util.Date;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.tibco.eftl.impl.StandInServer;
+
+/**
+ * Compares publish and delivery throughput, bytes on the wire and client
+ * CPU time of the JSON and binary encodings, against the stand-in server.
+ * <p>
+ * The messages carry numeric, string, date and opaque fields, and are
+ * delivered back to a subscription on the same connection. Usage:
+ * <pre>
+ *   test/run.sh com.tibco.eftl.EncodingBench [blocking|nio]
+ * </pre>
+ */
+public class EncodingBench {
+
+    private static final int[] OPAQUE_SIZES = {0, 256, 4096};
+
+    public static void main(String[] args) throws Exception {
+        String transport = (args.length > 0 ? args[0] : EFTL.TRANSPORT_BLOCKING);
+        StandInServer server = new StandInServer(0).start();
+
+        System.out.println("transport " + transport);
+        System.out.println("  opaque  encoding        msg/s   bytes out/msg  bytes in/msg  client CPU us/msg");
+
+        for (int opaqueSize : OPAQUE_SIZES) {
+            for (boolean binary : new boolean[] {false, true}) {
+                Properties props = new Properties();
+                props.setProperty(EFTL.PROPERTY_TRANSPORT, transport);
+                props.setProperty(EFTL.PROPERTY_BINARY_ENCODING, Boolean.toString(binary));
+
+                Connection connection = BenchSupport.connect(server.getURL(), props);
+                int count = 50000;
+
+                // warm up, then measure
+                run(connection, opaqueSize, count / 4);
+                server.resetStatistics();
+                long cpu = BenchSupport.clientCpuTime();
+                long start = System.nanoTime();
+
+                run(connection, opaqueSize, count);
+
+                long elapsed = System.nanoTime() - start;
+                cpu = BenchSupport.clientCpuTime() - cpu;
+
+                System.out.printf("%8d  %-8s %12.0f %15d %13d %18.1f%n", opaqueSize, (binary ? "binary" : "json"),
+                        count / (elapsed / 1e9), server.getBytesIn() / count, server.getBytesOut() / count,
+                        cpu / 1e3 / count);
+
+                connection.disconnect();
+            }
+        }
+
+        server.close();
+    }
+
+    private static void run(Connection connection, int opaqueSize, int count) throws Exception {
+        final CountDownLatch received = new CountDownLatch(count);
+        String id = connection.subscribe(null, new SubscriptionListener() {
+            @Override
+            public void onMessages(Message[] messages) {
+                for (int i = 0; i < messages.length; i++)
+                    received.countDown();
+            }
+
+            @Override
+            public void onSubscribe(String subscriptionId) {
+            }
+
+            @Override
+            public void onError(String subscriptionId, int code, String reason) {
+            }
+        });
+
+        // wait for the subscription before publishing
+        Thread.sleep(200);
+
+        Random random = new Random(1);
+        byte[] opaque = new byte[opaqueSize];
+        random.nextBytes(opaque);
+
+        for (int i = 0; i < count; i++) {
+            Message message = connection.createMessage();
+            message.setString("type", "order");
+            message.setString("symbol", "TIBX");
+            message.setLong("sequence", (long) i);
+            message.setLong("quantity", (long) random.nextInt(10000));
+            message.setDouble("price", random.nextDouble() * 100);
+            message.setDate("time", new Date());
+            if (opaqueSize > 0)
+                message.setOpaque("data", opaque);
+            connection.publish(message);
+        }
+
+        if (!received.await(120, TimeUnit.SECONDS))
+            throw new IllegalStateException("received " + (count - received.getCount()) + " of " + count);
+
+        connection.unsubscribe(id);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.tibco.eftl.impl.StandInServer;
+
+/**
+ * Measures acknowledged publish throughput against the size of the
+ * in-flight window, with the block policy, against the stand-in server.
+ * <p>
+ * Messages are published as fast as the window admits them and counted
+ * when acknowledged. The server is on the loopback interface, so the
+ * results show the cost of waiting for acknowledgments at the smallest
+ * round trip; a remote server favors larger windows. Usage:
+ * <pre>
+ *   test/run.sh com.tibco.eftl.InFlightBench [blocking|nio]
+ * </pre>
+ */
+public class InFlightBench {
+
+    // 0 leaves the window unbounded
+    private static final int[] WINDOWS = {1, 4, 16, 64, 256, 1024, 0};
+
+    public static void main(String[] args) throws Exception {
+        String transport = (args.length > 0 ? args[0] : EFTL.TRANSPORT_BLOCKING);
+        StandInServer server = new StandInServer(0).start();
+
+        System.out.println("transport " + transport);
+        System.out.println("  window        msg/s     blocked  blocked ms  peak in flight  client CPU us/msg");
+
+        for (int window : WINDOWS) {
+            Properties props = new Properties();
+            props.setProperty(EFTL.PROPERTY_TRANSPORT, transport);
+            props.setProperty(EFTL.PROPERTY_MAX_IN_FLIGHT, Integer.toString(window));
+            props.setProperty(EFTL.PROPERTY_IN_FLIGHT_POLICY, EFTL.IN_FLIGHT_POLICY_BLOCK);
+
+            Connection connection = BenchSupport.connect(server.getURL(), props);
+            InFlightMetrics metrics = connection.getInFlightMetrics();
+            int count = (window == 1 ? 20000 : 100000);
+
+            // warm up, then measure
+            run(connection, count / 4);
+            metrics.reset();
+            long cpu = BenchSupport.clientCpuTime();
+            long start = System.nanoTime();
+
+            run(connection, count);
+
+            long elapsed = System.nanoTime() - start;
+            cpu = BenchSupport.clientCpuTime() - cpu;
+
+            System.out.printf("%8s %12.0f %11d %11d %15d %18.1f%n", (window == 0 ? "none" : Integer.toString(window)),
+                    count / (elapsed / 1e9), metrics.getBlockedCount(), metrics.getTotalBlockedTime(TimeUnit.MILLISECONDS),
+                    metrics.getPeakInFlightCount(), cpu / 1e3 / count);
+
+            connection.disconnect();
+        }
+
+        server.close();
+    }
+
+    private static void run(Connection connection, int count) throws Exception {
+        final CountDownLatch acknowledged = new CountDownLatch(count);
+        final AtomicInteger errors = new AtomicInteger();
+
+        CompletionListener listener = new CompletionListener() {
+            @Override
+            public void onCompletion(Message message) {
+                acknowledged.countDown();
+            }
+
+            @Override
+            public void onError(Message message, int code, String reason) {
+                errors.incrementAndGet();
+                acknowledged.countDown();
+            }
+        };
+
+        String payload = BenchSupport.text(new Random(1), 256);
+
+        for (int i = 0; i < count; i++) {
+            Message message = connection.createMessage();
+            message.setString("type", "order");
+            message.setLong("sequence", (long) i);
+            message.setString("text", payload);
+            connection.publish(message, listener);
+        }
+
+        if (!acknowledged.await(120, TimeUnit.SECONDS))
+            throw new IllegalStateException("acknowledged " + (count - acknowledged.getCount()) + " of " + count);
+        if (errors.get() > 0)
+            throw new IllegalStateException(errors.get() + " publishes failed");
+    }
+}
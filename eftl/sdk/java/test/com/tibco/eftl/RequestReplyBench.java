@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.tibco.eftl.impl.StandInServer;
+
+/**
+ * Measures request/reply throughput, round trip latency and client CPU
+ * time with a timeout on every request, against the stand-in server.
+ * <p>
+ * The server answers each request at once, so every timeout is
+ * scheduled and then cancelled, which is the common case. The number of
+ * requests kept outstanding is varied, which varies the number of
+ * timeouts pending at once. Usage:
+ * <pre>
+ *   test/run.sh com.tibco.eftl.RequestReplyBench [blocking|nio]
+ * </pre>
+ */
+public class RequestReplyBench {
+
+    private static final int[] OUTSTANDING = {1, 16, 256, 4096};
+
+    // seconds
+    private static final double TIMEOUT = 30.0;
+
+    public static void main(String[] args) throws Exception {
+        String transport = (args.length > 0 ? args[0] : EFTL.TRANSPORT_BLOCKING);
+        StandInServer server = new StandInServer(0).start();
+
+        Properties props = new Properties();
+        props.setProperty(EFTL.PROPERTY_TRANSPORT, transport);
+        Connection connection = BenchSupport.connect(server.getURL(), props);
+
+        System.out.println("transport " + transport);
+        System.out.println("  outstanding      req/s   p50 us   p99 us  max us  client CPU us/req");
+
+        for (int outstanding : OUTSTANDING) {
+            int count = (outstanding == 1 ? 20000 : 100000);
+
+            // warm up, then measure
+            run(connection, outstanding, count / 4);
+            long cpu = BenchSupport.clientCpuTime();
+            long start = System.nanoTime();
+
+            long[] latencies = run(connection, outstanding, count);
+
+            long elapsed = System.nanoTime() - start;
+            cpu = BenchSupport.clientCpuTime() - cpu;
+
+            Arrays.sort(latencies);
+            System.out.printf("%13d %10.0f %8d %8d %7d %18.1f%n", outstanding, count / (elapsed / 1e9),
+                    latencies[count / 2] / 1000, latencies[count * 99 / 100] / 1000, latencies[count - 1] / 1000,
+                    cpu / 1e3 / count);
+        }
+
+        connection.disconnect();
+        server.close();
+    }
+
+    private static long[] run(Connection connection, int outstanding, int count) throws Exception {
+        final Semaphore window = new Semaphore(outstanding);
+        final long[] latencies = new long[count];
+        final AtomicInteger errors = new AtomicInteger();
+
+        for (int i = 0; i < count; i++) {
+            window.acquire();
+
+            final int index = i;
+            final long start = System.nanoTime();
+
+            Message request = connection.createMessage();
+            request.setString("type", "quote");
+            request.setLong("sequence", (long) i);
+
+            connection.sendRequest(request, TIMEOUT, new RequestListener() {
+                @Override
+                public void onReply(Message reply) {
+                    latencies[index] = System.nanoTime() - start;
+                    window.release();
+                }
+
+                @Override
+                public void onError(Message request, int code, String reason) {
+                    errors.incrementAndGet();
+                    window.release();
+                }
+            });
+        }
+
+        if (!window.tryAcquire(outstanding, 120, TimeUnit.SECONDS))
+            throw new IllegalStateException("timed out waiting for replies");
+        if (errors.get() > 0)
+            throw new IllegalStateException(errors.get() + " requests failed");
+
+        return latencies;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.tibco.eftl.impl.StandInServer;
+
+/**
+ * Checks that a request refused as too large leaves no timeout behind,
+ * so that neither its listener nor the connection listener is told of
+ * a timeout for a request that was never sent, and that a timeout
+ * callback does not wait for room in the in-flight window on the timer
+ * thread shared by every connection.
+ */
+public class RequestTimeoutTest {
+
+    public static void main(String[] args) throws Exception {
+        StandInServer server = new StandInServer(0).start();
+        server.setMaxMessageSize(1024);
+
+        for (String transport : new String[] {EFTL.TRANSPORT_BLOCKING, EFTL.TRANSPORT_NIO})
+            checkOversized(server, transport);
+
+        server.setAnswerRequests(false);
+        for (String transport : new String[] {EFTL.TRANSPORT_BLOCKING, EFTL.TRANSPORT_NIO})
+            checkTimeoutCallback(server, transport);
+
+        server.close();
+
+        System.out.println("RequestTimeoutTest passed");
+    }
+
+    private static void checkOversized(StandInServer server, String transport) throws Exception {
+        final AtomicInteger connectionErrors = new AtomicInteger();
+        final AtomicReference<Connection> connection = new AtomicReference<Connection>();
+        final CountDownLatch connected = new CountDownLatch(1);
+
+        Properties props = new Properties();
+        props.setProperty(EFTL.PROPERTY_TRANSPORT, transport);
+
+        EFTL.connect(server.getURL(), props, new ConnectionListener() {
+            @Override
+            public void onConnect(Connection c) {
+                connection.set(c);
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnect(Connection c, int code, String reason) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onReconnect(Connection c) {
+            }
+
+            @Override
+            public void onError(Connection c, int code, String reason) {
+                connectionErrors.incrementAndGet();
+            }
+        });
+
+        check(connected.await(10, TimeUnit.SECONDS) && connection.get() != null, transport + " connected");
+
+        try {
+            final AtomicInteger requestErrors = new AtomicInteger();
+            final CountDownLatch replied = new CountDownLatch(1);
+            RequestListener listener = new RequestListener() {
+                @Override
+                public void onReply(Message reply) {
+                    replied.countDown();
+                }
+
+                @Override
+                public void onError(Message request, int code, String reason) {
+                    requestErrors.incrementAndGet();
+                }
+            };
+
+            Message oversized = connection.get().createMessage();
+            oversized.setString("text", BenchSupport.text(new Random(1), 4096));
+            try {
+                connection.get().sendRequest(oversized, 0.1, listener);
+                throw new AssertionError(transport + " oversized request sent");
+            } catch (IllegalArgumentException e) {
+                // refused
+            }
+
+            // well past the timeout of the refused request
+            Thread.sleep(500);
+            check(requestErrors.get() == 0, transport + " request listener told of " + requestErrors.get() + " errors");
+            check(connectionErrors.get() == 0, transport + " connection listener told of " + connectionErrors.get() + " errors");
+
+            // the connection still serves requests that fit
+            Message small = connection.get().createMessage();
+            small.setString("text", "hello");
+            connection.get().sendRequest(small, 5.0, listener);
+            check(replied.await(5, TimeUnit.SECONDS), transport + " reply");
+        } finally {
+            // an open connection would keep the failed test running
+            connection.get().disconnect();
+        }
+    }
+
+    private static void checkTimeoutCallback(StandInServer server, String transport) throws Exception {
+        Properties props = new Properties();
+        props.setProperty(EFTL.PROPERTY_TRANSPORT, transport);
+        props.setProperty(EFTL.PROPERTY_MAX_IN_FLIGHT, "1");
+
+        final Connection connection = BenchSupport.connect(server.getURL(), props);
+        final CompletionListener ignored = new CompletionListener() {
+            @Override
+            public void onCompletion(Message message) {
+            }
+
+            @Override
+            public void onError(Message message, int code, String reason) {
+            }
+        };
+        final AtomicReference<String> outcome = new AtomicReference<String>();
+        final CountDownLatch timedOut = new CountDownLatch(1);
+
+        try {
+            connection.sendRequest(connection.createMessage(), 0.1, new RequestListener() {
+                @Override
+                public void onReply(Message reply) {
+                    outcome.set("replied");
+                    timedOut.countDown();
+                }
+
+                @Override
+                public void onError(Message request, int code, String reason) {
+                    // a publish soon finds the window full, before the
+                    // previous one is acknowledged
+                    try {
+                        for (int i = 0; i < 1000; i++)
+                            connection.publish(connection.createMessage(), ignored);
+                        outcome.set("waited on the timer thread");
+                    } catch (IllegalStateException e) {
+                        outcome.set("failed at once");
+                    }
+                    timedOut.countDown();
+                }
+            });
+
+            check(timedOut.await(5, TimeUnit.SECONDS), transport + " timed out");
+            check("failed at once".equals(outcome.get()), transport + " timeout callback " + outcome.get());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.tibco.eftl.json.JsonArray;
+import com.tibco.eftl.json.JsonException;
+import com.tibco.eftl.json.JsonObject;
+import com.tibco.eftl.json.JsonValue;
+
+/**
+ * Checks that protocol messages survive a round trip through the binary
+ * encoding, and that malformed messages are rejected with a
+ * {@link JsonException} rather than any other failure.
+ */
+public class BinaryCodecTest {
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+
+        checkFields();
+        checkHead();
+
+        for (int i = 0; i < 10000; i++)
+            checkRoundTrip(randomObject(random, 0));
+
+        checkTruncated(random);
+        checkInvalid();
+
+        System.out.println("BinaryCodecTest passed");
+    }
+
+    private static void checkFields() {
+        JsonObject message = new JsonObject();
+        message.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MESSAGE);
+        message.put(ProtocolConstants.SEQ_NUM_FIELD, Long.MAX_VALUE);
+
+        JsonObject body = new JsonObject();
+        body.put("long", Long.MIN_VALUE);
+        body.put("small", -1L);
+        body.put("string", "café 😀");
+        body.put("empty", "");
+        body.put("double", field(JSONMessage.DOUBLE_FIELD, 0.1));
+        body.put("nan", field(JSONMessage.DOUBLE_FIELD, "NaN"));
+        body.put("infinity", field(JSONMessage.DOUBLE_FIELD, "-Infinity"));
+        body.put("date", field(JSONMessage.MILLISECOND_FIELD, 1500000000000L));
+        body.put("opaque", field(JSONMessage.OPAQUE_FIELD, Base64.encode(new byte[] {0, 1, (byte) 0xFF})));
+        body.put("longs", array(1L, -2L, 3L));
+        body.put("strings", array("a", "€", null));
+        body.put("messages", array(new JsonObject(), body.clone()));
+        message.put(ProtocolConstants.BODY_FIELD, body);
+
+        checkRoundTrip(message);
+
+        // the special fields use their own compact tags
+        byte[] encoded = BinaryCodec.encode(field(JSONMessage.MILLISECOND_FIELD, 0L));
+        check(encoded.length == 2, "date tag, " + encoded.length + " bytes");
+
+        // single-member objects that are not special fields are kept
+        checkRoundTrip(field(JSONMessage.DOUBLE_FIELD, "not a number"));
+        checkRoundTrip(field(JSONMessage.MILLISECOND_FIELD, "not a date"));
+        checkRoundTrip(field("other", 1L));
+    }
+
+    private static void checkHead() {
+        JsonObject message = new JsonObject();
+        message.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MESSAGE);
+        message.put(ProtocolConstants.SEQ_NUM_FIELD, 42L);
+
+        JsonObject body = new JsonObject();
+        body.put("text", "hello");
+
+        // the head followed by the encoded last field is the whole message
+        byte[] head = BinaryCodec.encodeHead(message, ProtocolConstants.BODY_FIELD);
+        byte[] value = BinaryCodec.encode(body);
+        byte[] data = Arrays.copyOf(head, head.length + value.length);
+        System.arraycopy(value, 0, data, head.length, value.length);
+
+        message.put(ProtocolConstants.BODY_FIELD, body);
+        check(normalize(BinaryCodec.decode(data, 0, data.length)).equals(normalize(message)), "head and value");
+    }
+
+    private static void checkRoundTrip(JsonObject message) {
+        byte[] encoded = BinaryCodec.encode(message);
+
+        // at an offset in a larger array
+        byte[] data = new byte[encoded.length + 7];
+        System.arraycopy(encoded, 0, data, 3, encoded.length);
+
+        JsonObject decoded = BinaryCodec.decode(data, 3, encoded.length);
+        check(normalize(decoded).equals(normalize(message)), "round trip " + message);
+    }
+
+    private static void checkTruncated(Random random) {
+        for (int i = 0; i < 200; i++) {
+            byte[] encoded = BinaryCodec.encode(randomObject(random, 0));
+            for (int length = 0; length < encoded.length; length++)
+                checkInvalid(encoded, length, "truncated at " + length);
+        }
+    }
+
+    private static void checkInvalid() {
+        JsonObject message = new JsonObject();
+        message.put("a", 1L);
+        byte[] encoded = BinaryCodec.encode(message);
+
+        // trailing data
+        byte[] trailing = Arrays.copyOf(encoded, encoded.length + 1);
+        checkInvalid(trailing, trailing.length, "trailing data");
+
+        // a value that is not an object
+        checkInvalid(new byte[] {BinaryCodec.LONG, 2}, 2, "not an object");
+
+        // an unknown tag
+        checkInvalid(new byte[] {BinaryCodec.OBJECT, 1, 1, 'a', 99}, 5, "unknown tag");
+
+        // lengths beyond the end of the message
+        checkInvalid(new byte[] {BinaryCodec.OBJECT, 1, 20, 'a'}, 4, "key length");
+        checkInvalid(new byte[] {BinaryCodec.OBJECT, (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}, 6, "count");
+        checkInvalid(new byte[] {BinaryCodec.OBJECT, 1, 1, 'a', BinaryCodec.OPAQUE_FIELD, 40, 0}, 7, "opaque length");
+        checkInvalid(new byte[] {BinaryCodec.OBJECT, 1, 1, 'a', BinaryCodec.ARRAY, 1}, 6, "negative count");
+
+        // a variable-length integer that never ends
+        byte[] endless = new byte[16];
+        Arrays.fill(endless, (byte) 0xFF);
+        endless[0] = BinaryCodec.LONG;
+        checkInvalid(endless, endless.length, "endless integer");
+
+        // nesting beyond the limit
+        byte[] deep = new byte[3 + 2 * 300];
+        deep[0] = BinaryCodec.OBJECT;
+        deep[1] = 2;
+        for (int i = 0; i < 300; i++) {
+            deep[3 + 2 * i] = BinaryCodec.ARRAY;
+            deep[4 + 2 * i] = 2;
+        }
+        checkInvalid(deep, deep.length, "nested too deeply");
+    }
+
+    private static void checkInvalid(byte[] data, int length, String what) {
+        try {
+            BinaryCodec.decode(data, 0, length);
+        } catch (JsonException e) {
+            return;
+        }
+        throw new AssertionError("decoded invalid message, " + what);
+    }
+
+    private static JsonObject randomObject(Random random, int depth) {
+        JsonObject object = new JsonObject();
+        int fields = random.nextInt(depth == 0 ? 8 : 4);
+        for (int i = 0; i < fields; i++)
+            object.put("f" + i + (random.nextBoolean() ? "é" : ""), randomValue(random, depth + 1));
+        return object;
+    }
+
+    private static Object randomValue(Random random, int depth) {
+        switch (random.nextInt(depth < 4 ? 10 : 8)) {
+        case 0:
+            return null;
+        case 1:
+            return random.nextBoolean();
+        case 2:
+            return random.nextLong() >> random.nextInt(64);
+        case 3:
+            return field(JSONMessage.DOUBLE_FIELD, random.nextDouble() * 1e6);
+        case 4:
+            return field(JSONMessage.MILLISECOND_FIELD, random.nextLong() >> 20);
+        case 5: {
+            byte[] bytes = new byte[random.nextInt(40)];
+            random.nextBytes(bytes);
+            return field(JSONMessage.OPAQUE_FIELD, Base64.encode(bytes));
+        }
+        case 6: {
+            StringBuilder builder = new StringBuilder();
+            for (int i = random.nextInt(30); i > 0; i--)
+                builder.append((char) (random.nextInt(4) == 0 ? 0x80 + random.nextInt(0x2000) : ' ' + random.nextInt(95)));
+            return builder.toString();
+        }
+        case 7:
+            return random.nextDouble();
+        case 8: {
+            JsonArray array = new JsonArray();
+            for (int i = random.nextInt(5); i > 0; i--)
+                array.add(randomValue(random, depth + 1));
+            return array;
+        }
+        default:
+            return randomObject(random, depth);
+        }
+    }
+
+    private static JsonObject field(String name, Object value) {
+        JsonObject object = new JsonObject();
+        object.put(name, value);
+        return object;
+    }
+
+    private static JsonArray array(Object... values) {
+        JsonArray array = new JsonArray();
+        for (Object value : values)
+            array.add(value);
+        return array;
+    }
+
+    // compares through JSON so that integer and long values are equal
+    private static Object normalize(JsonObject object) {
+        return JsonValue.parse(object.toString());
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
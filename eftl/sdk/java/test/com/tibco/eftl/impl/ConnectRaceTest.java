@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.tibco.eftl.websocket.NioWebSocket;
+import com.tibco.eftl.websocket.WebSocket;
+import com.tibco.eftl.websocket.WebSocketListener;
+
+/**
+ * Checks that the winner of a connect race is opened when a losing
+ * attempt is closed before its socket exists, and that the closed loser
+ * never connects.
+ */
+public class ConnectRaceTest {
+
+    public static void main(String[] args) throws Exception {
+        StandInServer server = new StandInServer(0).start();
+
+        checkLoserClosedBeforeSocket(server, false);
+        checkLoserClosedBeforeSocket(server, true);
+
+        server.close();
+
+        System.out.println("ConnectRaceTest passed");
+    }
+
+    private static void checkLoserClosedBeforeSocket(final StandInServer server, final boolean nio) throws Exception {
+        String transport = (nio ? "nio" : "blocking");
+        ServerSocket loserServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        loserServer.setSoTimeout(500);
+
+        URI winnerURI = new URI("ws://127.0.0.1:" + server.getPort() + "/channel");
+        URI loserURI = new URI("ws://127.0.0.1:" + loserServer.getLocalPort() + "/channel");
+
+        final CountDownLatch loserStarted = new CountDownLatch(1);
+        final CountDownLatch loserReleased = new CountDownLatch(1);
+        final AtomicReference<WebSocket> loser = new AtomicReference<WebSocket>();
+        final AtomicReference<WebSocket> winner = new AtomicReference<WebSocket>();
+        final CountDownLatch opened = new CountDownLatch(1);
+
+        ConnectRace.Callback callback = new ConnectRace.Callback() {
+            @Override
+            public WebSocket createWebSocket(URI uri, WebSocketListener listener) {
+                if (uri.getPort() == server.getPort()) {
+                    // the winner opens once the loser has been started
+                    return create(uri, listener, nio, new Runnable() {
+                        @Override
+                        public void run() {
+                            await(loserStarted);
+                        }
+                    });
+                }
+
+                // the loser opens only when released, after it was closed
+                WebSocket webSocket = create(uri, listener, nio, new Runnable() {
+                    @Override
+                    public void run() {
+                        loserStarted.countDown();
+                        await(loserReleased);
+                    }
+                });
+                loser.set(webSocket);
+                return webSocket;
+            }
+
+            @Override
+            public void onWinner(ConnectRace.Attempt attempt) {
+                winner.set(attempt.webSocket);
+            }
+
+            @Override
+            public void onFailure(ConnectRace.Attempt attempt) {
+            }
+        };
+
+        ConnectRace race = new ConnectRace(new Listener(opened), callback, Arrays.asList(winnerURI, loserURI), 0, 0, null);
+        race.start();
+
+        try {
+            check(opened.await(10, TimeUnit.SECONDS), transport + " winner opened");
+            check(winner.get() != null && winner.get() != loser.get(), transport + " winner");
+
+            // the loser was closed before it had a socket, and stops before connecting
+            loserReleased.countDown();
+            try {
+                loserServer.accept().close();
+                throw new AssertionError(transport + " closed loser connected");
+            } catch (SocketTimeoutException e) {
+                // not connected
+            }
+        } finally {
+            loserReleased.countDown();
+            if (winner.get() != null)
+                winner.get().forceClose();
+            loserServer.close();
+        }
+    }
+
+    /** Creates a WebSocket that runs the task before opening. */
+    private static WebSocket create(URI uri, WebSocketListener listener, boolean nio, final Runnable before) {
+        if (nio) {
+            return new NioWebSocket(uri, listener) {
+                @Override
+                public void open() {
+                    before.run();
+                    super.open();
+                }
+            };
+        }
+        return new WebSocket(uri, listener) {
+            @Override
+            public void open() {
+                before.run();
+                super.open();
+            }
+        };
+    }
+
+    private static class Listener implements WebSocketListener {
+        private final CountDownLatch opened;
+
+        Listener(CountDownLatch opened) {
+            this.opened = opened;
+        }
+
+        @Override
+        public void onOpen() {
+            opened.countDown();
+        }
+
+        @Override
+        public void onClose(int code, String reason) {
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+        }
+
+        @Override
+        public void onMessage(String text) {
+        }
+
+        @Override
+        public void onMessage(byte[] data, int offset, int length) {
+        }
+
+        @Override
+        public void onPong(byte[] data, int offset, int length) {
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tibco.eftl.json.JsonObject;
+
+/**
+ * Measures publish throughput against the number of publisher threads,
+ * queueing through the outbound ring and through the write lock it
+ * replaced.
+ * <p>
+ * Both paths are reproduced without a connection, as the publishers of
+ * a connection run them: the write lock path assigns the sequence
+ * number, encodes the whole message, indexes and queues the request
+ * under one lock, while the ring path encodes the body outside, claims
+ * a slot and publishes it. A single writer thread takes the requests in
+ * batches, joins their payloads and removes them from the index, as an
+ * acknowledgment would. Usage:
+ * <pre>
+ *   test/run.sh com.tibco.eftl.impl.OutboundRingBench [messages]
+ * </pre>
+ */
+public class OutboundRingBench {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+    private static final int BATCH = 64;
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 400000);
+
+        System.out.println(count + " messages, " + Runtime.getRuntime().availableProcessors() + " processors");
+        System.out.println(" threads   write lock msg/s   ring msg/s   ratio");
+
+        for (int threads : THREADS) {
+            // warm up, then measure
+            run(new LockPath(), threads, count / 4);
+            run(new RingPath(), threads, count / 4);
+
+            double lock = best(new LockPath(), threads, count);
+            double ring = best(new RingPath(), threads, count);
+
+            System.out.printf("%8d %18.0f %12.0f %7.2f%n", threads, lock, ring, ring / lock);
+        }
+    }
+
+    private static double best(Path path, int threads, int count) throws Exception {
+        double best = 0;
+        for (int i = 0; i < 3; i++)
+            best = Math.max(best, run(path, threads, count));
+        return best;
+    }
+
+    /** Returns the messages written per second. */
+    private static double run(final Path path, final int threads, int count) throws Exception {
+        final int each = count / threads;
+        final String text = text(new Random(1), 256);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    path.write(each * threads);
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "writer");
+        writer.start();
+
+        List<Thread> publishers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            Thread publisher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < each; i++) {
+                        JSONMessage message = new JSONMessage();
+                        message.setString("type", "order");
+                        message.setLong("sequence", (long) i);
+                        message.setString("text", text);
+                        path.publish(message);
+                    }
+                }
+            }, "publisher-" + t);
+            publisher.start();
+            publishers.add(publisher);
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+
+        writer.join(TimeUnit.SECONDS.toMillis(120));
+        if (writer.isAlive()) {
+            writer.interrupt();
+            throw new IllegalStateException(path + " did not write every message");
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        for (Thread publisher : publishers)
+            publisher.join();
+
+        path.check();
+        return (each * threads) / (elapsed / 1e9);
+    }
+
+    private static String text(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            builder.append((char) ('a' + random.nextInt(26)));
+        return builder.toString();
+    }
+
+    private interface Path {
+        void publish(JSONMessage message);
+
+        void write(int count) throws InterruptedException;
+
+        void check();
+    }
+
+    /** The write lock path. */
+    private static final class LockPath implements Path {
+        private final AtomicLong messageIdGenerator = new AtomicLong();
+        private final ConcurrentSkipListMap<Long, Request> requests = new ConcurrentSkipListMap<Long, Request>();
+        private final BlockingQueue<Request> writeQueue = new LinkedBlockingQueue<Request>();
+        private final Object writeLock = new Object();
+
+        @Override
+        public void publish(JSONMessage message) {
+            synchronized (writeLock) {
+                long seqNum = messageIdGenerator.incrementAndGet();
+
+                JsonObject envelope = new JsonObject();
+                envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MESSAGE);
+                envelope.put(ProtocolConstants.BODY_FIELD, message.toJsonObject());
+                envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
+
+                Publish publish = new Publish(seqNum, envelope.toString(), message, null);
+                requests.put(seqNum, publish);
+                writeQueue.offer(publish);
+            }
+        }
+
+        @Override
+        public void write(int count) throws InterruptedException {
+            List<Request> batch = new ArrayList<Request>(BATCH);
+            int written = 0;
+            while (written < count) {
+                batch.add(writeQueue.take());
+                writeQueue.drainTo(batch, BATCH - 1);
+                for (Request request : batch) {
+                    ((String) request.getPayload(false)).length();
+                    requests.remove(request.getSeqNum());
+                }
+                written += batch.size();
+                batch.clear();
+            }
+        }
+
+        @Override
+        public void check() {
+            if (!requests.isEmpty() || !writeQueue.isEmpty())
+                throw new IllegalStateException("write lock path left requests");
+        }
+
+        @Override
+        public String toString() {
+            return "write lock path";
+        }
+    }
+
+    /** The outbound ring path. */
+    private static final class RingPath implements Path {
+        private final PendingRequests requests = new PendingRequests();
+        private final OutboundRing writeQueue = new OutboundRing();
+
+        @Override
+        public void publish(JSONMessage message) {
+            Object body = message.toJsonObject().toString();
+
+            long seqNum = writeQueue.claim();
+
+            JsonObject envelope = new JsonObject();
+            envelope.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MESSAGE);
+            envelope.put(ProtocolConstants.SEQ_NUM_FIELD, seqNum);
+
+            Publish publish = new Publish(seqNum, Envelope.of(envelope, ProtocolConstants.BODY_FIELD, body), message, null);
+            requests.put(seqNum, publish);
+            writeQueue.publish(seqNum, publish);
+        }
+
+        @Override
+        public void write(int count) throws InterruptedException {
+            List<Request> batch = new ArrayList<Request>(BATCH);
+            int written = 0;
+            while (written < count) {
+                batch.add(writeQueue.take());
+                writeQueue.drainTo(batch, BATCH - 1);
+                for (Request request : batch) {
+                    ((String) request.getPayload(false)).length();
+                    requests.remove(request.getSeqNum(), request);
+                }
+                written += batch.size();
+                batch.clear();
+            }
+        }
+
+        @Override
+        public void check() {
+            if (!requests.clear().isEmpty() || writeQueue.poll() != null)
+                throw new IllegalStateException("ring path left requests");
+        }
+
+        @Override
+        public String toString() {
+            return "ring path";
+        }
+    }
+}
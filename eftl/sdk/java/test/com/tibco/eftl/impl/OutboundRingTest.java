@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that the outbound ring hands requests to its consumer in
+ * sequence number order, including with concurrent producers, and the
+ * purge and re-send done when a connection is re-established.
+ */
+public class OutboundRingTest {
+
+    public static void main(String[] args) throws Exception {
+        checkOrder();
+        checkCounts();
+        checkSegments();
+        checkDiscard();
+        checkTake();
+        checkConcurrent();
+
+        System.out.println("OutboundRingTest passed");
+    }
+
+    private static void checkOrder() {
+        OutboundRing ring = new OutboundRing();
+        long first = ring.claim();
+        long second = ring.claim();
+        long third = ring.claim();
+        check(first == 1 && second == 2 && third == 3, "claimed sequence numbers");
+
+        // the consumer waits for the first claimed slot
+        ring.publish(third, request(third));
+        ring.publish(second, request(second));
+        check(ring.poll() == null, "held up by an unpublished slot");
+
+        ring.publish(first, request(first));
+        check(ring.poll().getSeqNum() == first, "first");
+        check(ring.poll().getSeqNum() == second, "second");
+        check(ring.poll().getSeqNum() == third, "third");
+        check(ring.poll() == null, "empty");
+
+        // an empty slot is skipped
+        long skipped = ring.claim();
+        long next = ring.claim();
+        ring.publish(next, request(next));
+        ring.publish(skipped, null);
+        check(ring.poll().getSeqNum() == next, "skipped empty slot");
+        check(ring.poll() == null, "empty after skip");
+    }
+
+    private static void checkCounts() {
+        OutboundRing ring = new OutboundRing();
+
+        // a request of several sequence numbers occupies the first slot
+        long batch = ring.claim(5);
+        long after = ring.claim();
+        check(after == batch + 5, "claimed after batch");
+
+        ring.publish(after, request(after));
+        ring.publish(batch, request(batch, 5));
+
+        Request request = ring.poll();
+        check(request.getSeqNum() == batch && request.getCount() == 5, "batch");
+        check(ring.poll().getSeqNum() == after, "after batch");
+        check(ring.poll() == null, "empty");
+    }
+
+    private static void checkSegments() {
+        OutboundRing ring = new OutboundRing();
+        int count = 5 * OutboundRing.SEGMENT_SIZE + 17;
+
+        // publish in reverse so that every segment exists before it is consumed
+        long[] seqNums = new long[count];
+        for (int i = 0; i < count; i++)
+            seqNums[i] = ring.claim();
+        for (int i = count - 1; i >= 0; i--)
+            ring.publish(seqNums[i], request(seqNums[i]));
+
+        // batches that span segment boundaries
+        long batch = ring.claim(OutboundRing.SEGMENT_SIZE + 3);
+        ring.publish(batch, request(batch, OutboundRing.SEGMENT_SIZE + 3));
+        long last = ring.claim();
+        ring.publish(last, request(last));
+
+        for (int i = 0; i < count; i++)
+            check(ring.poll().getSeqNum() == seqNums[i], "segment order at " + i);
+        check(ring.poll().getSeqNum() == batch, "spanning batch");
+        check(ring.poll().getSeqNum() == last, "after spanning batch");
+        check(ring.poll() == null, "empty");
+    }
+
+    private static void checkDiscard() {
+        OutboundRing ring = new OutboundRing();
+        for (int i = 0; i < 3; i++)
+            ring.offer(request(0));
+
+        // requests queued behind a slot still being filled remain
+        long pending = ring.claim();
+        long later = ring.claim();
+        ring.publish(later, request(later));
+        ring.resend(Arrays.asList(request(100)));
+
+        long next = ring.discard();
+        check(next == pending, "discarded up to the unpublished slot, " + next);
+        check(ring.poll() == null, "nothing before the unpublished slot");
+
+        // re-sent requests come first
+        ring.resend(Arrays.asList(request(200), request(201)));
+        ring.publish(pending, request(pending));
+        check(ring.poll().getSeqNum() == 200, "first re-sent");
+        check(ring.poll().getSeqNum() == 201, "second re-sent");
+        check(ring.poll().getSeqNum() == pending, "pending");
+        check(ring.poll().getSeqNum() == later, "later");
+        check(ring.poll() == null, "empty");
+    }
+
+    private static void checkTake() throws Exception {
+        final OutboundRing ring = new OutboundRing();
+        final AtomicReference<Request> taken = new AtomicReference<Request>();
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken.set(ring.take());
+                } catch (InterruptedException e) {
+                    // checked below
+                }
+            }
+        });
+        consumer.start();
+
+        Thread.sleep(50);
+        check(taken.get() == null, "take waits");
+        long seqNum = ring.claim();
+        ring.publish(seqNum, request(seqNum));
+        consumer.join(5000);
+        check(taken.get() != null && taken.get().getSeqNum() == seqNum, "take woken by publish");
+
+        // an interrupted take stops waiting
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ring.take();
+                } catch (InterruptedException e) {
+                    taken.set(null);
+                }
+            }
+        });
+        waiting.start();
+        Thread.sleep(50);
+        waiting.interrupt();
+        waiting.join(5000);
+        check(!waiting.isAlive() && taken.get() == null, "interrupted take");
+    }
+
+    private static void checkConcurrent() throws Exception {
+        final OutboundRing ring = new OutboundRing();
+        final int producers = 4;
+        final int perProducer = 200000;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        if (i % 200 == 0) {
+                            // a batch of three sequence numbers
+                            long batch = ring.claim(3);
+                            ring.publish(batch, request(batch, 3));
+                        } else if (i % 200 == 100) {
+                            // three empty slots
+                            long batch = ring.claim(3);
+                            for (int j = 2; j >= 0; j--)
+                                ring.publish(batch + j, null);
+                        } else {
+                            long seqNum = ring.claim();
+                            ring.publish(seqNum, request(seqNum));
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        // the consumer takes every request once, in sequence number order
+        long expected = producers * (perProducer - perProducer / 200);
+        long taken = 0;
+        long last = 0;
+        List<Request> batch = new ArrayList<Request>();
+        while (taken < expected) {
+            batch.add(ring.take());
+            ring.drainTo(batch, 63);
+            for (Request request : batch) {
+                check(request.getSeqNum() > last, "increasing sequence numbers");
+                last = request.getSeqNum();
+            }
+            taken += batch.size();
+            batch.clear();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        long claimed = producers * (perProducer + 2 * (perProducer / 100));
+        check(taken == expected, "every request taken, " + taken);
+        check(ring.poll() == null, "empty");
+        check(ring.claim() == claimed + 1, "claimed sequence numbers");
+    }
+
+    private static Request request(long seqNum) {
+        return new Request(seqNum, "{}");
+    }
+
+    private static Request request(long seqNum, final int count) {
+        return new Request(seqNum, "{}") {
+            @Override
+            int getCount() {
+                return count;
+            }
+        };
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.List;
+
+/**
+ * Checks the lookup, removal, range and clearing of the unacknowledged
+ * requests, as the ring grows and moves stragglers out of it.
+ */
+public class PendingRequestsTest {
+
+    public static void main(String[] args) {
+        checkPutGet();
+        checkCounts();
+        checkGrowth();
+        checkStragglers();
+        checkRange();
+        checkClear();
+        checkClearOversized();
+
+        System.out.println("PendingRequestsTest passed");
+    }
+
+    private static void checkPutGet() {
+        PendingRequests requests = new PendingRequests();
+        Request first = request(1);
+        Request second = request(2);
+        requests.put(1, first);
+        requests.put(2, second);
+
+        check(requests.get(1) == first && requests.get(2) == second, "get");
+        check(requests.get(3) == null && requests.get(0) == null, "get missing");
+
+        // only the request held for the sequence number is removed
+        check(!requests.remove(1, second), "remove other request");
+        check(requests.remove(1, first), "remove");
+        check(!requests.remove(1, first), "remove twice");
+        check(requests.get(1) == null && requests.get(2) == second, "after remove");
+
+        // a late request below the range
+        requests.remove(2, second);
+        Request later = request(10);
+        Request late = request(5);
+        requests.put(10, later);
+        requests.put(5, late);
+        check(requests.get(5) == late && requests.get(10) == later, "late request");
+    }
+
+    private static void checkCounts() {
+        PendingRequests requests = new PendingRequests();
+        Request batch = request(1, 5);
+        Request after = request(6);
+        requests.put(1, batch);
+        requests.put(6, after);
+
+        // every sequence number of a batch finds it
+        for (long seq = 1; seq <= 5; seq++)
+            check(requests.get(seq) == batch, "batch at " + seq);
+        check(requests.get(6) == after, "after batch");
+
+        check(requests.remove(1, batch), "remove batch");
+        for (long seq = 1; seq <= 5; seq++)
+            check(requests.get(seq) == null, "removed batch at " + seq);
+    }
+
+    private static void checkGrowth() {
+        PendingRequests requests = new PendingRequests();
+        int count = 4 * PendingRequests.INITIAL_CAPACITY;
+
+        // the first request is outstanding while many more are added
+        Request[] all = new Request[count + 1];
+        for (int seq = 1; seq <= count; seq++) {
+            all[seq] = request(seq);
+            requests.put(seq, all[seq]);
+        }
+        for (int seq = 1; seq <= count; seq++)
+            check(requests.get(seq) == all[seq], "grown at " + seq);
+    }
+
+    private static void checkStragglers() {
+        PendingRequests requests = new PendingRequests();
+        Request straggler = request(1);
+        requests.put(1, straggler);
+
+        // later requests complete, leaving the first beyond the ring
+        int count = 2 * PendingRequests.MAX_CAPACITY;
+        for (int seq = 2; seq <= count; seq++) {
+            Request request = request(seq);
+            requests.put(seq, request);
+            if (seq < count - 10)
+                requests.remove(seq, request);
+        }
+
+        check(requests.get(1) == straggler, "straggler found");
+        check(requests.get(count) != null, "latest found");
+        check(requests.remove(1, straggler), "straggler removed");
+        check(requests.get(1) == null, "straggler gone");
+
+        // a request too large for the ring
+        Request oversized = request(count + 1, PendingRequests.MAX_CAPACITY + 1);
+        requests.put(count + 1, oversized);
+        check(requests.get(count + 1) == oversized, "oversized first");
+        check(requests.get(count + PendingRequests.MAX_CAPACITY + 1) == oversized, "oversized last");
+        check(requests.get(count + PendingRequests.MAX_CAPACITY + 2) == null, "past oversized");
+    }
+
+    private static void checkRange() {
+        PendingRequests requests = new PendingRequests();
+        requests.put(1, request(1));
+        requests.put(2, request(2, 3));
+        requests.put(5, request(5));
+        requests.put(7, request(7));
+
+        List<Request> list = requests.range(3, 6);
+        check(list.size() == 2, "range size " + list.size());
+        check(list.get(0).getSeqNum() == 2 && list.get(1).getSeqNum() == 5, "range starting inside a batch");
+        check(requests.range(8, 20).isEmpty(), "empty range");
+    }
+
+    private static void checkClear() {
+        PendingRequests requests = new PendingRequests();
+        requests.put(1, request(1));
+        requests.put(2, request(2, 4));
+        requests.put(6, request(6));
+
+        List<Request> cleared = requests.clear();
+        checkOrder(cleared, 3);
+        check(requests.get(1) == null && requests.get(6) == null, "cleared");
+        check(requests.clear().isEmpty(), "cleared twice");
+
+        // the ring is usable after clearing
+        Request next = request(7);
+        requests.put(7, next);
+        check(requests.get(7) == next, "after clear");
+    }
+
+    private static void checkClearOversized() {
+        PendingRequests requests = new PendingRequests();
+
+        // a straggler, requests in the ring, and an oversized batch
+        Request straggler = request(1);
+        requests.put(1, straggler);
+        int count = 2 * PendingRequests.MAX_CAPACITY;
+        for (int seq = 2; seq <= count; seq++) {
+            Request request = request(seq);
+            requests.put(seq, request);
+            if (seq < count - 2)
+                requests.remove(seq, request);
+        }
+
+        // added before the requests claimed ahead of it, so past the ring
+        Request oversized = request(count + 5, PendingRequests.MAX_CAPACITY + 1);
+        requests.put(count + 5, oversized);
+
+        // the oversized batch alone
+        PendingRequests alone = new PendingRequests();
+        alone.put(10, request(10, PendingRequests.MAX_CAPACITY + 1));
+        List<Request> cleared = alone.clear();
+        check(cleared.size() == 1, "oversized alone cleared, " + cleared.size());
+        check(alone.get(10) == null, "oversized alone gone");
+
+        cleared = requests.clear();
+        checkOrder(cleared, 5);
+        check(cleared.get(0) == straggler, "straggler cleared");
+        check(cleared.get(4) == oversized, "oversized cleared");
+        check(requests.get(1) == null && requests.get(count + 5) == null, "cleared");
+        check(requests.clear().isEmpty(), "nothing left");
+    }
+
+    private static void checkOrder(List<Request> list, int size) {
+        check(list.size() == size, "size " + list.size() + ", expected " + size);
+        for (int i = 1; i < list.size(); i++)
+            check(list.get(i - 1).getSeqNum() < list.get(i).getSeqNum(), "order at " + i);
+    }
+
+    private static Request request(long seqNum) {
+        return new Request(seqNum, "{}");
+    }
+
+    private static Request request(long seqNum, final int count) {
+        return new Request(seqNum, "{}") {
+            @Override
+            int getCount() {
+                return count;
+            }
+        };
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.tibco.eftl.json.JsonByteParser;
+import com.tibco.eftl.json.JsonObject;
+
+/**
+ * A minimal stand-in for an eFTL server, for benchmarks and tests that
+ * need a live connection.
+ * <p>
+ * It speaks just enough of the protocol for a client to log in,
+ * subscribe, publish, send requests and use key-value maps. Messages
+ * published on a connection are delivered, in order, to every
+ * subscription of that connection, and each publish is acknowledged,
+ * or, with an acknowledgment interval, every Nth publish and the last
+ * one received before the client pauses, cumulatively.
+ * Requests are answered with their own message body, and map
+ * operations always succeed. It selects the binary encoding when the
+ * client offers it, negotiates permessage-deflate when the client offers
+ * it, and compresses the messages it sends.
+ * <p>
+ * Each connection is served by its own thread. Run it on its own with:
+ * <pre>
+ *   java com.tibco.eftl.impl.StandInServer [port]
+ * </pre>
+ */
+public class StandInServer implements Runnable {
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    // messages shorter than this are sent uncompressed
+    private static final int COMPRESSION_THRESHOLD = 64;
+
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private volatile boolean closed;
+    private volatile int maxMessageSize = 16 * 1024 * 1024;
+    private volatile boolean answerRequests = true;
+    private volatile int ackInterval = 1;
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressedIn = new AtomicLong();
+    private final AtomicLong compressedOut = new AtomicLong();
+    private final AtomicLong acksOut = new AtomicLong();
+
+    /**
+     * @param port The port to listen on, or 0 for any free port.
+     */
+    public StandInServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public static void main(String[] args) throws IOException {
+        StandInServer server = new StandInServer(args.length > 0 ? Integer.parseInt(args[0]) : 9191);
+        System.out.println("listening on " + server.getURL());
+        server.run();
+    }
+
+    /** Starts accepting connections on a daemon thread. */
+    public StandInServer start() {
+        Thread thread = new Thread(this, "stand-in server");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getURL() {
+        return "ws://localhost:" + getPort() + "/channel";
+    }
+
+    /** Returns the frame bytes received from and sent to clients. */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /** Returns the number of compressed messages received and sent. */
+    public long getCompressedIn() {
+        return compressedIn.get();
+    }
+
+    public long getCompressedOut() {
+        return compressedOut.get();
+    }
+
+    /** Returns the number of publish acknowledgments sent. */
+    public long getAcksOut() {
+        return acksOut.get();
+    }
+
+    /**
+     * Acknowledges every Nth publish, each acknowledgment covering the
+     * publishes before it, and the last publish whenever no more input
+     * is buffered. Applies to connections that log in later.
+     */
+    public void setAckInterval(int ackInterval) {
+        this.ackInterval = ackInterval;
+    }
+
+    /** Sets the maximum message size announced to clients that log in later. */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /** Leaves requests unanswered, so that they time out, when false. */
+    public void setAnswerRequests(boolean answerRequests) {
+        this.answerRequests = answerRequests;
+    }
+
+    public void resetStatistics() {
+        bytesIn.set(0);
+        bytesOut.set(0);
+        compressedIn.set(0);
+        compressedOut.set(0);
+        acksOut.set(0);
+    }
+
+    /** Stops accepting connections and closes every open connection. */
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            sockets.clear();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            new Session(socket).serve();
+                        } catch (IOException e) {
+                            // the connection was closed
+                        } finally {
+                            synchronized (sockets) {
+                                sockets.remove(socket);
+                            }
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // ignore
+                            }
+                        }
+                    }
+                }, "stand-in session");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!closed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    private class Session {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final JsonByteParser parser = new JsonByteParser();
+
+        // subscription identifiers, in order of subscription
+        private final List<String> subscriptions = new ArrayList<String>();
+        private long eventSeqNum;
+
+        // the last publish not yet acknowledged, and the number of
+        // publishes since the last acknowledgment
+        private Object unackedSeqNum;
+        private int unacked;
+        private int ackInterval = 1;
+
+        // whether the binary encoding was selected
+        private boolean binary;
+
+        private Deflater deflater;
+        private Inflater inflater;
+        private boolean clientNoContextTakeover;
+        private boolean serverNoContextTakeover;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+
+        void serve() throws IOException {
+            upgrade();
+
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            boolean messageCompressed = false;
+            int messageOpcode = 0;
+
+            while (true) {
+                int b0 = in.read();
+                if (b0 < 0)
+                    return;
+                int b1 = readByte();
+
+                boolean fin = (b0 & 0x80) != 0;
+                boolean compressed = (b0 & 0x40) != 0;
+                int opcode = b0 & 0x0F;
+
+                int header = 2;
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = (readByte() << 8) | readByte();
+                    header += 2;
+                } else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++)
+                        length = (length << 8) | readByte();
+                    header += 8;
+                }
+
+                byte[] mask = new byte[4];
+                if ((b1 & 0x80) != 0) {
+                    readFully(mask);
+                    header += 4;
+                }
+
+                byte[] payload = new byte[(int) length];
+                readFully(payload);
+                for (int i = 0; i < payload.length; i++)
+                    payload[i] ^= mask[i & 3];
+
+                bytesIn.addAndGet(header + length);
+
+                if (opcode == 0x8) {
+                    writeFrame(0x8, false, payload);
+                    out.flush();
+                    return;
+                } else if (opcode == 0x9) {
+                    writeFrame(0xA, false, payload);
+                } else if (opcode == 0x1 || opcode == 0x2 || opcode == 0x0) {
+                    if (opcode != 0x0) {
+                        messageOpcode = opcode;
+                        messageCompressed = compressed;
+                        message.reset();
+                    }
+                    message.write(payload, 0, payload.length);
+
+                    if (fin) {
+                        byte[] data = message.toByteArray();
+                        if (messageCompressed) {
+                            compressedIn.incrementAndGet();
+                            data = inflate(data);
+                        }
+                        JsonObject request = (messageOpcode == 0x2
+                                ? BinaryCodec.decode(data, 0, data.length)
+                                : (JsonObject) parser.parse(data, 0, data.length));
+                        if (!handle(request))
+                            return;
+                    }
+                }
+
+                // flush once every buffered request is answered
+                if (in.available() == 0) {
+                    acknowledge();
+                    out.flush();
+                }
+            }
+        }
+
+        private void upgrade() throws IOException {
+            String key = null;
+            List<String> protocols = new ArrayList<String>();
+            String extensions = null;
+
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                int c = readByte();
+                if (c == '\n') {
+                    String header = line.toString().trim();
+                    line.setLength(0);
+                    if (header.isEmpty())
+                        break;
+
+                    int colon = header.indexOf(':');
+                    if (colon < 0)
+                        continue;
+                    String name = header.substring(0, colon).trim();
+                    String value = header.substring(colon + 1).trim();
+
+                    if (name.equalsIgnoreCase("Sec-WebSocket-Key"))
+                        key = value;
+                    else if (name.equalsIgnoreCase("Sec-WebSocket-Protocol"))
+                        protocols.addAll(Arrays.asList(value.split("\\s*,\\s*")));
+                    else if (name.equalsIgnoreCase("Sec-WebSocket-Extensions"))
+                        extensions = value;
+                } else {
+                    line.append((char) c);
+                }
+            }
+
+            String accept;
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                accept = Base64.getEncoder().encodeToString(sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII)));
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+
+            binary = protocols.contains(ProtocolConstants.EFTL_WS_PROTOCOL_BINARY);
+
+            StringBuilder response = new StringBuilder();
+            response.append("HTTP/1.1 101 Switching Protocols\r\n");
+            response.append("Upgrade: websocket\r\n");
+            response.append("Connection: Upgrade\r\n");
+            response.append("Sec-WebSocket-Accept: ").append(accept).append("\r\n");
+            response.append("Sec-WebSocket-Protocol: ")
+                    .append(binary ? ProtocolConstants.EFTL_WS_PROTOCOL_BINARY : ProtocolConstants.EFTL_WS_PROTOCOL)
+                    .append("\r\n");
+
+            if (extensions != null && extensions.startsWith("permessage-deflate")) {
+                clientNoContextTakeover = extensions.contains("client_no_context_takeover");
+                serverNoContextTakeover = extensions.contains("server_no_context_takeover");
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                inflater = new Inflater(true);
+
+                response.append("Sec-WebSocket-Extensions: permessage-deflate");
+                if (clientNoContextTakeover)
+                    response.append("; client_no_context_takeover");
+                if (serverNoContextTakeover)
+                    response.append("; server_no_context_takeover");
+                response.append("\r\n");
+            }
+
+            response.append("\r\n");
+            out.write(response.toString().getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        /** Handles a protocol message, and returns false to close the connection. */
+        private boolean handle(JsonObject message) throws IOException {
+            int op = ((Number) message.get(ProtocolConstants.OP_FIELD)).intValue();
+            JsonObject response = new JsonObject();
+
+            if (op == ProtocolConstants.OP_HEARTBEAT) {
+                response.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_HEARTBEAT);
+            } else if (op == ProtocolConstants.OP_LOGIN) {
+                JsonObject options = (JsonObject) message.get(ProtocolConstants.LOGIN_OPTIONS_FIELD);
+                if (options != null && options.get(ProtocolConstants.RESUME_FIELD) != null)
+                    response.put(ProtocolConstants.RESUME_FIELD, "true");
+                ackInterval = StandInServer.this.ackInterval;
+                response.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_WELCOME);
+                response.put(ProtocolConstants.CLIENT_ID_FIELD, "stand-in-" + getPort() + "-" + socket.getPort());
+                response.put(ProtocolConstants.ID_TOKEN_FIELD, "token");
+                response.put(ProtocolConstants.MAX_SIZE_FIELD, maxMessageSize);
+                response.put(ProtocolConstants.TIMEOUT_FIELD, 600.0);
+                response.put(ProtocolConstants.QOS_FIELD, "true");
+                response.put(ProtocolConstants.PROTOCOL, ProtocolConstants.PROTOCOL_VERSION);
+            } else if (op == ProtocolConstants.OP_SUBSCRIBE) {
+                subscriptions.add((String) message.get(ProtocolConstants.ID_FIELD));
+                response.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_SUBSCRIBED);
+                response.put(ProtocolConstants.ID_FIELD, message.get(ProtocolConstants.ID_FIELD));
+            } else if (op == ProtocolConstants.OP_UNSUBSCRIBE) {
+                subscriptions.remove(message.get(ProtocolConstants.ID_FIELD));
+            } else if (op == ProtocolConstants.OP_MESSAGE) {
+                for (String id : subscriptions) {
+                    JsonObject event = new JsonObject();
+                    event.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_EVENT);
+                    event.put(ProtocolConstants.TO_FIELD, id);
+                    event.put(ProtocolConstants.SEQ_NUM_FIELD, ++eventSeqNum);
+                    event.put(ProtocolConstants.BODY_FIELD, message.get(ProtocolConstants.BODY_FIELD));
+                    send(event);
+                }
+                if (message.get(ProtocolConstants.SEQ_NUM_FIELD) != null) {
+                    unackedSeqNum = message.get(ProtocolConstants.SEQ_NUM_FIELD);
+                    if (++unacked >= ackInterval)
+                        acknowledge();
+                }
+            } else if (op == ProtocolConstants.OP_REQUEST && answerRequests) {
+                response.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_REQUEST_REPLY);
+                response.put(ProtocolConstants.SEQ_NUM_FIELD, message.get(ProtocolConstants.SEQ_NUM_FIELD));
+                response.put(ProtocolConstants.BODY_FIELD, message.get(ProtocolConstants.BODY_FIELD));
+            } else if (op == ProtocolConstants.OP_MAP_SET || op == ProtocolConstants.OP_MAP_GET || op == ProtocolConstants.OP_MAP_REMOVE) {
+                response.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_MAP_RESPONSE);
+                response.put(ProtocolConstants.SEQ_NUM_FIELD, message.get(ProtocolConstants.SEQ_NUM_FIELD));
+            } else if (op == ProtocolConstants.OP_DISCONNECT) {
+                writeFrame(0x8, false, new byte[] {0x03, (byte) 0xE8});
+                out.flush();
+                return false;
+            }
+
+            if (!response.isEmpty())
+                send(response);
+
+            return true;
+        }
+
+        /** Acknowledges the publishes received up to the last one. */
+        private void acknowledge() throws IOException {
+            if (unacked == 0)
+                return;
+
+            JsonObject ack = new JsonObject();
+            ack.put(ProtocolConstants.OP_FIELD, ProtocolConstants.OP_ACK);
+            ack.put(ProtocolConstants.SEQ_NUM_FIELD, unackedSeqNum);
+            send(ack);
+
+            acksOut.incrementAndGet();
+            unackedSeqNum = null;
+            unacked = 0;
+        }
+
+        private void send(JsonObject message) throws IOException {
+            if (binary)
+                sendMessage(0x2, BinaryCodec.encode(message));
+            else
+                sendMessage(0x1, message.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void sendMessage(int opcode, byte[] data) throws IOException {
+            if (deflater != null && data.length >= COMPRESSION_THRESHOLD) {
+                compressedOut.incrementAndGet();
+                writeFrame(opcode, true, deflate(data));
+            } else {
+                writeFrame(opcode, false, data);
+            }
+        }
+
+        private byte[] deflate(byte[] data) {
+            deflater.setInput(data);
+            byte[] buffer = new byte[data.length + 64];
+            int count = 0;
+            while (true) {
+                count += deflater.deflate(buffer, count, buffer.length - count, Deflater.SYNC_FLUSH);
+                if (count < buffer.length)
+                    break;
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            if (serverNoContextTakeover)
+                deflater.reset();
+
+            // remove the trailing empty block
+            return Arrays.copyOf(buffer, count - 4);
+        }
+
+        private byte[] inflate(byte[] data) throws IOException {
+            byte[] input = Arrays.copyOf(data, data.length + 4);
+            input[data.length + 2] = (byte) 0xFF;
+            input[data.length + 3] = (byte) 0xFF;
+            inflater.setInput(input);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                int n;
+                while ((n = inflater.inflate(buffer)) > 0)
+                    output.write(buffer, 0, n);
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            if (clientNoContextTakeover)
+                inflater.reset();
+
+            return output.toByteArray();
+        }
+
+        private void writeFrame(int opcode, boolean compressed, byte[] data) throws IOException {
+            out.write(0x80 | (compressed ? 0x40 : 0) | opcode);
+            if (data.length < 126) {
+                out.write(data.length);
+                bytesOut.addAndGet(2 + data.length);
+            } else if (data.length < 65536) {
+                out.write(126);
+                out.write(data.length >> 8);
+                out.write(data.length & 0xFF);
+                bytesOut.addAndGet(4 + data.length);
+            } else {
+                out.write(127);
+                for (int i = 7; i >= 0; i--)
+                    out.write((int) ((long) data.length >> (8 * i)) & 0xFF);
+                bytesOut.addAndGet(10 + data.length);
+            }
+            out.write(data);
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            return b;
+        }
+
+        private void readFully(byte[] data) throws IOException {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0)
+                    throw new EOFException();
+                offset += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that the timer wheel runs each timeout once, never before its
+ * deadline, including timeouts that take several rounds of the wheel,
+ * and that cancelled timeouts do not run.
+ */
+public class TimerWheelTest {
+
+    // the most a timeout may run after its deadline on a loaded machine
+    private static final long LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    public static void main(String[] args) throws Exception {
+        // a small wheel, so that most timeouts take several rounds
+        TimerWheel wheel = new TimerWheel("test wheel", 1, TimeUnit.MILLISECONDS, 8);
+
+        checkDeadlines(wheel);
+        checkCancel(wheel);
+        checkFailingTask(wheel);
+        checkMany(wheel);
+
+        System.out.println("TimerWheelTest passed");
+    }
+
+    private static void checkDeadlines(TimerWheel wheel) throws Exception {
+        long[] delays = {0, 1, 3, 7, 8, 9, 25, 100};
+        final CountDownLatch done = new CountDownLatch(delays.length);
+        final AtomicInteger failures = new AtomicInteger();
+
+        for (final long delay : delays) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    long now = System.nanoTime();
+                    if (now - deadline < 0 || now - deadline > LATE_NANOS)
+                        failures.incrementAndGet();
+                    done.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        check(done.await(5, TimeUnit.SECONDS), "every timeout ran");
+        check(failures.get() == 0, failures.get() + " timeouts early or late");
+    }
+
+    private static void checkCancel(TimerWheel wheel) throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+
+        // cancelled before it reaches its bucket, and while in it
+        TimerWheel.Timeout early = wheel.schedule(task, 20, TimeUnit.MILLISECONDS);
+        early.cancel();
+        TimerWheel.Timeout late = wheel.schedule(task, 50, TimeUnit.MILLISECONDS);
+        Thread.sleep(10);
+        late.cancel();
+        check(early.isCancelled() && late.isCancelled(), "cancelled");
+
+        Thread.sleep(150);
+        check(ran.get() == 0, "cancelled timeouts ran " + ran.get());
+
+        // cancelling a timeout that has fired has no effect
+        final CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        check(fired.await(5, TimeUnit.SECONDS), "fired");
+        timeout.cancel();
+        check(!timeout.isCancelled(), "cancelled after firing");
+    }
+
+    private static void checkFailingTask(TimerWheel wheel) throws Exception {
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("task failure");
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+
+        // the wheel keeps running
+        final CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 5, TimeUnit.MILLISECONDS);
+        check(fired.await(5, TimeUnit.SECONDS), "ran after a failing task");
+    }
+
+    private static void checkMany(TimerWheel wheel) throws Exception {
+        final int count = 200000;
+        final AtomicLong ran = new AtomicLong();
+        final AtomicInteger early = new AtomicInteger();
+        Random random = new Random(1);
+
+        // most are cancelled, as most requests are answered in time
+        List<TimerWheel.Timeout> timeouts = new ArrayList<TimerWheel.Timeout>();
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            long delay = random.nextInt(200);
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            TimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (System.nanoTime() - deadline < 0)
+                        early.incrementAndGet();
+                    ran.incrementAndGet();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+
+            if (i % 10 == 0)
+                kept++;
+            else
+                timeouts.add(timeout);
+        }
+        for (TimerWheel.Timeout timeout : timeouts)
+            timeout.cancel();
+
+        // cancelling may race with expiry, so count the timeouts that fired first
+        int expired = 0;
+        for (TimerWheel.Timeout timeout : timeouts) {
+            if (!timeout.isCancelled())
+                expired++;
+        }
+
+        Thread.sleep(200 + TimeUnit.NANOSECONDS.toMillis(LATE_NANOS));
+        check(ran.get() == kept + expired, "ran " + ran.get() + " of " + (kept + expired));
+        check(early.get() == 0, early.get() + " timeouts early");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2001-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ */
+package com.tibco.eftl.json;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Checks that parsing UTF-8 bytes gives the same values as parsing the
+ * decoded text, and that malformed UTF-8 is rejected.
+ */
+public class JsonByteParserTest {
+
+    public static void main(String[] args) {
+        JsonByteParser parser = new JsonByteParser();
+
+        checkString(parser, "plain ascii");
+        checkString(parser, "café üß");
+        checkString(parser, "€ 中文 ￮");
+        checkString(parser, "😀 𐀀 􏿿");
+        checkString(parser, "escaped \" \\ / \b \f \n \r \t and é after");
+
+        // escaped characters, including a surrogate pair
+        check("é😀".equals(parse(parser, "\"\\u00e9\\ud83d\\ude00\"")), "unicode escapes");
+
+        // keys are cached, but must not be confused with each other
+        JsonObject object = (JsonObject) parse(parser, "{\"ab\":1,\"ba\":2,\"kéy\":3}");
+        check(object.size() == 3 && object.containsKey("ab") && object.containsKey("ba") && object.containsKey("kéy"), "keys");
+        object = (JsonObject) parse(parser, "{\"ab\":1,\"ba\":2}");
+        check(((Number) object.get("ba")).intValue() == 2, "cached keys");
+
+        // a direct buffer and an offset into a larger array
+        byte[] data = utf8("xx[1,\"é\"]yy");
+        check(parser.parse(data, 2, data.length - 4).toString().equals(new JsonParser("[1,\"é\"]").parse().toString()), "offset");
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).position(2).limit(data.length - 2);
+        check(parser.parse(direct).toString().equals(new JsonParser("[1,\"é\"]").parse().toString()), "direct buffer");
+
+        checkRandomDocuments(parser);
+
+        // overlong encodings
+        checkInvalid(parser, 0xC0, 0x80);
+        checkInvalid(parser, 0xC1, 0xBF);
+        checkInvalid(parser, 0xE0, 0x80, 0x80);
+        checkInvalid(parser, 0xF0, 0x80, 0x80, 0x80);
+        // encoded surrogates
+        checkInvalid(parser, 0xED, 0xA0, 0x80);
+        checkInvalid(parser, 0xED, 0xBF, 0xBF);
+        // beyond U+10FFFF
+        checkInvalid(parser, 0xF4, 0x90, 0x80, 0x80);
+        // invalid lead bytes
+        checkInvalid(parser, 0x80);
+        checkInvalid(parser, 0xBF);
+        checkInvalid(parser, 0xF8, 0x80, 0x80, 0x80, 0x80);
+        checkInvalid(parser, 0xFF);
+        // missing continuation bytes
+        checkInvalid(parser, 0xC3, 0x41);
+        checkInvalid(parser, 0xE2, 0x82, 0x41);
+        checkInvalid(parser, 0xF0, 0x9F, 0x98, 0x41);
+
+        // a sequence truncated by the end of the input
+        checkInvalid(parser, new byte[] {'"', (byte) 0xE2, (byte) 0x82});
+        // control characters in strings
+        checkInvalid(parser, new byte[] {'"', 'a', 0x01, '"'});
+        checkInvalid(parser, new byte[] {'"', (byte) 0xC3, (byte) 0xA9, '\n', '"'});
+
+        System.out.println("JsonByteParserTest passed");
+    }
+
+    private static void checkString(JsonByteParser parser, String value) {
+        String json = "[" + quote(value) + "]";
+        Object parsed = parse(parser, json);
+        check(parsed.equals(new JsonParser(json).parse()), "string " + json);
+    }
+
+    private static void checkRandomDocuments(JsonByteParser parser) {
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder json = new StringBuilder("{");
+            int fields = random.nextInt(8);
+            for (int j = 0; j < fields; j++) {
+                if (j > 0)
+                    json.append(',');
+                json.append(quote("f" + j + text(random, random.nextInt(3)))).append(':');
+                switch (random.nextInt(4)) {
+                case 0:
+                    json.append(random.nextLong());
+                    break;
+                case 1:
+                    json.append(random.nextDouble());
+                    break;
+                case 2:
+                    json.append("[true,false,null]");
+                    break;
+                default:
+                    json.append(quote(text(random, random.nextInt(100))));
+                    break;
+                }
+            }
+            json.append('}');
+
+            String text = json.toString();
+            check(parse(parser, text).equals(new JsonParser(text).parse()), "document " + text);
+        }
+    }
+
+    private static void checkInvalid(JsonByteParser parser, int... sequence) {
+        byte[] data = new byte[sequence.length + 4];
+        data[0] = '"';
+        data[1] = 'a';
+        for (int i = 0; i < sequence.length; i++)
+            data[i + 2] = (byte) sequence[i];
+        data[data.length - 2] = 'b';
+        data[data.length - 1] = '"';
+        checkInvalid(parser, data);
+    }
+
+    private static void checkInvalid(JsonByteParser parser, byte[] data) {
+        try {
+            parser.parse(data, 0, data.length);
+        } catch (JsonException e) {
+            // the parser is still usable after an error
+            check("ok".equals(parse(parser, "\"ok\"")), "reuse after error");
+            return;
+        }
+        throw new AssertionError("accepted invalid input " + hex(data));
+    }
+
+    private static Object parse(JsonByteParser parser, String json) {
+        byte[] data = utf8(json);
+        return parser.parse(data, 0, data.length);
+    }
+
+    private static String text(Random random, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(6)) {
+            case 0:
+                builder.append((char) (0xA0 + random.nextInt(0x700)));
+                break;
+            case 1:
+                builder.append((char) (0x800 + random.nextInt(0xD000)));
+                break;
+            case 2:
+                builder.appendCodePoint(0x10000 + random.nextInt(0x100000));
+                break;
+            case 3:
+                builder.append("\"\\\n\t".charAt(random.nextInt(4)));
+                break;
+            default:
+                builder.append((char) (' ' + random.nextInt(95)));
+                break;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String quote(String value) {
+        JsonArray array = new JsonArray();
+        array.add(value);
+        String json = array.toString();
+        return json.substring(1, json.length() - 1);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : data)
+            builder.append(String.format("%02x ", b & 0xFF));
+        return builder.toString().trim();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that the buffer pool reuses what it lent, and never hands the
+ * same array or buffer to two borrowers.
+ */
+public class BufferPoolTest {
+
+    public static void main(String[] args) {
+        BufferPool pool = new BufferPool(64 * 1024, 64 * 1024);
+
+        // sizes round up to a power of two of at least 1K
+        check(pool.acquire(0).length == 1024, "minimum size");
+        check(pool.acquire(1025).length == 2048, "rounded size");
+        check(pool.acquire(100000).length == 100000, "unpooled size");
+
+        // a released array is reused
+        byte[] array = pool.acquire(4096);
+        pool.release(array);
+        check(pool.acquire(4096) == array, "reused");
+
+        // an array released twice is handed out once
+        array = pool.acquire(4096);
+        pool.release(array);
+        pool.release(array);
+        byte[] first = pool.acquire(4096);
+        byte[] second = pool.acquire(4096);
+        check(first == array && second != array, "double release");
+
+        // arrays the pool did not lend are not taken
+        byte[] foreign = new byte[4096];
+        pool.release(foreign);
+        check(pool.acquire(4096) != foreign, "foreign array");
+
+        // nor are arrays lent by another pool
+        byte[] other = new BufferPool(64 * 1024, 64 * 1024).acquire(4096);
+        pool.release(other);
+        check(pool.acquire(4096) != other, "array of another pool");
+
+        // a size class keeps a bounded number of arrays
+        byte[][] arrays = new byte[64][];
+        for (int i = 0; i < arrays.length; i++)
+            arrays[i] = pool.acquire(32 * 1024);
+        for (int i = 0; i < arrays.length; i++)
+            pool.release(arrays[i]);
+        int reused = 0;
+        for (int i = 0; i < arrays.length; i++) {
+            byte[] a = pool.acquire(32 * 1024);
+            for (int j = 0; j < arrays.length; j++) {
+                if (arrays[j] == a)
+                    reused++;
+            }
+        }
+        check(reused == 2, "bounded class, reused " + reused);
+
+        // direct buffers
+        ByteBuffer buffer = pool.acquireDirect(2000);
+        check(buffer.isDirect() && buffer.capacity() == 2048, "direct size");
+        buffer.position(10);
+        pool.releaseDirect(buffer);
+        pool.releaseDirect(buffer);
+        ByteBuffer reusedBuffer = pool.acquireDirect(2048);
+        check(reusedBuffer == buffer && reusedBuffer.position() == 0, "direct reused and cleared");
+        check(pool.acquireDirect(2048) != buffer, "direct double release");
+        pool.releaseDirect(ByteBuffer.allocate(2048));
+        check(pool.acquireDirect(2048).isDirect(), "heap buffer not taken");
+
+        System.out.println("BufferPoolTest passed");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks extension negotiation, and that compressed frames inflate to
+ * the original payload with and without context takeover.
+ */
+public class PerMessageDeflateTest {
+
+    public static void main(String[] args) throws Exception {
+        checkNegotiation();
+
+        Random random = new Random(1);
+        for (boolean noContextTakeover : new boolean[] {false, true}) {
+            checkRoundTrips(random, noContextTakeover);
+        }
+
+        checkThreshold();
+        checkInvalidData();
+
+        System.out.println("PerMessageDeflateTest passed");
+    }
+
+    private static void checkNegotiation() throws WebSocketException {
+        check("permessage-deflate".equals(new PerMessageDeflate(256, false, false).offer()), "plain offer");
+        check("permessage-deflate; client_no_context_takeover; server_no_context_takeover".equals(
+                new PerMessageDeflate(256, true, true).offer()), "offer with parameters");
+
+        PerMessageDeflate offer = new PerMessageDeflate(256, false, false);
+        check(offer.accept(null) == null, "declined, no header");
+        check(offer.accept(" ") == null, "declined, empty header");
+        check(offer.accept("permessage-deflate") != null, "accepted");
+        check(offer.accept("permessage-deflate; server_max_window_bits=10") != null, "server window bits");
+        check(offer.accept("Permessage-Deflate; Client_No_Context_Takeover") != null, "case insensitive");
+        check(offer.accept("permessage-deflate").getThreshold() == 256, "threshold kept");
+
+        checkRejected(offer, "x-webkit-deflate-frame");
+        checkRejected(offer, "permessage-deflate, permessage-deflate");
+        checkRejected(offer, "permessage-deflate; client_max_window_bits=10");
+        checkRejected(offer, "permessage-deflate; unknown_parameter");
+
+        // a requested server_no_context_takeover must be accepted
+        PerMessageDeflate strict = new PerMessageDeflate(256, false, true);
+        checkRejected(strict, "permessage-deflate");
+        check(strict.accept("permessage-deflate; server_no_context_takeover") != null, "server no context takeover");
+    }
+
+    private static void checkRejected(PerMessageDeflate offer, String response) {
+        try {
+            offer.accept(response);
+        } catch (WebSocketException e) {
+            return;
+        }
+        throw new AssertionError("accepted " + response);
+    }
+
+    private static void checkRoundTrips(Random random, boolean noContextTakeover) throws WebSocketException {
+        String params = (noContextTakeover ? "permessage-deflate; client_no_context_takeover; server_no_context_takeover" : "permessage-deflate");
+        PerMessageDeflate client = new PerMessageDeflate(16, noContextTakeover, noContextTakeover).accept(params);
+        PerMessageDeflate server = new PerMessageDeflate(16, noContextTakeover, noContextTakeover).accept(params);
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int[] sizes = {16, 100, 1000, 10000, 200000, 1000000};
+
+        for (int round = 0; round < 3; round++) {
+            for (int size : sizes) {
+                String text = json(random, size);
+                byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+
+                buffer.clear();
+                buffer = client.textFrame(buffer, text, MaskGenerator.FAST);
+                WebSocketFrame frame = parse(buffer);
+                check(frame.isCompressed(), "text compressed, size " + size);
+                check(frame.getOpCode() == WebSocketFrame.TEXT, "text opcode");
+                checkInflate(server, frame, expected, "text, size " + size);
+
+                // without context takeover every message inflates on its own
+                if (noContextTakeover) {
+                    PerMessageDeflate fresh = new PerMessageDeflate(16, true, true).accept(params);
+                    checkInflate(fresh, frame, expected, "independent text, size " + size);
+                    fresh.end();
+                }
+
+                byte[] data = new byte[size];
+                for (int i = 0; i < size; i++)
+                    data[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt() : 'a' + (i % 7));
+
+                buffer.clear();
+                buffer = client.binaryFrame(buffer, data, 0, size, MaskGenerator.SECURE);
+                frame = parse(buffer);
+                check(frame.isCompressed(), "binary compressed, size " + size);
+                check(frame.getOpCode() == WebSocketFrame.BINARY, "binary opcode");
+                checkInflate(server, frame, data, "binary, size " + size);
+            }
+        }
+
+        client.end();
+        server.end();
+    }
+
+    private static void checkThreshold() throws WebSocketException {
+        PerMessageDeflate client = new PerMessageDeflate(100, false, false).accept("permessage-deflate");
+
+        // a short text, and a text whose UTF-8 encoding is just short of the threshold
+        for (String text : new String[] {"short", repeat('a', 99), repeat('é', 49)}) {
+            WebSocketFrame frame = parse(client.textFrame(ByteBuffer.allocate(16), text, MaskGenerator.FAST));
+            check(!frame.isCompressed(), "not compressed below threshold: " + text.length());
+            check(Arrays.equals(payload(frame), text.getBytes(StandardCharsets.UTF_8)), "payload below threshold");
+        }
+
+        WebSocketFrame frame = parse(client.textFrame(ByteBuffer.allocate(16), repeat('é', 50), MaskGenerator.FAST));
+        check(frame.isCompressed(), "compressed at threshold");
+
+        frame = parse(client.binaryFrame(ByteBuffer.allocate(16), new byte[99], 0, 99, MaskGenerator.FAST));
+        check(!frame.isCompressed(), "binary not compressed below threshold");
+
+        client.end();
+    }
+
+    private static void checkInvalidData() throws WebSocketException {
+        PerMessageDeflate server = new PerMessageDeflate(16, false, false).accept("permessage-deflate");
+        byte[] garbage = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01, 0x02};
+        try {
+            server.inflate(garbage, 0, garbage.length);
+        } catch (WebSocketException e) {
+            server.end();
+            return;
+        }
+        throw new AssertionError("inflated invalid data");
+    }
+
+    private static void checkInflate(PerMessageDeflate peer, WebSocketFrame frame, byte[] expected, String what) throws WebSocketException {
+        ByteBuffer inflated = peer.inflate(frame.getPayload(), 0, frame.getPayloadLength());
+        byte[] actual = new byte[inflated.remaining()];
+        inflated.get(actual);
+        check(Arrays.equals(actual, expected), what);
+    }
+
+    private static WebSocketFrame parse(ByteBuffer buffer) throws WebSocketException {
+        buffer.flip();
+        WebSocketFrame frame = new WebSocketFrame();
+        frame.setCompressionEnabled(true);
+        check(frame.parse(buffer), "complete frame");
+        return frame;
+    }
+
+    private static byte[] payload(WebSocketFrame frame) {
+        return Arrays.copyOf(frame.getPayload(), frame.getPayloadLength());
+    }
+
+    // JSON-like text, which compresses much like message payloads
+    private static String json(Random random, int size) {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < size) {
+            builder.append("{\"op\":8,\"to\":\"").append(random.nextInt(10))
+                   .append("\",\"body\":{\"text\":\"é").append(random.nextInt(100000))
+                   .append("\",\"price\":").append(random.nextDouble()).append("}}");
+        }
+        return builder.substring(0, size);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Checks that the upgrade response is parsed from a buffer or stream
+ * without consuming the frames that follow it, and validated against
+ * the request.
+ */
+public class UpgradeResponseTest {
+
+    private static final String HEADER =
+            "HTTP/1.1 101 Switching Protocols\r\n" +
+            "Upgrade: websocket\r\n" +
+            "Connection: Upgrade\r\n" +
+            "Sec-WebSocket-Protocol: v1.json.eftl.tibco.com\r\n" +
+            "Sec-WebSocket-Extensions: permessage-deflate\r\n" +
+            "\r\n";
+
+    // a text frame received along with the response
+    private static final byte[] FRAME = {(byte) 0x81, 0x02, 'h', 'i'};
+
+    public static void main(String[] args) throws Exception {
+        checkParse();
+        checkPartial();
+        checkRead();
+        checkInvalid();
+        checkValidate();
+
+        System.out.println("UpgradeResponseTest passed");
+    }
+
+    private static void checkParse() throws IOException {
+        // the header at an offset in the buffer, followed by a frame
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put(new byte[] {'x', 'y'});
+        buffer.put(ascii(HEADER)).put(FRAME).flip();
+        buffer.position(2);
+
+        UpgradeResponse response = UpgradeResponse.parse(buffer);
+        check(response != null, "parsed");
+        check("HTTP/1.1".equals(response.getVersion()), "version");
+        check(response.getStatusCode() == 101, "status code");
+        check("Switching Protocols".equals(response.getStatusReason()), "status reason");
+        check("websocket".equals(response.getHeader("upgrade")), "case insensitive header");
+        check("v1.json.eftl.tibco.com".equals(response.getProtocol()), "protocol");
+        check("permessage-deflate".equals(response.getHeader("Sec-WebSocket-Extensions")), "extensions");
+        check(response.getHeader("Content-Length") == null, "missing header");
+        check(buffer.position() == 2 + HEADER.length(), "positioned after the header");
+        check(buffer.remaining() == FRAME.length, "frame left in the buffer");
+
+        // a status line without a reason and no headers
+        response = UpgradeResponse.parse(ByteBuffer.wrap(ascii("HTTP/1.1 403\r\n\r\n")));
+        check(response.getStatusCode() == 403 && "".equals(response.getStatusReason()), "no reason");
+    }
+
+    private static void checkPartial() throws IOException {
+        byte[] bytes = ascii(HEADER);
+
+        // every prefix of the header is incomplete, including one
+        // that ends part way through the final CR LF CR LF
+        for (int length = 0; length < bytes.length; length++) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            check(UpgradeResponse.parse(buffer) == null, "incomplete at " + length);
+            check(buffer.position() == 0, "unchanged at " + length);
+        }
+
+        check(UpgradeResponse.parse(ByteBuffer.wrap(bytes)) != null, "complete");
+    }
+
+    private static void checkRead() throws IOException {
+        byte[] bytes = concat(ascii(HEADER), FRAME);
+        ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
+
+        UpgradeResponse response = UpgradeResponse.read(stream);
+        check(response.getStatusCode() == 101, "read status code");
+        byte[] rest = new byte[FRAME.length];
+        check(stream.read(rest) == FRAME.length && Arrays.equals(rest, FRAME), "frame not consumed");
+
+        // a header larger than the initial read buffer
+        StringBuilder large = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n");
+        for (int i = 0; i < 200; i++)
+            large.append("X-Header-").append(i).append(": value ").append(i).append("\r\n");
+        large.append("\r\n");
+        response = UpgradeResponse.read(new ByteArrayInputStream(ascii(large.toString())));
+        check("value 199".equals(response.getHeader("x-header-199")), "large header");
+
+        // the stream ends before the header does
+        checkReadFails(ascii("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"), "truncated");
+
+        // a header without an end
+        byte[] endless = new byte[100 * 1024];
+        Arrays.fill(endless, (byte) 'a');
+        checkReadFails(endless, "too large");
+    }
+
+    private static void checkInvalid() {
+        checkParseFails("HTTP/1.1\r\n\r\n");
+        checkParseFails("HTTP/1.1 abc Switching Protocols\r\n\r\n");
+        checkParseFails("HTTP/1.1 101 Switching Protocols\r\nno colon\r\n\r\n");
+        checkParseFails("HTTP/1.1 101 Switching Protocols\r\n: no name\r\n\r\n");
+    }
+
+    private static void checkValidate() throws Exception {
+        UpgradeRequest request = new UpgradeRequest(new URI("ws://localhost:9191/channel"),
+                Collections.singletonList("v1.json.eftl.tibco.com"), null, null, null);
+
+        String accept = accept(request.getKey());
+        UpgradeResponse response = parse(HEADER.replace("\r\n\r\n", "\r\nSec-WebSocket-Accept: " + accept + "\r\n\r\n"));
+        response.validate(request, Collections.singletonList("v1.json.eftl.tibco.com"));
+
+        // a wrong accept key, a missing protocol and a refused upgrade
+        checkInvalid(request, parse(HEADER.replace("\r\n\r\n", "\r\nSec-WebSocket-Accept: AAAA\r\n\r\n")), 101);
+        checkInvalid(request, parse(HEADER.replace("Sec-WebSocket-Protocol: v1.json.eftl.tibco.com\r\n", "")
+                .replace("\r\n\r\n", "\r\nSec-WebSocket-Accept: " + accept + "\r\n\r\n")), 101);
+        checkInvalid(request, parse("HTTP/1.1 401 Unauthorized\r\n\r\n"), 401);
+    }
+
+    private static void checkInvalid(UpgradeRequest request, UpgradeResponse response, int statusCode) {
+        try {
+            response.validate(request, Collections.singletonList("v1.json.eftl.tibco.com"));
+        } catch (UpgradeException e) {
+            check(e.getStatusCode() == statusCode, "status code " + e.getStatusCode());
+            return;
+        }
+        throw new AssertionError("validated " + response);
+    }
+
+    private static void checkParseFails(String header) {
+        try {
+            UpgradeResponse.parse(ByteBuffer.wrap(ascii(header)));
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("parsed " + header);
+    }
+
+    private static void checkReadFails(byte[] bytes, String what) {
+        try {
+            UpgradeResponse.read(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("read " + what);
+    }
+
+    private static UpgradeResponse parse(String header) throws IOException {
+        return UpgradeResponse.parse(ByteBuffer.wrap(ascii(header)));
+    }
+
+    private static String accept(String key) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] digest = md.digest(ascii(key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11"));
+        return java.util.Base64.getEncoder().encodeToString(digest);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
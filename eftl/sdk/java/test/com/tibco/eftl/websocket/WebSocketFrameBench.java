@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares frame masking, mask generation and frame encoding with the
+ * byte at a time masking and shared SecureRandom they replaced.
+ * <p>
+ * Each case is warmed up and then timed over several rounds, and the
+ * best round is reported.
+ */
+public class WebSocketFrameBench {
+
+    private static final int[] SIZES = {64, 1024, 16 * 1024, 256 * 1024};
+    private static final int ROUNDS = 5;
+    private static final long ROUND_BYTES = 256L * 1024 * 1024;
+
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+
+        System.out.println("masking (MB/s)");
+        for (int size : SIZES) {
+            final byte[] data = new byte[size];
+            random.nextBytes(data);
+            final int mask = random.nextInt();
+            long count = Math.max(1, ROUND_BYTES / size);
+
+            double bytewise = rate(size, count, new Task() {
+                public void run(long i) {
+                    maskBytewise(data, 0, data.length, mask);
+                }
+            });
+            double wide = rate(size, count, new Task() {
+                public void run(long i) {
+                    WebSocketFrame.mask(data, 0, data.length, mask);
+                }
+            });
+            System.out.printf("  %7d bytes  byte at a time %8.0f  word at a time %8.0f%n", size, bytewise, wide);
+        }
+
+        System.out.println("text frame encoding into a reused buffer (MB/s)");
+        for (int size : SIZES) {
+            StringBuilder builder = new StringBuilder();
+            while (builder.length() < size)
+                builder.append((char) ('a' + random.nextInt(26)));
+            final String text = builder.toString();
+            final ByteBuffer[] buffer = {ByteBuffer.allocate(size + 16)};
+            long count = Math.max(1, ROUND_BYTES / size / 4);
+
+            for (final MaskGenerator generator : new MaskGenerator[] {MaskGenerator.SECURE, MaskGenerator.FAST}) {
+                double encode = rate(size, count, new Task() {
+                    public void run(long i) {
+                        buffer[0].clear();
+                        buffer[0] = WebSocketFrame.textFrame(buffer[0], text, generator);
+                    }
+                });
+                System.out.printf("  %7d bytes  %-6s masks %8.0f%n", size, (generator == MaskGenerator.FAST ? "fast" : "secure"), encode);
+            }
+        }
+
+        System.out.println("mask generation, 4 threads (million masks/s)");
+        final SecureRandom shared = new SecureRandom();
+        System.out.printf("  shared SecureRandom %8.2f%n", masks(new MaskGenerator() {
+            public int nextMask() {
+                return shared.nextInt();
+            }
+        }));
+        System.out.printf("  SECURE              %8.2f%n", masks(MaskGenerator.SECURE));
+        System.out.printf("  FAST                %8.2f%n", masks(MaskGenerator.FAST));
+    }
+
+    interface Task {
+        void run(long i);
+    }
+
+    // the masking loop used before word at a time masking
+    private static void maskBytewise(byte[] data, int offset, int length, int mask) {
+        for (int i = 0; i < length; i++) {
+            data[offset + i] ^= (byte) (mask >> (24 - 8 * (i % 4)));
+        }
+    }
+
+    /** Returns the best rate in MB/s over the rounds. */
+    private static double rate(int size, long count, Task task) {
+        long best = Long.MAX_VALUE;
+        for (int round = -2; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (long i = 0; i < count; i++)
+                task.run(i);
+            long elapsed = System.nanoTime() - start;
+
+            // the first rounds warm up
+            if (round >= 0)
+                best = Math.min(best, elapsed);
+        }
+        return (double) size * count / (best / 1e9) / (1024 * 1024);
+    }
+
+    /** Returns the masks generated per second by four threads, in millions. */
+    private static double masks(final MaskGenerator generator) throws InterruptedException {
+        final int threads = 4;
+        final int count = 2000000;
+        double best = 0;
+
+        for (int round = -1; round < ROUNDS; round++) {
+            final CountDownLatch done = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                new Thread() {
+                    public void run() {
+                        int x = 0;
+                        for (int i = 0; i < count; i++)
+                            x ^= generator.nextMask();
+                        sink = x;
+                        done.countDown();
+                    }
+                }.start();
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+
+            if (round >= 0)
+                best = Math.max(best, (double) threads * count / (elapsed / 1e9) / 1e6);
+        }
+        return best;
+    }
+}
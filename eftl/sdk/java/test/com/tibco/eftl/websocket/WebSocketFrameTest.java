@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2013-$Date$ TIBCO Software Inc.
+ * Licensed under a BSD-style license. Refer to [LICENSE]
+ * For more information, please contact:
+ * TIBCO Software Inc., Palo Alto, California, USA
+ *
+ * $Id$
+ *
+ */
+package com.tibco.eftl.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Encodes frames of every header size and parses them back.
+ */
+public class WebSocketFrameTest {
+
+    private static final int[] LENGTHS = {0, 1, 3, 4, 7, 125, 126, 127, 1000, 65535, 65536, 100000};
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+
+        for (int length : LENGTHS) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            checkFrame(WebSocketFrame.binaryFrame(data), WebSocketFrame.BINARY, data);
+            checkFrame(WebSocketFrame.pongFrame(data, 0, length), WebSocketFrame.PONG, data);
+
+            ByteBuffer buffer = WebSocketFrame.frame(ByteBuffer.allocate(0), WebSocketFrame.BINARY, data, 0, length, MaskGenerator.FAST);
+            checkFrame(toArray(buffer), WebSocketFrame.BINARY, data);
+
+            String text = text(random, length);
+            checkFrame(WebSocketFrame.textFrame(text), WebSocketFrame.TEXT, text.getBytes(StandardCharsets.UTF_8));
+
+            buffer = WebSocketFrame.textFrame(ByteBuffer.allocate(16), text, MaskGenerator.SECURE);
+            checkFrame(toArray(buffer), WebSocketFrame.TEXT, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] ping = "ping".getBytes(StandardCharsets.UTF_8);
+        checkFrame(WebSocketFrame.pingFrame(ping), WebSocketFrame.PING, ping);
+
+        WebSocketFrame close = parse(WebSocketFrame.closeFrame(1000));
+        check(close.getOpCode() == WebSocketFrame.CLOSE, "close opcode");
+        check(close.getCloseCode() == 1000, "close code");
+
+        checkSplitParse(random);
+
+        System.out.println("WebSocketFrameTest passed");
+    }
+
+    private static void checkFrame(byte[] frame, byte opcode, byte[] data) throws WebSocketException {
+        // the mask bit is set on every client frame
+        check((frame[1] & 0x80) != 0, "masked, length " + data.length);
+
+        WebSocketFrame parsed = parse(frame);
+        check(parsed.getOpCode() == opcode, "opcode " + opcode + ", length " + data.length);
+        check(parsed.isFin(), "fin, length " + data.length);
+        check(parsed.getPayloadLength() == data.length, "payload length " + data.length);
+        check(Arrays.equals(Arrays.copyOf(parsed.getPayload(), data.length), data), "payload, length " + data.length);
+    }
+
+    private static WebSocketFrame parse(byte[] frame) throws WebSocketException {
+        WebSocketFrame parsed = new WebSocketFrame();
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        check(parsed.parse(buffer), "complete frame");
+        check(!buffer.hasRemaining(), "frame length " + frame.length);
+        return parsed;
+    }
+
+    // frames split across reads at every position of the header
+    private static void checkSplitParse(Random random) throws WebSocketException {
+        byte[] data = new byte[300];
+        random.nextBytes(data);
+        byte[] frame = WebSocketFrame.binaryFrame(data);
+
+        for (int split = 1; split < 20; split++) {
+            WebSocketFrame parsed = new WebSocketFrame();
+            check(!parsed.parse(ByteBuffer.wrap(frame, 0, split)), "partial frame, split " + split);
+            check(parsed.parse(ByteBuffer.wrap(frame, split, frame.length - split)), "split frame, split " + split);
+            check(Arrays.equals(Arrays.copyOf(parsed.getPayload(), data.length), data), "split payload, split " + split);
+        }
+    }
+
+    private static String text(Random random, int length) {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < length) {
+            switch (random.nextInt(4)) {
+            case 0:
+                builder.append('é');
+                break;
+            case 1:
+                builder.append('€');
+                break;
+            default:
+                builder.append((char) ('a' + random.nextInt(26)));
+                break;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        buffer.flip();
+        byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
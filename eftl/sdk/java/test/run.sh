@@ -0,0 +1,59 @@
+#!/bin/bash
+
+#
+# Copyright (c) 2001-$Date$ TIBCO Software Inc.
+# Licensed under a BSD-style license. Refer to [LICENSE]
+# For more information, please contact:
+# TIBCO Software Inc., Palo Alto, California, USA
+#
+
+#
+# Compiles the Java client with its tests and benchmarks, then runs
+# every *Test class, or the class named on the command line with the
+# remaining arguments.
+#
+#   test/run.sh
+#   test/run.sh com.tibco.eftl.CompressionBench nio
+#
+# The tests and benchmarks are plain programs that exit with a non-zero
+# status on failure. They are kept out of src so that they are not
+# packaged in the jar.
+#
+
+base="$(cd "${0%/*}/.." 2>/dev/null; echo "$PWD")"
+out="${OUT:-${TMPDIR:-/tmp}/eftl-java-test}"
+
+rm -rf "$out"
+mkdir -p "$out/classes" "$out/gen/com/tibco/eftl" || exit 1
+
+sed -e 's/@EFTL_VERSION_MAJOR@/0/g' \
+    -e 's/@EFTL_VERSION_MINOR@/0/g' \
+    -e 's/@EFTL_VERSION_UPDATE@/0/g' \
+    -e 's/@EFTL_VERSION_RELEASE_TYPE@/test/g' \
+    -e 's/@EFTL_VERSION_BUILD@/0/g' \
+    -e 's/@EFTL_COPYRIGHT_YEARS@/0/g' \
+    "$base/src/com/tibco/eftl/Version.java.config" > "$out/gen/com/tibco/eftl/Version.java"
+
+javac -source 1.8 -target 1.8 -nowarn -encoding UTF-8 -d "$out/classes" \
+    $(find "$base/src" "$base/test" -name '*.java') \
+    "$out/gen/com/tibco/eftl/Version.java" > "$out/javac.log" 2>&1
+compiled=$?
+
+grep -v -e "^warning: \[options\]" -e "^Note: " "$out/javac.log"
+
+if [ $compiled -ne 0 ]; then
+    echo "compilation failed"
+    exit 1
+fi
+
+if [ $# -gt 0 ]; then
+    exec java -cp "$out/classes" "$@"
+fi
+
+status=0
+for class in $(cd "$base/test" && find . -name '*Test.java' | sed -e 's|^\./||' -e 's|\.java$||' -e 's|/|.|g' | sort); do
+    echo "== $class"
+    java -cp "$out/classes" "$class" || status=1
+done
+
+exit $status